@@ -0,0 +1,81 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package whg.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the inbound decode paths for one alert body.
+ * <p>
+ * legacyValueOf is what sqsAlertInbound did before whgAlertParser (and
+ * forwards the byte array's identity string rather than the JSON);
+ * legacyDecode is the same path done correctly with a scan for the source id;
+ * parser is whgAlertParser. The suite runs with the gc profiler, which
+ * reports allocation per alert:
+ *
+ * <pre>
+ * java -jar bench/target/benchmarks.jar whgAlertParserBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class whgAlertParserBenchmark {
+
+	@Param({ "256", "2048" })
+	public int payloadBytes;
+
+	private final whgBenchTargets targets = whgBenchTargets.get();
+	private String body;
+
+	@Setup
+	public void setUp() {
+		body = targets.inboundBody(payloadBytes);
+	}
+
+
+	@Benchmark
+	public String legacyValueOf() {
+		return String.valueOf(Base64.decodeBase64(body));
+	}
+
+
+	@Benchmark
+	public String legacyDecode() {
+		return targets.legacyDecode(body);
+	}
+
+
+	@Benchmark
+	public Object parser() {
+		return targets.parse(body);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package whg.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * What the benchmarks measure in the application's sources.
+ * <p>
+ * The application lives in the default package, which a named package
+ * cannot import, and JMH will not generate benchmarks in the default
+ * package. So the benchmarks call through this class, implemented by
+ * whgBenchShim in the default package and loaded once by name. Application
+ * objects are passed as Object and cast back inside the shim; the calls
+ * themselves are plain virtual calls, not reflection.
+ */
+public abstract class whgBenchTargets {
+
+	private static final String SHIM = "whgBenchShim";
+
+	private static final whgBenchTargets INSTANCE = load();
+
+	/**
+	 * The shim, shared by every benchmark.
+	 */
+	public static whgBenchTargets get() {
+		return INSTANCE;
+	}
+
+
+	private static whgBenchTargets load() {
+		try {
+			return (whgBenchTargets) Class.forName(SHIM).getConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot load " + SHIM + "; is it on the classpath?", e);
+		}
+	}
+
+
+	// fixtures
+
+	public abstract String inboundBody(int payloadBytes);
+
+	public abstract Object alert(int payloadBytes);
+
+	public abstract String sourceId(Object alert);
+
+	// inbound decoding
+
+	public abstract String legacyDecode(String body);
+
+	public abstract Object parse(String body);
+
+	// DynamoDB items
+
+	public abstract Map<String, AttributeValue> newAlert(Object alert);
+
+	public abstract String nextAlertId();
+
+	// partitioning
+
+	public abstract Object partitioner(String heavySources, int heavyShards);
+
+	public abstract String partitionKey(Object partitioner, String sourceId);
+
+	public abstract String explicitHashKey(Object partitioner, String sourceId);
+
+	// encoding
+
+	public abstract String encodeText(Object alert);
+
+	public abstract Object decodeText(String text);
+
+	public abstract byte[] encode(Object alert);
+
+	public abstract Map<String, MessageAttributeValue> traceAttributes(Object alert, String stage);
+
+	// compression
+
+	public abstract Object compressor(String compression, File dictionaryDir, int sampleSize);
+
+	public abstract byte[] encodeRecord(Object compressor, Object alert) throws IOException;
+
+	public abstract Object decodeRecord(byte[] record) throws IOException;
+}
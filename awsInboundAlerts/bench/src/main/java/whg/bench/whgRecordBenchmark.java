@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package whg.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes and decodes one alert the ways the stages do: the text form
+ * carried between queues, and the stream record sqsAlertStream puts and the
+ * record processor reads back in processSingleRecord, with each compression
+ * setting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class whgRecordBenchmark {
+
+	@Param({ "256", "2048" })
+	public int payloadBytes;
+
+	@Param({ "none", "deflate", "dictionary" })
+	public String compression;
+
+	private final whgBenchTargets targets = whgBenchTargets.get();
+	private Object alert;
+	private Object compressor;
+	private String text;
+	private byte[] record;
+
+	@Setup
+	public void setUp() throws IOException {
+		alert = targets.alert(payloadBytes);
+		text = targets.encodeText(alert);
+
+		File dictionaryDir = new File(System.getProperty("java.io.tmpdir"), "whg-bench-dictionaries");
+		System.setProperty("whg.kinesis.dictionaryDir", dictionaryDir.getPath());
+		compressor = targets.compressor(compression, dictionaryDir, 100);
+		// train the dictionary before measuring
+		for (int i = 0; i < 100; i++) {
+			record = targets.encodeRecord(compressor, alert);
+		}
+	}
+
+
+	@Benchmark
+	public String encodeText() {
+		return targets.encodeText(alert);
+	}
+
+
+	@Benchmark
+	public Object decodeText() {
+		return targets.decodeText(text);
+	}
+
+
+	@Benchmark
+	public byte[] encodeRecord() throws IOException {
+		return targets.encodeRecord(compressor, alert);
+	}
+
+
+	@Benchmark
+	public Object decodeRecord() throws IOException {
+		return targets.decodeRecord(record);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package whg.bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+
+/**
+ * Builds the batch requests the stages send, the way whgBatchForwarder,
+ * whgDynamoBatchWriter and whgKinesisProducer build them, one full batch per
+ * invocation. Times are per alert.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class whgRequestBenchmark {
+
+	private static final int SQS_BATCH = 10;
+	private static final int DYNAMODB_BATCH = 25;
+	private static final int KINESIS_BATCH = 100;
+
+	@Param({ "256", "2048" })
+	public int payloadBytes;
+
+	private final whgBenchTargets targets = whgBenchTargets.get();
+	private Object alert;
+	private String body;
+	private Map<String, AttributeValue> item;
+	private byte[] record;
+	private Object partitioner;
+
+	@Setup
+	public void setUp() {
+		alert = targets.alert(payloadBytes);
+		body = targets.encodeText(alert);
+		item = targets.newAlert(alert);
+		record = targets.encode(alert);
+		partitioner = targets.partitioner("", 4);
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(SQS_BATCH)
+	public SendMessageBatchRequest sendMessageBatch() {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(SQS_BATCH);
+		for (int i = 0; i < SQS_BATCH; i++) {
+			SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(String.valueOf(i), body);
+			entry.setMessageAttributes(targets.traceAttributes(alert, "alertPersist"));
+			entries.add(entry);
+		}
+		return new SendMessageBatchRequest("alertCache", entries);
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(DYNAMODB_BATCH)
+	public BatchWriteItemRequest batchWriteItem() {
+		List<WriteRequest> requests = new ArrayList<WriteRequest>(DYNAMODB_BATCH);
+		for (int i = 0; i < DYNAMODB_BATCH; i++) {
+			requests.add(new WriteRequest(new PutRequest(item)));
+		}
+		Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+		requestItems.put("alerts", requests);
+		return new BatchWriteItemRequest(requestItems);
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(KINESIS_BATCH)
+	public PutRecordsRequest putRecords() {
+		List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(KINESIS_BATCH);
+		for (int i = 0; i < KINESIS_BATCH; i++) {
+			String sourceId = targets.sourceId(alert);
+			entries.add(new PutRecordsRequestEntry()
+					.withPartitionKey(targets.partitionKey(partitioner, sourceId))
+					.withExplicitHashKey(targets.explicitHashKey(partitioner, sourceId))
+					.withData(ByteBuffer.wrap(record)));
+		}
+		return new PutRecordsRequest().withStreamName("alertsStream").withRecords(entries);
+	}
+}
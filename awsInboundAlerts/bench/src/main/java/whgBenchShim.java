@@ -0,0 +1,180 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+import whg.bench.whgBenchTargets;
+
+/**
+ * The default-package side of {@link whgBenchTargets}: each method makes the
+ * application call its benchmark measures.
+ */
+public class whgBenchShim extends whgBenchTargets {
+
+	static {
+		// a benchmark is the only writer of alert ids, so any worker id is unique
+		if (System.getProperty("whg.workerId") == null) {
+			System.setProperty("whg.workerId", "0");
+		}
+	}
+
+	@Override
+	public String inboundBody(int payloadBytes) {
+		return whgBenchmarkAlerts.inboundBody(payloadBytes);
+	}
+
+
+	@Override
+	public Object alert(int payloadBytes) {
+		return whgBenchmarkAlerts.alert(payloadBytes);
+	}
+
+
+	@Override
+	public String sourceId(Object alert) {
+		return ((whgAlert) alert).getSourceId();
+	}
+
+
+	@Override
+	public String legacyDecode(String body) {
+		String json = new String(Base64.decodeBase64(body), whgBenchmarkAlerts.UTF8);
+		return sourceIdOf(json) + json.length();
+	}
+
+
+	@Override
+	public Object parse(String body) {
+		return whgAlertParser.parse(body);
+	}
+
+
+	@Override
+	public Map<String, AttributeValue> newAlert(Object alert) {
+		return whgHelper.newAlert((whgAlert) alert, whgAlertIdGenerator.getDefault().nextKey());
+	}
+
+
+	@Override
+	public String nextAlertId() {
+		return whgAlertIdGenerator.getDefault().nextKey();
+	}
+
+
+	@Override
+	public Object partitioner(String heavySources, int heavyShards) {
+		return new whgSourcePartitioner(heavySources, heavyShards);
+	}
+
+
+	@Override
+	public String partitionKey(Object partitioner, String sourceId) {
+		return ((whgPartitioner) partitioner).partitionKey(sourceId);
+	}
+
+
+	@Override
+	public String explicitHashKey(Object partitioner, String sourceId) {
+		return ((whgPartitioner) partitioner).explicitHashKey(sourceId);
+	}
+
+
+	@Override
+	public String encodeText(Object alert) {
+		return whgAlertCodec.encodeText((whgAlert) alert);
+	}
+
+
+	@Override
+	public Object decodeText(String text) {
+		return whgAlertCodec.decodeText(text);
+	}
+
+
+	@Override
+	public byte[] encode(Object alert) {
+		return whgAlertCodec.encode((whgAlert) alert);
+	}
+
+
+	@Override
+	public Map<String, MessageAttributeValue> traceAttributes(Object alert, String stage) {
+		return ((whgAlert) alert).getTrace().hop(stage).toAttributes();
+	}
+
+
+	@Override
+	public Object compressor(String compression, File dictionaryDir, int sampleSize) {
+		return new whgRecordCompressor(compression, dictionaryDir, sampleSize);
+	}
+
+
+	@Override
+	public byte[] encodeRecord(Object compressor, Object alert) throws IOException {
+		return ((whgRecordCompressor) compressor).compress(whgAlertCodec.encode((whgAlert) alert));
+	}
+
+
+	@Override
+	public Object decodeRecord(byte[] record) throws IOException {
+		ByteBuffer payload = whgRecordCompressor.decompress(ByteBuffer.wrap(record));
+		return whgAlertCodec.isEncoded(payload) ? whgAlertCodec.decode(payload) : null;
+	}
+
+
+	/**
+	 * The source id scan the inbound stage used before whgAlertParser.
+	 */
+	private static String sourceIdOf(String alertJSON) {
+		// pull the source id out of the alert JSON without a full parse
+		for (String field : new String[] { "\"alertSourceId\"", "\"sourceId\"" }) {
+			int at = alertJSON.indexOf(field);
+			if (at < 0) {
+				continue;
+			}
+			int colon = alertJSON.indexOf(':', at + field.length());
+			if (colon < 0) {
+				continue;
+			}
+			int start = colon + 1;
+			while (start < alertJSON.length() && Character.isWhitespace(alertJSON.charAt(start))) {
+				start++;
+			}
+			boolean quoted = start < alertJSON.length() && alertJSON.charAt(start) == '"';
+			if (quoted) {
+				start++;
+			}
+			int end = start;
+			while (end < alertJSON.length()) {
+				char c = alertJSON.charAt(end);
+				if (quoted ? c == '"' : (c == ',' || c == '}' || Character.isWhitespace(c))) {
+					break;
+				}
+				end++;
+			}
+			if (end > start) {
+				return alertJSON.substring(start, end);
+			}
+		}
+		return null;
+	}
+}
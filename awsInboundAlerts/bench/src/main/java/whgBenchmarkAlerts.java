@@ -0,0 +1,62 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Alert payloads shared by the benchmarks, padded to a requested size.
+ */
+final class whgBenchmarkAlerts {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private whgBenchmarkAlerts() {
+	}
+
+
+	/**
+	 * Alert JSON of about the given size in bytes.
+	 */
+	static String json(int payloadBytes) {
+		StringBuilder json = new StringBuilder("{\"sourceId\":\"source-42\",\"timestamp\":1444000000123,"
+				+ "\"severity\":\"error\",\"detail\":{\"host\":\"web-07\",\"check\":\"disk\"},\"message\":\"");
+		while (json.length() < payloadBytes - 2) {
+			json.append('x');
+		}
+		return json.append("\"}").toString();
+	}
+
+
+	/**
+	 * The alert as it arrives on the inbound queue.
+	 */
+	static String inboundBody(int payloadBytes) {
+		return Base64.encodeBase64String(json(payloadBytes).getBytes(UTF8));
+	}
+
+
+	/**
+	 * The alert as the stages see it, with a trace through every queue.
+	 */
+	static whgAlert alert(int payloadBytes) {
+		whgTrace trace = whgTrace.start(1444000000123L)
+				.hop("alertInbound", 1444000000140L)
+				.hop("alertPersist", 1444000000171L)
+				.hop("alertCache", 1444000000180L)
+				.hop("alertStream", 1444000000195L);
+		return whgAlertParser.parseJSON(json(payloadBytes)).withTrace(trace);
+	}
+}
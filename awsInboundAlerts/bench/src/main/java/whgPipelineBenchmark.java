@@ -0,0 +1,430 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+
+/**
+ * Drives alerts through Inbound, Persist, Cache and Stream in one JVM against
+ * the whgLocal stand-ins, and reports what the whole pipeline achieved.
+ * <p>
+ * A warmup batch is run through first and not measured. The measured alerts
+ * are then sent to alertInbound, as fast as possible or at a fixed rate, and
+ * the run ends when they have all reached alertErrorHandling. If either batch
+ * misses its deadline, or the pipeline cannot be started, the run stops with
+ * exit status 2. The report, in
+ * JSON, gives alerts per second, end-to-end latency from alertInbound to the
+ * stream, bytes allocated per alert by the pipeline threads and local API
+ * calls per alert. The settings that shape the stage loops are the stages'
+ * own (whg.receivers, whg.processors, whg.fused.workers, whg.maxInFlight,
+ * whg.mode, whg.dynamodb.lingerMillis, whg.kinesis.lingerMillis and so on) and
+ * are copied into the report.
+ * <p>
+ * Given a baseline report, the run fails with exit status 1 if throughput
+ * dropped, or latency, allocation or API calls rose, by more than the
+ * threshold. Settings:
+ * <ul>
+ * <li>whg.pipeline.mode - "stages" for four stage runtimes, or "fused" (default stages)</li>
+ * <li>whg.pipeline.alerts - measured alerts (default 20000)</li>
+ * <li>whg.pipeline.warmupAlerts - alerts run through first (default 5000)</li>
+ * <li>whg.pipeline.rate - alerts per second sent, 0 for as fast as possible (default 0)</li>
+ * <li>whg.pipeline.sources - distinct alert sources (default 1000)</li>
+ * <li>whg.pipeline.payloadBytes - size of each alert (default 512)</li>
+ * <li>whg.pipeline.timeoutSeconds - longest the measured alerts may take (default 300)</li>
+ * <li>whg.pipeline.warmupTimeoutSeconds - longest the warmup alerts may take (default 60)</li>
+ * <li>whg.pipeline.report - report file (default pipeline-results.json)</li>
+ * <li>whg.pipeline.baseline - report to compare against (default none)</li>
+ * <li>whg.pipeline.threshold - allowed regression as a fraction (default 0.10)</li>
+ * </ul>
+ *
+ * <pre>
+ * java -Dwhg.processors=4 -Dwhg.pipeline.baseline=baseline.json -cp bench/target/benchmarks.jar whgPipelineBenchmark
+ * </pre>
+ */
+public class whgPipelineBenchmark {
+
+	private static final String FIRST_QUEUE = "alertInbound";
+	private static final String LAST_QUEUE = "alertErrorHandling";
+	private static final String STREAM = "alertsStream";
+	private static final String[] STAGE_NAMES = { "alertInbound", "alertPersist", "alertCache", "alertStream" };
+	private static final String[] SETTINGS = { "whg.receivers", "whg.processors", "whg.fused.workers",
+			"whg.maxInFlight", "whg.mode", "whg.dynamodb.writers", "whg.dynamodb.lingerMillis",
+			"whg.kinesis.senders", "whg.kinesis.lingerMillis", "whg.kinesis.compression", "whg.kinesis.shards" };
+
+	// regressions are checked on these, in the direction that makes them worse
+	private static final String[] HIGHER_IS_BETTER = { "alertsPerSecond" };
+	private static final String[] LOWER_IS_BETTER = { "latencyP50Millis", "latencyP99Millis",
+			"allocatedBytesPerAlert", "apiCallsPerAlert" };
+
+	private final String mode = System.getProperty("whg.pipeline.mode", "stages");
+	private final int alerts = Integer.getInteger("whg.pipeline.alerts", 20000);
+	private final int warmupAlerts = Integer.getInteger("whg.pipeline.warmupAlerts", 5000);
+	private final int rate = Integer.getInteger("whg.pipeline.rate", 0);
+	private final int sources = Math.max(1, Integer.getInteger("whg.pipeline.sources", 1000));
+	private final int payloadBytes = Integer.getInteger("whg.pipeline.payloadBytes", 512);
+	private final long timeoutMillis = TimeUnit.SECONDS.toMillis(Long.getLong("whg.pipeline.timeoutSeconds", 300L));
+	private final long warmupTimeoutMillis =
+			TimeUnit.SECONDS.toMillis(Long.getLong("whg.pipeline.warmupTimeoutSeconds", 60L));
+
+	private final AmazonSQS sqs;
+	private final List<Runnable> shutdowns = new ArrayList<Runnable>();
+	private int sent;
+
+	public static void main(String[] args) throws Exception {
+
+		// every service is local; set before the first client is handed out
+		System.setProperty("whg.local", "true");
+		int alerts = Integer.getInteger("whg.pipeline.alerts", 20000);
+		int warmupAlerts = Integer.getInteger("whg.pipeline.warmupAlerts", 5000);
+		if (System.getProperty("whg.local.kinesis.retain") == null) {
+			System.setProperty("whg.local.kinesis.retain", Integer.toString(alerts + warmupAlerts));
+		}
+
+		whgPipelineBenchmark benchmark = new whgPipelineBenchmark();
+		int status;
+		try {
+			Map<String, Object> report = benchmark.run();
+			String json = toJSON(report);
+			File reportFile = new File(System.getProperty("whg.pipeline.report", "pipeline-results.json"));
+			Files.write(reportFile.toPath(), json.getBytes(whgBenchmarkAlerts.UTF8));
+			System.out.println(json);
+
+			String baseline = System.getProperty("whg.pipeline.baseline");
+			status = baseline == null ? 0 : compare(report, new String(Files.readAllBytes(new File(baseline).toPath()),
+					whgBenchmarkAlerts.UTF8), Double.parseDouble(System.getProperty("whg.pipeline.threshold", "0.10")));
+		} catch (IllegalStateException e) {
+			System.out.println("Benchmark incomplete: " + e.getMessage());
+			status = 2;
+		} catch (Exception e) {
+			// still exit below; client threads left running would keep the JVM up
+			System.out.println("Benchmark failed: " + e);
+			status = 2;
+		} finally {
+			benchmark.shutdown();
+		}
+		whgLog.flush();
+		// the stage threads and metrics endpoint would otherwise keep the JVM alive
+		System.exit(status);
+	}
+
+
+	private whgPipelineBenchmark() {
+		this.sqs = whgLocal.sqs();
+	}
+
+
+	private Map<String, Object> run() throws Exception {
+
+		start();
+
+		send(warmupAlerts);
+		awaitDelivered(warmupAlerts, warmupTimeoutMillis, "warmup");
+
+		Map<String, Long> callsBefore = whgLocal.callCounts();
+		long allocatedBefore = allocatedBytes();
+		long startNanos = System.nanoTime();
+
+		send(alerts);
+		awaitDelivered(warmupAlerts + alerts, timeoutMillis, "measured run");
+
+		long elapsedNanos = System.nanoTime() - startNanos;
+		long allocated = allocatedBytes() - allocatedBefore;
+		Map<String, Long> calls = whgLocal.callCounts();
+
+		// the measured alerts' records are the newest on the stream
+		List<Record> records = whgLocal.streamRecords(STREAM);
+		long[] latencies = latencies(records.subList(Math.max(0, records.size() - alerts), records.size()));
+
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("mode", mode);
+		report.put("alerts", alerts);
+		report.put("rate", rate);
+		report.put("payloadBytes", payloadBytes);
+		report.put("sources", sources);
+		Map<String, Object> settings = new LinkedHashMap<String, Object>();
+		for (String setting : SETTINGS) {
+			if (System.getProperty(setting) != null) {
+				settings.put(setting, System.getProperty(setting));
+			}
+		}
+		report.put("settings", settings);
+		report.put("elapsedSeconds", elapsedNanos / 1e9);
+		report.put("alertsPerSecond", alerts / (elapsedNanos / 1e9));
+		report.put("latencyP50Millis", percentile(latencies, 0.50));
+		report.put("latencyP99Millis", percentile(latencies, 0.99));
+		report.put("latencyMaxMillis", latencies.length == 0 ? 0 : latencies[latencies.length - 1]);
+		report.put("latencySamples", latencies.length);
+		report.put("allocatedBytesPerAlert", allocated < 0 ? -1 : allocated / alerts);
+
+		long totalCalls = 0;
+		Map<String, Object> callsPerAlert = new TreeMap<String, Object>();
+		for (Map.Entry<String, Long> entry : calls.entrySet()) {
+			Long before = callsBefore.get(entry.getKey());
+			long made = entry.getValue() - (before == null ? 0 : before);
+			if (made > 0) {
+				callsPerAlert.put(entry.getKey(), (double) made / alerts);
+				totalCalls += made;
+			}
+		}
+		report.put("apiCallsPerAlert", (double) totalCalls / alerts);
+		report.put("apiCalls", callsPerAlert);
+		return report;
+	}
+
+
+	/**
+	 * Starts the pipeline, each runtime on its own thread, as the stages' own
+	 * main methods would.
+	 */
+	private void start() throws IOException {
+
+		whgHelper.setTable(whgLocal.dynamoDB(), "alerts");
+		whgHelper.setStream(whgLocal.kinesis(), STREAM, Integer.getInteger("whg.local.kinesis.shards", 1));
+
+		whgStageHandler[] handlers = {
+				new sqsAlertInbound(sqs),
+				new sqsAlertPersist(sqs, whgLocal.dynamoDB(), "alerts"),
+				new sqsAlertCache(whgCacheClient.get()),
+				new sqsAlertStream(sqs, whgLocal.kinesis(), STREAM) };
+
+		if (mode.equals("fused")) {
+			final sqsAlertFused fused = new sqsAlertFused(sqs, FIRST_QUEUE, LAST_QUEUE, STAGE_NAMES, handlers);
+			startThread("fused", fused, null);
+		} else if (mode.equals("stages")) {
+			for (int i = 0; i < handlers.length; i++) {
+				String nextQueue = i + 1 < STAGE_NAMES.length ? STAGE_NAMES[i + 1] : LAST_QUEUE;
+				startThread(STAGE_NAMES[i], null, new whgStageRuntime(sqs, STAGE_NAMES[i], nextQueue, handlers[i]));
+			}
+		} else {
+			throw new IllegalArgumentException("whg.pipeline.mode must be stages or fused, not " + mode);
+		}
+	}
+
+
+	private void startThread(String name, final sqsAlertFused fused, final whgStageRuntime runtime) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (fused != null) {
+						fused.run();
+					} else {
+						runtime.run();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, name + "-runtime");
+		thread.setDaemon(true);
+		thread.start();
+		shutdowns.add(new Runnable() {
+			@Override
+			public void run() {
+				if (fused != null) {
+					fused.shutdown();
+				} else {
+					runtime.shutdown();
+				}
+			}
+		});
+	}
+
+
+	private void shutdown() {
+		for (Runnable shutdown : shutdowns) {
+			shutdown.run();
+		}
+	}
+
+
+	/**
+	 * Sends alerts to the first queue in batches of ten, spread across the
+	 * configured sources, paced when a rate is set.
+	 */
+	private void send(int count) throws InterruptedException {
+
+		String padding = whgBenchmarkAlerts.json(payloadBytes);
+		long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(whgBatchForwarder.MAX_BATCH_ENTRIES) / rate : 0;
+		long next = System.nanoTime();
+
+		for (int i = 0; i < count; i += whgBatchForwarder.MAX_BATCH_ENTRIES) {
+			List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+			for (int j = i; j < Math.min(count, i + whgBatchForwarder.MAX_BATCH_ENTRIES); j++) {
+				String json = padding.replace("source-42", "source-" + (sent++ % sources));
+				entries.add(new SendMessageBatchRequestEntry().withId(Integer.toString(j - i))
+						.withMessageBody(org.apache.commons.codec.binary.Base64.encodeBase64String(
+								json.getBytes(whgBenchmarkAlerts.UTF8))));
+			}
+			sqs.sendMessageBatch(new SendMessageBatchRequest().withQueueUrl(FIRST_QUEUE).withEntries(entries));
+
+			if (intervalNanos > 0) {
+				next += intervalNanos;
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Waits for the given number of alerts, counted from the start, to reach
+	 * the last queue.
+	 *
+	 * @throws IllegalStateException if they have not all arrived by the deadline
+	 */
+	private void awaitDelivered(int total, long timeoutMillis, String phase) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (whgLocal.queueDepth(LAST_QUEUE) < total) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException(phase + ": " + whgLocal.queueDepth(LAST_QUEUE) + " of " + total
+						+ " alerts reached " + LAST_QUEUE + " within " + timeoutMillis / 1000 + " seconds");
+			}
+			Thread.sleep(10);
+		}
+	}
+
+
+	/**
+	 * Milliseconds from arriving on alertInbound to being handed to the
+	 * stream, taken from each record's trace, in ascending order.
+	 */
+	private static long[] latencies(List<Record> records) throws IOException {
+		long[] latencies = new long[records.size()];
+		int count = 0;
+		for (Record record : records) {
+			ByteBuffer payload = whgRecordCompressor.decompress(record.getData().duplicate());
+			if (!whgAlertCodec.isEncoded(payload)) {
+				continue;
+			}
+			whgTrace trace = whgAlertCodec.decode(payload).getTrace();
+			if (trace != null && trace.getHopCount() > 0) {
+				latencies[count++] = trace.getHopMillis(trace.getHopCount() - 1) - trace.getIngestMillis();
+			}
+		}
+		latencies = Arrays.copyOf(latencies, count);
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+
+	private static long percentile(long[] sorted, double quantile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+	}
+
+
+	/**
+	 * Bytes allocated so far by every live thread but this one, or -1 if the
+	 * JVM cannot tell. Threads that have already ended are not counted.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+		long total = 0;
+		long self = Thread.currentThread().getId();
+		for (long id : threads.getAllThreadIds()) {
+			long bytes = id == self ? 0 : allocation.getThreadAllocatedBytes(id);
+			total += Math.max(0, bytes);
+		}
+		return total;
+	}
+
+
+	/**
+	 * Compares a report against a baseline report and prints every figure
+	 * that regressed by more than the threshold.
+	 *
+	 * @return 1 if anything regressed, otherwise 0
+	 */
+	static int compare(Map<String, Object> report, String baselineJSON, double threshold) {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		Matcher field = Pattern.compile("\"(\\w+)\"\\s*:\\s*(-?[0-9][0-9.eE+-]*)").matcher(baselineJSON);
+		while (field.find()) {
+			baseline.put(field.group(1), Double.parseDouble(field.group(2)));
+		}
+
+		int regressions = 0;
+		for (String name : HIGHER_IS_BETTER) {
+			regressions += check(name, baseline.get(name), ((Number) report.get(name)).doubleValue(), threshold, true);
+		}
+		for (String name : LOWER_IS_BETTER) {
+			regressions += check(name, baseline.get(name), ((Number) report.get(name)).doubleValue(), threshold, false);
+		}
+		System.out.println(regressions == 0 ? "No regression beyond " + threshold * 100 + "% of the baseline"
+				: regressions + " regression(s) beyond " + threshold * 100 + "% of the baseline");
+		return regressions == 0 ? 0 : 1;
+	}
+
+
+	private static int check(String name, Double baseline, double current, double threshold, boolean higherIsBetter) {
+		// a figure missing from the baseline, or not measured in it, cannot regress
+		if (baseline == null || baseline <= 0 || current < 0) {
+			return 0;
+		}
+		double change = (current - baseline) / baseline;
+		boolean regressed = higherIsBetter ? change < -threshold : change > threshold;
+		System.out.printf(Locale.ROOT, "%s %-24s baseline %12.2f current %12.2f change %+7.1f%%%n",
+				regressed ? "REGRESSED" : "ok       ", name, baseline, current, change * 100);
+		return regressed ? 1 : 0;
+	}
+
+
+	private static String toJSON(Map<String, Object> values) {
+		StringBuilder json = new StringBuilder("{");
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("\n  \"").append(entry.getKey()).append("\": ");
+			Object value = entry.getValue();
+			if (value instanceof Map) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> nested = (Map<String, Object>) value;
+				json.append(toJSON(nested).replace("\n", "\n  "));
+			} else if (value instanceof Number) {
+				json.append(value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value.toString());
+			} else {
+				json.append('"').append(value).append('"');
+			}
+		}
+		return json.append("\n}").toString();
+	}
+}
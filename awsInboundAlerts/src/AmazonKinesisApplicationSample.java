@@ -92,6 +92,8 @@ public final class AmazonKinesisApplicationSample {
                         credentialsProvider,
                         workerId);
         kinesisClientLibConfiguration.withInitialPositionInStream(SAMPLE_APPLICATION_INITIAL_POSITION_IN_STREAM);
+        // Empty batches tell the record processor a shard is caught up, and let it checkpoint while idle
+        kinesisClientLibConfiguration.withCallProcessRecordsEvenForEmptyRecordList(true);
 
         IRecordProcessorFactory recordProcessorFactory = new AmazonKinesisApplicationRecordProcessorFactory();
         Worker worker = new Worker(recordProcessorFactory, kinesisClientLibConfiguration);
@@ -13,17 +13,20 @@
  * permissions and limitations under the License.
  */
 
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
-import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessor;
 import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
 import com.amazonaws.services.kinesis.clientlibrary.types.ShutdownReason;
@@ -31,21 +34,67 @@ import com.amazonaws.services.kinesis.model.Record;
 
 /**
  * Processes records and checkpoints progress.
+ * <p>
+ * By default the records of a batch are processed one after another on the
+ * shard's thread. With whg.kcl.mode=ordered they are handed to the lanes of
+ * the shared {@link whgKeyedExecutor}, grouped by partition key, so records
+ * with the same key keep their order while other keys run in parallel, and
+ * processRecords returns without waiting for them. Checkpoints then go only
+ * as far as the highest sequence number below which every record is done.
+ * At most whg.kcl.maxInFlight records (default 10000) are outstanding per
+ * shard; beyond that processRecords waits.
+ * <p>
+ * A record that fails is retried after a short backoff
+ * (whg.kcl.retryBackoffMillis, default 100, doubling each time), and after
+ * whg.kcl.attempts attempts (default 3) it goes to the
+ * {@link whgDeadLetterSink}. Either way nothing is checkpointed past it until
+ * it is done with. In ordered mode the retries run on the record's lane,
+ * which holds the later records of its key until it is done with, so per-key
+ * order survives a retry. In serial mode they run off the shard's thread so
+ * the records behind keep moving; a retried record is then analyzed after
+ * later ones and alongside them, which the analysis allows, as it is already
+ * fed from several lanes at once in ordered mode.
+ * <p>
+ * Checkpoints are written in the background by {@link whgCheckpointer}.
  */
 public class AmazonKinesisApplicationSampleRecordProcessor implements IRecordProcessor {
 
     private static final Log LOG = LogFactory.getLog(AmazonKinesisApplicationSampleRecordProcessor.class);
     private String kinesisShardId;
 
-    // Backoff and retry settings
-    private static final long BACKOFF_TIME_IN_MILLIS = 3000L;
-    private static final int NUM_RETRIES = 10;
+    // Attempts per record before it is dead-lettered, and the first retry's backoff
+    private static final int MAX_ATTEMPTS = Math.max(1, Integer.getInteger("whg.kcl.attempts", 3));
+    private static final long RETRY_BACKOFF_MILLIS = Long.getLong("whg.kcl.retryBackoffMillis", 100L);
 
-    // Checkpoint about once a minute
-    private static final long CHECKPOINT_INTERVAL_MILLIS = 60000L;
-    private long nextCheckpointTimeInMillis;
+    // Serial mode retries for every shard run here, never on a shard's own thread
+    private static final ScheduledExecutorService RETRIES = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "kcl-retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private whgDeadLetterSink deadLetters;
+    private final whgCounter retryCount = whgMetrics.counter("whg_kcl_retries_total");
+    private final whgCounter deadLetterCount = whgMetrics.counter("whg_kcl_dead_letters_total");
+
+    // Checkpoints by records done, time and alert age, written in the background
+    private whgCheckpointer checkpoints;
+    private final whgCounter completedCount = whgMetrics.counter("whg_kcl_completed_records_total");
+    // End-to-end age of the newest traced alert seen, or Long.MAX_VALUE before the first
+    private volatile long alertAgeMillis = Long.MAX_VALUE;
+
+    // Hop and age histograms for traced alerts
+    private static final String STREAM_HOP = "kinesis";
+    private final whgHistogram ageHistogram = whgMetrics.histogram("whg_trace_age_seconds");
+    private final ConcurrentMap<String, whgHistogram> hopHistograms = new ConcurrentHashMap<String, whgHistogram>();
 
-    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+    // Key-ordered parallel processing
+    private final boolean ordered = "ordered".equals(System.getProperty("whg.kcl.mode", "serial"));
+    private final int maxInFlight = Math.max(1, Integer.getInteger("whg.kcl.maxInFlight", 10000));
+    private final whgSequenceTracker tracker = new whgSequenceTracker();
+    private whgKeyedExecutor lanes;
 
     /**
      * {@inheritDoc}
@@ -54,6 +103,14 @@ public class AmazonKinesisApplicationSampleRecordProcessor implements IRecordPro
     public void initialize(String shardId) {
         LOG.info("Initializing record processor for shard: " + shardId);
         this.kinesisShardId = shardId;
+        this.checkpoints = new whgCheckpointer(shardId, tracker);
+        if (ordered) {
+            lanes = whgKeyedExecutor.shared();
+        }
+        deadLetters = whgHelper.getDeadLetterSink();
+        // shared by every shard; a bad setting fails initialization instead of every record
+        kinesisAlertAnalysis.startAnalysis();
+        whgMetrics.startEndpoint();
     }
 
     /**
@@ -61,50 +118,168 @@ public class AmazonKinesisApplicationSampleRecordProcessor implements IRecordPro
      */
     @Override
     public void processRecords(List<Record> records, IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Processing " + records.size() + " records from " + kinesisShardId);
+        if (!records.isEmpty()) {
+            LOG.info("Processing " + records.size() + " records from " + kinesisShardId);
+        }
 
         // Process records and perform all exception handling.
-        processRecordsWithRetries(records);
+        if (ordered) {
+            try {
+                processRecordsByKey(records);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        } else {
+            processRecordsWithRetries(records);
+        }
+
+        // Checkpoint in the background once enough records, time or alert age call for it.
+        // An empty batch means the shard has been read to its tip; the worker is configured
+        // to deliver those, so an idle shard still gets its checkpoints.
+        checkpoints.checkpointIfDue(checkpointer, records.isEmpty() ? 0 : alertAgeMillis);
+    }
+
+    /**
+     * Hands the records to the lanes, one task per lane holding that lane's
+     * records in shard order, and returns once they are queued.
+     *
+     * @param records Data records to be processed.
+     */
+    private void processRecordsByKey(List<Record> records) throws InterruptedException {
+        // wait for room, but never so long that a batch larger than the limit cannot start
+        tracker.awaitPendingAtMost(Math.max(0, maxInFlight - records.size()));
+
+        List<List<Record>> recordsByLane = new ArrayList<List<Record>>(lanes.getLaneCount());
+        List<List<whgSequenceTracker.Entry>> entriesByLane =
+                new ArrayList<List<whgSequenceTracker.Entry>>(lanes.getLaneCount());
+        for (int i = 0; i < lanes.getLaneCount(); i++) {
+            recordsByLane.add(null);
+            entriesByLane.add(null);
+        }
+        for (Record record : records) {
+            int lane = lanes.laneOf(record.getPartitionKey());
+            if (recordsByLane.get(lane) == null) {
+                recordsByLane.set(lane, new ArrayList<Record>());
+                entriesByLane.set(lane, new ArrayList<whgSequenceTracker.Entry>());
+            }
+            recordsByLane.get(lane).add(record);
+            entriesByLane.get(lane).add(tracker.add(record.getSequenceNumber()));
+        }
 
-        // Checkpoint once every checkpoint interval.
-        if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
-            checkpoint(checkpointer);
-            nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+        for (int i = 0; i < recordsByLane.size(); i++) {
+            final List<Record> laneRecords = recordsByLane.get(i);
+            final List<whgSequenceTracker.Entry> laneEntries = entriesByLane.get(i);
+            if (laneRecords == null) {
+                continue;
+            }
+            lanes.execute(i, new Runnable() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < laneRecords.size(); r++) {
+                        processRecordInLane(laneRecords.get(r), laneEntries.get(r));
+                    }
+                }
+            });
         }
     }
 
     /**
-     * Process records performing retries as needed. Skip "poison pill" records.
+     * Process records performing retries as needed. Dead-letter "poison pill" records.
      * 
      * @param records Data records to be processed.
      */
     private void processRecordsWithRetries(List<Record> records) {
         for (Record record : records) {
-            boolean processedSuccessfully = false;
-            for (int i = 0; i < NUM_RETRIES; i++) {
-                try {
-                    //
-                    // Logic to process record goes here.
-                    //
-                    processSingleRecord(record);
+            processRecordWithRetries(record, tracker.add(record.getSequenceNumber()), 1);
+        }
+    }
+
+    /**
+     * Make one attempt at a record. If it fails, schedule the next attempt
+     * and return at once; after the last attempt, dead-letter it. Used in
+     * serial mode, where nothing else waits on the record.
+     *
+     * @param record The record to be processed.
+     * @param entry The record's place in the shard, completed once it is done with.
+     * @param attempt The attempt being made, counting from 1.
+     */
+    private void processRecordWithRetries(final Record record, final whgSequenceTracker.Entry entry,
+            final int attempt) {
+        try {
+            //
+            // Logic to process record goes here.
+            //
+            processSingleRecord(record);
+        } catch (Throwable t) {
+            if (attempt < MAX_ATTEMPTS) {
+                retrying(record, attempt, t);
+                RETRIES.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        processRecordWithRetries(record, entry, attempt + 1);
+                    }
+                }, RETRY_BACKOFF_MILLIS << (attempt - 1), TimeUnit.MILLISECONDS);
+                return;
+            }
+            deadLetter(record, t);
+        }
+        tracker.complete(entry);
+        completedCount.increment();
+    }
 
-                    processedSuccessfully = true;
+    /**
+     * Make every attempt at a record on the lane's thread, backing off
+     * between them, so later records of its key wait until it is done with;
+     * after the last attempt, dead-letter it.
+     *
+     * @param record The record to be processed.
+     * @param entry The record's place in the shard, completed once it is done with.
+     */
+    private void processRecordInLane(Record record, whgSequenceTracker.Entry entry) {
+        for (int attempt = 1;; attempt++) {
+            try {
+                processSingleRecord(record);
+                break;
+            } catch (Throwable t) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    deadLetter(record, t);
                     break;
-                } catch (Throwable t) {
-                    LOG.warn("Caught throwable while processing record " + record, t);
                 }
-
-                // backoff if we encounter an exception.
+                retrying(record, attempt, t);
                 try {
-                    Thread.sleep(BACKOFF_TIME_IN_MILLIS);
+                    TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
                 } catch (InterruptedException e) {
-                    LOG.debug("Interrupted sleep", e);
+                    // shutting down; left incomplete, so it is replayed rather than checkpointed past
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
+        }
+        tracker.complete(entry);
+        completedCount.increment();
+    }
 
-            if (!processedSuccessfully) {
-                LOG.error("Couldn't process record " + record + ". Skipping the record.");
-            }
+    private void retrying(Record record, int attempt, Throwable cause) {
+        LOG.warn("Attempt " + attempt + " of " + MAX_ATTEMPTS + " failed for record "
+                + record.getSequenceNumber() + ". Retrying.", cause);
+        retryCount.increment();
+    }
+
+    /**
+     * Set aside a record that failed every attempt.
+     *
+     * @param record The record that failed.
+     * @param cause Why its last attempt failed.
+     */
+    private void deadLetter(Record record, Throwable cause) {
+        try {
+            deadLetters.send(kinesisShardId, record, String.valueOf(cause));
+            deadLetterCount.increment();
+            LOG.error("Couldn't process record " + record.getSequenceNumber() + " after " + MAX_ATTEMPTS
+                    + " attempts. Sent it to the dead letters.", cause);
+        } catch (Exception e) {
+            LOG.error("Couldn't process or dead-letter record " + record + ". Skipping the record.", e);
         }
     }
 
@@ -112,25 +287,62 @@ public class AmazonKinesisApplicationSampleRecordProcessor implements IRecordPro
      * Process a single record.
      * 
      * @param record The record to be processed.
+     * @throws IOException if the record cannot be decompressed
      */
-    private void processSingleRecord(Record record) {
+    private void processSingleRecord(Record record) throws IOException {
         // TODO Add your own record processing logic here
 
-        String data = null;
-        try {
-            // For this app, we interpret the payload as UTF-8 chars.
-            data = decoder.decode(record.getData()).toString();
-            // Assume this record came from AmazonKinesisSample and log its age.
-            long recordCreateTime = new Long(data.substring("testData-".length()));
-            long ageOfRecordInMillis = System.currentTimeMillis() - recordCreateTime;
-
-            LOG.info(record.getSequenceNumber() + ", " + record.getPartitionKey() + ", " + data + ", Created "
-                    + ageOfRecordInMillis + " milliseconds ago.");
-        } catch (NumberFormatException e) {
-            LOG.info("Record does not match sample record format. Ignoring record with data; " + data);
-        } catch (CharacterCodingException e) {
-            LOG.error("Malformed data: " + data, e);
+        // Records from sqsAlertStream carry an encoded alert, possibly compressed.
+        // A record that cannot be decompressed or decoded fails, and is dead-lettered.
+        ByteBuffer payload = whgRecordCompressor.decompress(record.getData());
+        if (!whgAlertCodec.isEncoded(payload)) {
+            LOG.info("Record " + record.getSequenceNumber() + " does not hold an encoded alert. Ignoring it.");
+            return;
+        }
+        whgAlert alert = whgAlertCodec.decode(payload);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(record.getSequenceNumber() + ", " + record.getPartitionKey() + ", source "
+                    + alert.getSourceId() + ", severity " + alert.getSeverity() + ", " + alert.getBody());
+        }
+        if (alert.getTrace() != null) {
+            recordTrace(alert.getTrace());
         }
+        kinesisAlertAnalysis.analyze(alert);
+    }
+
+    /**
+     * Records how long each hop took to hand the alert on, the last one being
+     * the stream itself, and the alert's total age on arrival here.
+     *
+     * @param trace The trace carried by the record.
+     */
+    private void recordTrace(whgTrace trace) {
+        long now = System.currentTimeMillis();
+        String previous = null;
+        for (int i = 0; i < trace.getHopCount(); i++) {
+            // a stage seen twice, such as one that retried, is timed as one hop
+            if (!trace.getStage(i).equals(previous)) {
+                hopHistogram(trace.getStage(i)).record(TimeUnit.MILLISECONDS.toNanos(trace.getHopDuration(i)));
+            }
+            previous = trace.getStage(i);
+        }
+        long lastHop = trace.getHopCount() == 0 ? trace.getIngestMillis() : trace.getHopMillis(trace.getHopCount() - 1);
+        hopHistogram(STREAM_HOP).record(TimeUnit.MILLISECONDS.toNanos(now - lastHop));
+        ageHistogram.record(TimeUnit.MILLISECONDS.toNanos(now - trace.getIngestMillis()));
+        alertAgeMillis = now - trace.getIngestMillis();
+    }
+
+    private whgHistogram hopHistogram(String stage) {
+        whgHistogram histogram = hopHistograms.get(stage);
+        if (histogram == null) {
+            // lanes and retries may get here at once; keep whichever was registered first
+            histogram = whgMetrics.histogram("whg_trace_hop_seconds", "stage", stage);
+            whgHistogram existing = hopHistograms.putIfAbsent(stage, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
     }
 
     /**
@@ -141,42 +353,16 @@ public class AmazonKinesisApplicationSampleRecordProcessor implements IRecordPro
         LOG.info("Shutting down record processor for shard: " + kinesisShardId);
         // Important to checkpoint after reaching end of shard, so we can start processing data from child shards.
         if (reason == ShutdownReason.TERMINATE) {
-            checkpoint(checkpointer);
-        }
-    }
-
-    /** Checkpoint with retries.
-     * @param checkpointer
-     */
-    private void checkpoint(IRecordProcessorCheckpointer checkpointer) {
-        LOG.info("Checkpointing shard " + kinesisShardId);
-        for (int i = 0; i < NUM_RETRIES; i++) {
-            try {
-                checkpointer.checkpoint();
-                break;
-            } catch (ShutdownException se) {
-                // Ignore checkpoint if the processor instance has been shutdown (fail over).
-                LOG.info("Caught shutdown exception, skipping checkpoint.", se);
-                break;
-            } catch (ThrottlingException e) {
-                // Backoff and re-attempt checkpoint upon transient failures
-                if (i >= (NUM_RETRIES - 1)) {
-                    LOG.error("Checkpoint failed after " + (i + 1) + "attempts.", e);
-                    break;
-                } else {
-                    LOG.info("Transient issue when checkpointing - attempt " + (i + 1) + " of "
-                            + NUM_RETRIES, e);
-                }
-            } catch (InvalidStateException e) {
-                // This indicates an issue with the DynamoDB table (check for table, provisioned IOPS).
-                LOG.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
-                break;
-            }
+            // the end of the shard may only be checkpointed once every record, retries included, is done
             try {
-                Thread.sleep(BACKOFF_TIME_IN_MILLIS);
+                tracker.awaitPendingAtMost(0);
+                checkpoints.checkpointEndOfShard(checkpointer);
             } catch (InterruptedException e) {
-                LOG.debug("Interrupted sleep", e);
+                Thread.currentThread().interrupt();
             }
+        } else {
+            // the lease is gone; the worker that holds it now checkpoints this shard
+            checkpoints.close();
         }
     }
 }
@@ -12,10 +12,10 @@
  * express or implied. See the License for the specific language governing
  * permissions and limitations under the License.
  */
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 import java.util.Random;
 
@@ -43,16 +43,13 @@ import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
 import com.amazonaws.services.kinesis.model.DescribeStreamResult;
 import com.amazonaws.services.kinesis.model.ListStreamsRequest;
 import com.amazonaws.services.kinesis.model.ListStreamsResult;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
 import com.amazonaws.services.kinesis.model.StreamDescription;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -74,10 +71,60 @@ import net.spy.memcached.MemcachedClient;
  * <p>
  * <b>WARNING:</b> To avoid accidental leakage of your credentials, DO NOT keep
  * the credentials file in your source directory.
+ * <p>
+ * main forwards alerts from alertCache into the stream. The analysis of
+ * the stream runs in the KCL record processor, which starts it with
+ * {@link #startAnalysis()} when it is initialized and then passes every
+ * alert it reads to {@link #analyze(whgAlert)}; per-source counts, rates and
+ * severity mix over time windows are kept by {@link whgWindowAggregator},
+ * and sources whose rate suddenly jumps are sent to the alertBursts queue
+ * by {@link whgBurstDetector}.
  */
 public class kinesisAlertAnalysis {
 
+	private static final whgLog log = whgLog.get("Analysis");
+
     private static AmazonKinesisClient kinesis;
+
+	private static volatile whgWindowAggregator windows;
+	private static volatile whgBurstDetector bursts;
+
+	/**
+	 * Adds an alert read from the stream to the analysis.
+	 *
+	 * @throws IllegalStateException if the analysis has not been started
+	 */
+	public static void analyze(whgAlert alert) {
+		whgBurstDetector detector = bursts;
+		if (detector == null) {
+			throw new IllegalStateException("Alert analysis has not been started");
+		}
+		String sourceId = alert.getSourceId();
+		if (sourceId == null) {
+			sourceId = "unknown";
+		}
+		windows.add(sourceId, alert.getSeverity(), System.currentTimeMillis());
+		detector.add(sourceId);
+	}
+
+
+	/**
+	 * Builds and starts the window aggregator and burst detector, once; later
+	 * calls return at once. Both are built before either is started, so a
+	 * bad setting fails here and leaves no thread behind.
+	 */
+	public static synchronized void startAnalysis() {
+		if (bursts != null) {
+			return;
+		}
+		whgWindowAggregator aggregator = whgWindowAggregator.fromProperties();
+		whgBurstDetector detector = whgBurstDetector.fromProperties();
+		aggregator.start();
+		detector.start();
+		windows = aggregator;
+		// set last, so that once it is seen both are
+		bursts = detector;
+	}
 	
     private static void init() throws Exception {
         /*
@@ -186,61 +233,59 @@ public class kinesisAlertAnalysis {
 			String nextQueue = "alertReceive";
 
 			// Receive messages
-			System.out.println("Receiving messages from " + thisQueue + ".");
-			ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(thisQueue);
+			ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(thisQueue)
+					.withMessageAttributeNames(whgTrace.ATTRIBUTE)
+					.withAttributeNames("SentTimestamp");
 			List<Message> messages = sqs.receiveMessage(receiveMessageRequest).getMessages();
-			System.out.println("Message count for " + thisQueue + ": " + 
-					messages.size() + "\n");
+			log.debug("received", "queue", thisQueue, "count", messages.size());
+
+			// records go out to the stream in PutRecords batches
+			whgKinesisProducer producer = new whgKinesisProducer(kinesis, myStreamName);
+			whgPartitioner partitioner = whgHelper.getPartitioner();
+			whgRecordCompressor compressor = whgRecordCompressor.fromProperties();
+			List<whgKinesisProducer.Put> puts = new ArrayList<whgKinesisProducer.Put>();
 
 			for (Message message : messages) {
 
-				System.out.println("  Message");
-				System.out.println("    MessageId:     " + message.getMessageId());
-				System.out.println("    ReceiptHandle: " + message.getReceiptHandle());
-				System.out.println("    MD5OfBody:     " + message.getMD5OfBody());
-				System.out.println("    Body:          " + message.getBody());
-				for (Entry<String, String> entry : message.getAttributes().entrySet()) {
-					System.out.println("  Attribute");
-					System.out.println("    Name:  " + entry.getKey());
-					System.out.println("    Value: " + entry.getValue());
-				}
-				System.out.println();
+				whgHelper.printMessage(message);
 		        
-		        // Write record to the stream
-	            long createTime = System.currentTimeMillis();
-	            PutRecordRequest putRecordRequest = new PutRecordRequest();
-	            putRecordRequest.setStreamName(myStreamName);
-	            putRecordRequest.setData(ByteBuffer.wrap(String.format(message.getBody(), createTime).getBytes()));
-	            putRecordRequest.setPartitionKey(String.format("partitionKey-%d", createTime));
-	            PutRecordResult putRecordResult = kinesis.putRecord(putRecordRequest);
-	            System.out.printf("Successfully put record, partition key : %s, ShardID : %s, SequenceNumber : %s.\n",
-	                    putRecordRequest.getPartitionKey(),
-	                    putRecordResult.getShardId(),
-	                    putRecordResult.getSequenceNumber());
-
-				// then send message to cache queue
-				System.out.println("Sending messages to next queue.");
-				sqs.sendMessage(new SendMessageRequest(nextQueue, message.getBody()));
-
-				// delete message after sending to persist queue
-				System.out.println("Deleting message from this queue.\n");
-				String messageRecieptHandle = message.getReceiptHandle();
-				sqs.deleteMessage(new DeleteMessageRequest(thisQueue, messageRecieptHandle));
+		        // Queue record for the stream, keyed by its source
+	            whgAlert alert = whgAlertCodec.decodeText(message.getBody())
+	                    .withTrace(whgTrace.from(message).hop(thisQueue));
+	            String sourceId = alert.getSourceId();
+	            if (sourceId == null) {
+	                sourceId = message.getMessageId();
+	            }
+	            puts.add(producer.put(partitioner.partitionKey(sourceId), partitioner.explicitHashKey(sourceId),
+	                    ByteBuffer.wrap(compressor.compress(whgAlertCodec.encode(alert)))));
 			}
 
+			// streamed messages go on to the next queue and leave this one in batches
+			whgBatchForwarder forwarder = new whgBatchForwarder(sqs, thisQueue, nextQueue);
+			for (int i = 0; i < messages.size(); i++) {
+				Message message = messages.get(i);
+
+				// wait for the record to be in the stream before passing the message on
+				PutRecordsResultEntry putRecordResult;
+				try {
+					putRecordResult = puts.get(i).await();
+				} catch (AmazonClientException e) {
+					log.warn("putFailed", "messageId", message.getMessageId(), "error", e);
+					continue;
+				}
+				log.debug("put", "messageId", message.getMessageId(), "partitionKey", puts.get(i).getPartitionKey(),
+						"shardId", putRecordResult.getShardId(), "sequenceNumber", putRecordResult.getSequenceNumber());
+				forwarder.add(message, message.getBody());
+			}
+
+			// then send messages to next queue and delete them from this one
+			log.debug("forwarding", "queue", nextQueue, "count", forwarder.size());
+			forwarder.flush();
+
 		} catch (AmazonServiceException ase) {
-			System.out.println("Caught an AmazonServiceException, which means your request made it " +
-					"to Amazon SQS, but was rejected with an error response for some reason.");
-			System.out.println("Error Message:    " + ase.getMessage());
-			System.out.println("HTTP Status Code: " + ase.getStatusCode());
-			System.out.println("AWS Error Code:   " + ase.getErrorCode());
-			System.out.println("Error Type:       " + ase.getErrorType());
-			System.out.println("Request ID:       " + ase.getRequestId());
+			whgHelper.errorMessagesAse(ase);
 		} catch (AmazonClientException ace) {
-			System.out.println("Caught an AmazonClientException, which means the client encountered " +
-					"a serious internal problem while trying to communicate with SQS, such as not " +
-					"being able to access the network.");
-			System.out.println("Error Message: " + ace.getMessage());
+			whgHelper.errorMessagesAce(ace);
 		}
 	}
 	
@@ -12,20 +12,13 @@
  * express or implied. See the License for the specific language governing
  * permissions and limitations under the License.
  */
-import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.Future;
 
-import net.spy.memcached.MemcachedClient;
-
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 /**
  * This sample demonstrates how to make basic requests to Amazon SQS using the
@@ -42,9 +35,19 @@ import com.amazonaws.services.sqs.model.SendMessageRequest;
  * <b>WARNING:</b> To avoid accidental leakage of your credentials, DO NOT keep
  * the credentials file in your source directory.
  */
-public class sqsAlertCache {
+public class sqsAlertCache implements whgBatchStageHandler {
+
+	private static final whgLog log = whgLog.get("Cache");
+
+	// how long an alert stays in the cache
+	private static final int EXPIRY_SECONDS = 360000;
+
+	private final whgCacheClient cache;
+	private final whgDownstreamLimiter cacheLimiter = whgDownstreamLimiter.get("cache");
 
-	static AmazonDynamoDBClient dynamoDB;
+	public sqsAlertCache(whgCacheClient cache) {
+		this.cache = cache;
+	}
 
 	public static void main(String[] args) throws Exception {
 
@@ -59,47 +62,60 @@ public class sqsAlertCache {
 		String thisQueue = "alertCache";
 		String nextQueue = "alertStream";
 
-		while (1 > 0) {
+		// one cache connection for the whole process
+		whgCacheClient cache = whgCacheClient.get();
+
+		// receive, cache and forward until the process is stopped
+		new whgStageRuntime(sqs, thisQueue, nextQueue, new sqsAlertCache(cache)).run();
+	}
 
-			// pull list of current messages (up to 10) in the queue
-			List<Message> messages = whgHelper.getMessagesFromQueue(thisQueue, sqs);
-			System.out.println("Count of messages in " + thisQueue + ": " + messages.size());
 
-			try {
+	@Override
+	public void processBatch(List<Message> messages, whgBatchForwarder forwarder) throws InterruptedException {
 
-				for (Message message : messages) {
+		cacheLimiter.acquire();
+		try {
+			// issue every set before waiting so the batch goes out pipelined
+			List<Future<Boolean>> sets = new ArrayList<Future<Boolean>>(messages.size());
+			for (Message message : messages) {
+				whgHelper.printMessage(message);
+				// the cache holds the alert JSON
+				whgAlert alert = whgAlertCodec.decodeText(message.getBody());
+				sets.add(cache.set(message.getMessageId(), EXPIRY_SECONDS, alert.getBody()));
+			}
 
-					whgHelper.printMessage(message);
-					for (Entry<String, String> entry : message.getAttributes().entrySet()) {
-						whgHelper.printMessageEntry(entry);
-					}
+			// then send each cached message to stream queue
+			for (int i = 0; i < messages.size(); i++) {
+				Message message = messages.get(i);
+				if (cache.await(sets.get(i))) {
+					forwarder.add(message, message.getBody());
+				} else {
+					log.warn("setFailed", "messageId", message.getMessageId());
+				}
+			}
+		} finally {
+			cacheLimiter.release();
+		}
+	}
 
-					String configEndpoint = "alertsbrdregrol-001.tiluxk.0001.use1.cache.amazonaws.com";
-					Integer clusterPort = 6379;
 
-					MemcachedClient client = new MemcachedClient(new InetSocketAddress(configEndpoint, clusterPort));
-					// The client will connect to the other cache nodes automatically
-					// Store a data item for an hour. The client will decide which cache
-					client.set(message.getMessageId(), 360000, message.getBody());
+	@Override
+	public String process(Message message) throws Exception {
 
-					// then send message to cache queue
-					System.out.println("Sending messages to next queue.");
-					sqs.sendMessage(new SendMessageRequest(nextQueue, message.getBody()));
+		whgHelper.printMessage(message);
 
-					// delete message after sending to persist queue
-					System.out.println("Deleting message from this queue.\n");
-					String messageRecieptHandle = message.getReceiptHandle();
-					sqs.deleteMessage(new DeleteMessageRequest(thisQueue, messageRecieptHandle));
-				}
-				Thread.sleep(20000); // do nothing for 1000 miliseconds (1 second)
-				
-			} catch (AmazonServiceException ase) {
-				whgHelper.errorMessagesAse(ase);	
-			} catch (AmazonClientException ace) {
-				whgHelper.errorMessagesAce(ace);
+		// Store a data item. The client will decide which cache node holds it
+		cacheLimiter.acquire();
+		try {
+			whgAlert alert = whgAlertCodec.decodeText(message.getBody());
+			if (!cache.await(cache.set(message.getMessageId(), EXPIRY_SECONDS, alert.getBody()))) {
+				throw new Exception("Cache did not store message " + message.getMessageId());
 			}
+		} finally {
+			cacheLimiter.release();
 		}
+
+		// then send message to stream queue
+		return message.getBody();
 	}
 }
-
-
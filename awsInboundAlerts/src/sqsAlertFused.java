@@ -0,0 +1,458 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Runs the inbound, persist, cache and stream stages in one process.
+ * <p>
+ * Instead of passing each alert through the alertPersist, alertCache and
+ * alertStream queues, the stages are connected by bounded in-memory rings.
+ * Alerts are received from alertInbound, handed from stage to stage, and
+ * once the last stage is done they are sent to alertErrorHandling and deleted
+ * from alertInbound in batches. A stage thread takes every alert waiting on
+ * its ring at once, so a {@link whgBatchStageHandler} gets them in one call.
+ * An alert that fails in any stage is left on alertInbound and is received
+ * again after the visibility timeout.
+ * <p>
+ * Use this when the stages do not need to scale independently. Settings are
+ * read from system properties:
+ * <ul>
+ * <li>whg.receivers - receiver threads polling alertInbound (default 1)</li>
+ * <li>whg.fused.workers - threads per stage (default 1)</li>
+ * <li>whg.fused.batchSize - most alerts a stage thread takes from its ring at once (default 100)</li>
+ * <li>whg.fused.ackLingerMillis - longest a finished alert waits for a fuller acknowledgement batch (default 10)</li>
+ * <li>whg.maxInFlight - alerts received but not yet acknowledged (default 100)</li>
+ * </ul>
+ */
+public class sqsAlertFused {
+
+	private static final int RING_CAPACITY = 1024;
+	private static final long DRAIN_TIMEOUT_MILLIS = 60000L;
+
+	private static final whgLog log = whgLog.get("Fused");
+
+	public static void main(String[] args) throws Exception {
+
+		// get credentials
+		String user = "jreilly";
+		AWSCredentials credentials = whgHelper.getCred(user);
+
+		// use credentials to set access to SQS
+		AmazonSQS sqs = whgHelper.setQueueAccess(credentials);
+
+		// only the first and last queue of the chain are used
+		String thisQueue = "alertInbound";
+		String nextQueue = "alertErrorHandling";
+
+		// set access to database with credentials, create the table if missing
+		AmazonDynamoDB dynamoDB = whgHelper.setDatabaseAccess(credentials);
+		String tableName = "alerts";
+		whgHelper.setTable(dynamoDB, tableName);
+
+		// set access to stream instance
+		AmazonKinesis kinesis = whgHelper.setStreamAccess(credentials);
+		String streamName = "alertsStream";
+
+		String[] stageNames = { "alertInbound", "alertPersist", "alertCache", "alertStream" };
+		whgStageHandler[] stages = {
+				new sqsAlertInbound(sqs),
+				new sqsAlertPersist(sqs, dynamoDB, tableName),
+				new sqsAlertCache(whgCacheClient.get()),
+				new sqsAlertStream(sqs, kinesis, streamName) };
+
+		// receive, run every stage and acknowledge until the process is stopped
+		new sqsAlertFused(sqs, thisQueue, nextQueue, stageNames, stages).run();
+	}
+
+
+	/**
+	 * An alert moving between stages, with the message it was received in.
+	 */
+	private static final class Alert {
+
+		final Message source;
+		String body;
+		whgTrace trace;
+
+		Alert(Message source) {
+			this.source = source;
+			this.body = source.getBody();
+			this.trace = whgTrace.from(source);
+		}
+	}
+
+
+	private final AmazonSQS sqs;
+	private final String thisQueue;
+	private final String nextQueue;
+	private final String[] stageNames;
+	private final whgStageHandler[] stages;
+
+	// rings.get(i) feeds stage i; the last ring feeds the acknowledger
+	private final List<whgRingBuffer<Alert>> rings = new ArrayList<whgRingBuffer<Alert>>();
+
+	private final int receiverCount;
+	private final int workerCount;
+	private final int stageBatchSize;
+	private final long ackLingerNanos;
+	private final Semaphore inFlight;
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile boolean receiving = true;
+	private volatile boolean running = true;
+	private final List<Thread> receivers = new ArrayList<Thread>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	public sqsAlertFused(AmazonSQS sqs, String thisQueue, String nextQueue, String[] stageNames,
+			whgStageHandler[] stages) {
+		this.sqs = sqs;
+		this.thisQueue = thisQueue;
+		this.nextQueue = nextQueue;
+		this.stageNames = stageNames;
+		this.stages = stages;
+		for (int i = 0; i <= stages.length; i++) {
+			rings.add(new whgRingBuffer<Alert>(RING_CAPACITY));
+		}
+
+		this.receiverCount = Math.max(1, Integer.getInteger("whg.receivers", 1));
+		this.workerCount = Math.max(1, Integer.getInteger("whg.fused.workers", 1));
+		this.stageBatchSize = Math.max(1, Integer.getInteger("whg.fused.batchSize", 100));
+		this.ackLingerNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("whg.fused.ackLingerMillis", 10L));
+		this.inFlight = new Semaphore(Math.max(whgHelper.MAX_MESSAGES_PER_RECEIVE,
+				Integer.getInteger("whg.maxInFlight", 100)));
+	}
+
+
+	/**
+	 * Starts every thread and blocks until the pipeline has been shut down
+	 * and drained.
+	 */
+	public void run() throws InterruptedException {
+
+		whgMetrics.startEndpoint();
+
+		log.info("start", "queue", thisQueue, "next", nextQueue, "stages", stages.length,
+				"workersPerStage", workerCount);
+
+		for (int i = 0; i < stages.length; i++) {
+			for (int w = 0; w < workerCount; w++) {
+				final int stage = i;
+				workers.add(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						work(stage);
+					}
+				}, stageNames[i] + "-worker-" + w));
+			}
+		}
+		workers.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acknowledge();
+			}
+		}, thisQueue + "-acknowledger"));
+		for (int i = 0; i < receiverCount; i++) {
+			receivers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receive();
+				}
+			}, thisQueue + "-receiver-" + i));
+		}
+
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread receiver : receivers) {
+			receiver.start();
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, thisQueue + "-shutdown"));
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+
+	/**
+	 * Stops receiving, waits for every received alert to finish all stages
+	 * and be acknowledged, then stops the stage threads.
+	 */
+	public synchronized void shutdown() {
+		if (!receiving) {
+			return;
+		}
+		receiving = false;
+		log.info("draining", "alerts", pending.get());
+
+		try {
+			for (Thread receiver : receivers) {
+				receiver.join(DRAIN_TIMEOUT_MILLIS);
+			}
+			long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+			while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			if (pending.get() > 0) {
+				log.warn("drainTimeout", "alerts", pending.get(), "detail", "will be redelivered");
+			}
+			running = false;
+			for (Thread worker : workers) {
+				worker.join(TimeUnit.SECONDS.toMillis(5));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			whgDownstreamLimiter.report();
+			log.info("stopped");
+			whgLog.flush();
+		}
+	}
+
+
+	private void receive() {
+
+		int emptyReceives = 0;
+		while (receiving) {
+			try {
+				// reserve room for a full receive, then give back what was not used
+				inFlight.acquire(whgHelper.MAX_MESSAGES_PER_RECEIVE);
+				List<Message> messages = Collections.emptyList();
+				try {
+					messages = whgHelper.getMessagesFromQueue(thisQueue, sqs);
+				} finally {
+					inFlight.release(whgHelper.MAX_MESSAGES_PER_RECEIVE - messages.size());
+				}
+				log.debug("received", "queue", thisQueue, "count", messages.size());
+
+				pending.addAndGet(messages.size());
+				for (Message message : messages) {
+					rings.get(0).put(new Alert(message));
+				}
+				emptyReceives = whgHelper.backoffIfEmpty(messages, emptyReceives);
+
+			} catch (AmazonServiceException ase) {
+				whgHelper.errorMessagesAse(ase);
+			} catch (AmazonClientException ace) {
+				whgHelper.errorMessagesAce(ace);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+
+	private void work(int stage) {
+
+		whgStageHandler handler = stages[stage];
+		whgRingBuffer<Alert> in = rings.get(stage);
+		whgRingBuffer<Alert> out = rings.get(stage + 1);
+		whgHistogram latency = whgMetrics.histogram("whg_stage_process_seconds", "queue", stageNames[stage]);
+		whgCounter errors = whgMetrics.counter("whg_stage_errors_total", "queue", stageNames[stage]);
+
+		List<Alert> alerts = new ArrayList<Alert>(stageBatchSize);
+		int idle = 0;
+		while (running) {
+			// take whatever has gathered, up to a batch, so batching stages see more than one alert
+			Alert next;
+			while (alerts.size() < stageBatchSize && (next = in.poll()) != null) {
+				alerts.add(next);
+			}
+			if (alerts.isEmpty()) {
+				whgRingBuffer.idle(idle++);
+				continue;
+			}
+			idle = 0;
+
+			if (handler instanceof whgBatchStageHandler) {
+				processBatch(stage, (whgBatchStageHandler) handler, alerts, latency, errors);
+			} else {
+				for (Alert alert : alerts) {
+					if (process(stage, handler, alert, latency, errors)) {
+						out.put(alert);
+					}
+				}
+			}
+			alerts.clear();
+		}
+	}
+
+
+	/**
+	 * Runs one alert through a stage.
+	 *
+	 * @return false if it failed and was released
+	 */
+	private boolean process(int stage, whgStageHandler handler, Alert alert, whgHistogram latency,
+			whgCounter errors) {
+		// a null body means an earlier stage asked for the alert to be dropped
+		if (alert.body == null) {
+			return true;
+		}
+		long start = System.nanoTime();
+		try {
+			alert.body = handler.process(view(alert));
+			latency.recordSince(start);
+			alert.trace = alert.trace.hop(stageNames[stage]);
+			return true;
+		} catch (AmazonServiceException ase) {
+			whgHelper.errorMessagesAse(ase);
+		} catch (AmazonClientException ace) {
+			whgHelper.errorMessagesAce(ace);
+		} catch (Exception e) {
+			// left on the inbound queue; SQS redelivers it after the visibility timeout
+			log.warn("processFailed", "stage", stageNames[stage], "messageId", alert.source.getMessageId(),
+					"error", e);
+		}
+		errors.increment();
+		release(1);
+		return false;
+	}
+
+
+	/**
+	 * Runs alerts through a batching stage in one call. Alerts the stage does
+	 * not pass on are released and redelivered later.
+	 */
+	private void processBatch(int stage, whgBatchStageHandler handler, List<Alert> alerts, whgHistogram latency,
+			whgCounter errors) {
+		whgRingBuffer<Alert> out = rings.get(stage + 1);
+		List<Alert> live = new ArrayList<Alert>(alerts.size());
+		List<Message> views = new ArrayList<Message>(alerts.size());
+		for (Alert alert : alerts) {
+			if (alert.body == null) {
+				out.put(alert);
+			} else {
+				live.add(alert);
+				views.add(view(alert));
+			}
+		}
+		if (live.isEmpty()) {
+			return;
+		}
+
+		// the forwarder only collects here; this runtime passes alerts on itself
+		whgBatchForwarder collected = new whgBatchForwarder(sqs, thisQueue, nextQueue);
+		long start = System.nanoTime();
+		try {
+			handler.processBatch(views, collected);
+			latency.recordSince(start);
+		} catch (AmazonServiceException ase) {
+			errors.increment();
+			whgHelper.errorMessagesAse(ase);
+		} catch (AmazonClientException ace) {
+			errors.increment();
+			whgHelper.errorMessagesAce(ace);
+		} catch (Exception e) {
+			errors.increment();
+			log.warn("batchFailed", "stage", stageNames[stage], "count", live.size(), "error", e);
+		}
+
+		Map<Message, String> bodies = collected.takePending();
+		for (int i = 0; i < live.size(); i++) {
+			Alert alert = live.get(i);
+			Message view = views.get(i);
+			if (bodies.containsKey(view)) {
+				alert.body = bodies.get(view);
+				alert.trace = alert.trace.hop(stageNames[stage]);
+				out.put(alert);
+			} else {
+				// left on the inbound queue; SQS redelivers it after the visibility timeout
+				release(1);
+			}
+		}
+	}
+
+
+	private void acknowledge() {
+
+		whgRingBuffer<Alert> in = rings.get(stages.length);
+		whgBatchForwarder forwarder = new whgBatchForwarder(sqs, thisQueue, nextQueue);
+
+		int batched = 0;
+		long oldest = 0;
+		int idle = 0;
+		while (running || batched > 0) {
+			Alert alert = in.poll();
+			if (alert != null) {
+				if (batched == 0) {
+					oldest = System.nanoTime();
+				}
+				forwarder.add(alert.source, alert.body, alert.trace);
+				batched++;
+				idle = 0;
+			}
+
+			// flush a full batch, or a partial one once its oldest alert has lingered long enough
+			if (batched == whgBatchForwarder.MAX_BATCH_ENTRIES
+					|| (batched > 0 && (System.nanoTime() - oldest >= ackLingerNanos || !running))) {
+				try {
+					forwarder.flush();
+				} catch (AmazonServiceException ase) {
+					whgHelper.errorMessagesAse(ase);
+				} catch (AmazonClientException ace) {
+					whgHelper.errorMessagesAce(ace);
+				} finally {
+					release(batched);
+					batched = 0;
+				}
+			} else if (alert == null) {
+				whgRingBuffer.idle(idle++);
+			}
+		}
+	}
+
+
+	private void release(int alerts) {
+		pending.addAndGet(-alerts);
+		inFlight.release(alerts);
+	}
+
+
+	/**
+	 * The message a stage sees: the received message carrying the body and
+	 * trace the previous stage produced.
+	 */
+	private static Message view(Alert alert) {
+		return new Message()
+				.withMessageId(alert.source.getMessageId())
+				.withReceiptHandle(alert.source.getReceiptHandle())
+				.withMD5OfBody(alert.source.getMD5OfBody())
+				.withAttributes(alert.source.getAttributes())
+				.withMessageAttributes(alert.trace.toAttributes())
+				.withBody(alert.body);
+	}
+}
@@ -12,18 +12,10 @@
  * express or implied. See the License for the specific language governing
  * permissions and limitations under the License.
  */
-import java.util.List;
-import java.util.Map.Entry;
 
-import org.apache.commons.codec.binary.Base64;
-
-import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 /**
  * This sample demonstrates how to make basic requests to Amazon SQS using the
@@ -40,7 +32,11 @@ import com.amazonaws.services.sqs.model.SendMessageRequest;
  * <b>WARNING:</b> To avoid accidental leakage of your credentials, DO NOT keep
  * the credentials file in your source directory.
  */
-public class sqsAlertInbound {
+public class sqsAlertInbound implements whgStageHandler {
+
+	private static final whgLog log = whgLog.get("Inbound");
+
+	private final whgRejectQueue rejects;
 
 	public static void main(String[] args) throws Exception {
 
@@ -55,47 +51,33 @@ public class sqsAlertInbound {
 		String thisQueue = "alertInbound";
 		String nextQueue = "alertPersist";
 
-		while (1 > 0) {
-
-			// pull list of current messages (up to 10) in the queue
-			List<Message> messages = whgHelper.getMessagesFromQueue(thisQueue, sqs);
-			System.out.println("Count of messages in " + thisQueue + ": " + messages.size());
-
-			try {
-
-				for (Message message : messages) {
+		// receive, transform and forward until the process is stopped
+		new whgStageRuntime(sqs, thisQueue, nextQueue, new sqsAlertInbound(sqs)).run();
+	}
 
-					whgHelper.printMessage(message);
-					for (Entry<String, String> entry : message.getAttributes().entrySet()) {
-						whgHelper.printMessageEntry(entry);
-					}
 
-					// validate JSON for completeness and form and handle errors
-//					if (sqs == null) {
-//						sqs.sendMessage(new SendMessageRequest("alertErrorHandling", message.getBody()));
-//					}
+	public sqsAlertInbound(AmazonSQS sqs) {
+		this.rejects = new whgRejectQueue(sqs, "alertInbound");
+	}
 
-					// call a function to transform message
-					String  alertJSON  = String.valueOf(Base64.decodeBase64(message.getBody()));
-					System.out.println("Transformed JSON: " + alertJSON);
 
-					// send message to next queue
-					System.out.println("Sending message to next queue.");
-					sqs.sendMessage(new SendMessageRequest(nextQueue, alertJSON));
+	@Override
+	public String process(Message message) {
 
-					// delete message from this queue
-					System.out.println("Deleting message.\n");
-					String messageRecieptHandle = message.getReceiptHandle();
-					sqs.deleteMessage(new DeleteMessageRequest(thisQueue, messageRecieptHandle));
+		whgHelper.printMessage(message);
 
-				}
-				Thread.sleep(20000); // do nothing for 1000 miliseconds (1 second)
-				
-			} catch (AmazonServiceException ase) {
-				whgHelper.errorMessagesAse(ase);	
-			} catch (AmazonClientException ace) {
-				whgHelper.errorMessagesAce(ace);
-			}
+		// decode and parse the alert in one pass; a malformed body would fail
+		// on every delivery, so it is set aside and deleted instead
+		whgAlert alert;
+		try {
+			alert = whgAlertParser.parse(message.getBody());
+		} catch (RuntimeException e) {
+			rejects.reject(message, e);
+			return null;
 		}
+		log.debug("transformed", "messageId", message.getMessageId(), "sourceId", alert.getSourceId(), "json", alert.getBody());
+
+		// forward the parsed fields with the JSON so later stages need not parse it again
+		return whgAlertCodec.encodeText(alert);
 	}
 }
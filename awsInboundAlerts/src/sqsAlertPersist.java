@@ -12,23 +12,16 @@
  * express or implied. See the License for the specific language governing
  * permissions and limitations under the License.
  */
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.regions.Region;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
-import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
-import com.amazonaws.services.dynamodbv2.model.PutItemResult;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 /**
  * This sample demonstrates how to make basic requests to Amazon SQS using the
@@ -45,9 +38,17 @@ import com.amazonaws.services.sqs.model.SendMessageRequest;
  * <b>WARNING:</b> To avoid accidental leakage of your credentials, DO NOT keep
  * the credentials file in your source directory.
  */
-public class sqsAlertPersist {
+public class sqsAlertPersist implements whgBatchStageHandler {
 
-	static AmazonDynamoDBClient dynamoDB;
+	private static final whgLog log = whgLog.get("Persist");
+
+	private final whgDynamoBatchWriter writer;
+	private final whgRejectQueue rejects;
+
+	public sqsAlertPersist(AmazonSQS sqs, AmazonDynamoDB dynamoDB, String tableName) {
+		this.writer = new whgDynamoBatchWriter(dynamoDB, tableName, "alertId");
+		this.rejects = new whgRejectQueue(sqs, "alertPersist");
+	}
 
 	public static void main(String[] args) throws Exception {
 
@@ -63,55 +64,90 @@ public class sqsAlertPersist {
 		String nextQueue = "alertCache";
 
 		// set access to database with credentials
-		dynamoDB = new AmazonDynamoDBClient(credentials);
-		Region usEast1 = Region.getRegion(Regions.US_EAST_1);
-		dynamoDB.setRegion(usEast1);
+		AmazonDynamoDB dynamoDB = whgHelper.setDatabaseAccess(credentials);
 
 		// check for table, create one if missing
 		String tableName = "alerts";
 		whgHelper.setTable(dynamoDB, tableName);
 
-		while (1 > 0) {
+		// receive, persist and forward until the process is stopped
+		new whgStageRuntime(sqs, thisQueue, nextQueue, new sqsAlertPersist(sqs, dynamoDB, tableName)).run();
+	}
+
 
-			// pull list of current messages (up to 10) in the queue
-			List<Message> messages = whgHelper.getMessagesFromQueue(thisQueue, sqs);
-			System.out.println("Count of messages in " + thisQueue + ": " + messages.size());
+	@Override
+	public void processBatch(List<Message> messages, whgBatchForwarder forwarder) throws InterruptedException {
 
+		// decode every message first, so a bad body is set aside on its own
+		// instead of failing the receive after some items are queued
+		List<Message> decoded = new ArrayList<Message>(messages.size());
+		List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>(messages.size());
+		for (Message message : messages) {
+			whgHelper.printMessage(message);
 			try {
+				items.add(newItem(message));
+			} catch (RuntimeException e) {
+				rejects.reject(message, e, forwarder);
+				continue;
+			}
+			decoded.add(message);
+		}
+
+		// queue every item of the receive before waiting so they share BatchWriteItem calls
+		List<whgDynamoBatchWriter.Write> writes = new ArrayList<whgDynamoBatchWriter.Write>(items.size());
+		for (Map<String, AttributeValue> item : items) {
+			writes.add(writer.write(item));
+		}
 
-				for (Message message : messages) {
-
-					whgHelper.printMessage(message);
-					for (Entry<String, String> entry : message.getAttributes().entrySet()) {
-						whgHelper.printMessageEntry(entry);
-					}
-
-					// Add an item to DynamoDB table
-					Map<String, AttributeValue> item = whgHelper.newAlert(message.getBody());
-					PutItemRequest putItemRequest = new PutItemRequest(tableName, item);
-					PutItemResult putItemResult = dynamoDB.putItem(putItemRequest);
-					System.out.println();
-					System.out.println("Result: " + putItemResult);        	
-
-					// then send message to cache queue
-					System.out.println("Sending messages to next queue.");
-					sqs.sendMessage(new SendMessageRequest(nextQueue, message.getBody()));
-
-					// delete message after sending to persist queue
-					System.out.println("Deleting message from this queue.\n");
-					String messageRecieptHandle = message.getReceiptHandle();
-					sqs.deleteMessage(new DeleteMessageRequest(thisQueue, messageRecieptHandle));
-					
-				}
-				Thread.sleep(20000); // do nothing for 2000 miliseconds (2 second)
-				
-			} catch (AmazonServiceException ase) {
-				whgHelper.errorMessagesAse(ase);	
-			} catch (AmazonClientException ace) {
-				whgHelper.errorMessagesAce(ace);
+		// then send each stored message to cache queue
+		for (int i = 0; i < decoded.size(); i++) {
+			Message message = decoded.get(i);
+			try {
+				writes.get(i).await();
+			} catch (AmazonClientException e) {
+				log.warn("writeFailed", "messageId", message.getMessageId(), "error", e);
+				continue;
 			}
+			log.debug("persisted", "messageId", message.getMessageId(), "alertId", items.get(i).get("alertId").getS());
+			forwarder.add(message, message.getBody());
 		}
 	}
-}
 
 
+	@Override
+	public String process(Message message) throws InterruptedException {
+
+		whgHelper.printMessage(message);
+
+		Map<String, AttributeValue> item;
+		try {
+			item = newItem(message);
+		} catch (RuntimeException e) {
+			rejects.reject(message, e);
+			return null;
+		}
+
+		// Add an item to DynamoDB table; batched with other messages in flight,
+		// and the message is only acknowledged once the item is stored
+		writer.write(item).await();
+		log.debug("persisted", "messageId", message.getMessageId(), "alertId", item.get("alertId").getS());
+
+		// then send message to cache queue
+		return message.getBody();
+	}
+
+
+	/**
+	 * The item to store for a message. Its key comes from the message's
+	 * trace, which starts at alertInbound and keeps its id when any stage
+	 * redelivers the alert, so a stored alert received again is overwritten
+	 * rather than stored twice.
+	 *
+	 * @throws RuntimeException if the body cannot be decoded
+	 */
+	private static Map<String, AttributeValue> newItem(Message message) {
+		whgAlert alert = whgAlertCodec.decodeText(message.getBody());
+		whgTrace trace = whgTrace.from(message);
+		return whgHelper.newAlert(alert, whgAlertIdGenerator.keyFor(trace.getIngestMillis(), trace.getTraceId()));
+	}
+}
@@ -12,20 +12,17 @@
  * express or implied. See the License for the specific language governing
  * permissions and limitations under the License.
  */
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map.Entry;
 
 import com.amazonaws.AmazonClientException;
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.services.kinesis.AmazonKinesisClient;
-import com.amazonaws.services.kinesis.model.PutRecordRequest;
-import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
 import com.amazonaws.services.sqs.AmazonSQS;
-import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 /**
  * This sample demonstrates how to make basic requests to Amazon SQS using the
@@ -42,9 +39,39 @@ import com.amazonaws.services.sqs.model.SendMessageRequest;
  * <b>WARNING:</b> To avoid accidental leakage of your credentials, DO NOT keep
  * the credentials file in your source directory.
  */
-public class sqsAlertStream {
+public class sqsAlertStream implements whgBatchStageHandler {
 
-	private static AmazonKinesisClient kinesis;
+	private static final whgLog log = whgLog.get("Stream");
+
+	// the hop a record's trace ends with, whichever runtime hosts the stage
+	private static final String STAGE = "alertStream";
+
+	private final whgKinesisProducer producer;
+	private final whgPartitioner partitioner = whgHelper.getPartitioner();
+	private final whgRecordCompressor compressor = whgRecordCompressor.fromProperties();
+	private final whgRejectQueue rejects;
+
+	public sqsAlertStream(AmazonSQS sqs, AmazonKinesis kinesis, String streamName) {
+		this.producer = new whgKinesisProducer(kinesis, streamName);
+		this.rejects = new whgRejectQueue(sqs, STAGE);
+	}
+
+
+	/**
+	 * A message's alert ready to hand to the producer.
+	 */
+	private static final class Record {
+
+		final String partitionKey;
+		final String explicitHashKey;
+		final byte[] data;
+
+		Record(String partitionKey, String explicitHashKey, byte[] data) {
+			this.partitionKey = partitionKey;
+			this.explicitHashKey = explicitHashKey;
+			this.data = data;
+		}
+	}
 
 	public static void main(String[] args) throws Exception {
 
@@ -60,54 +87,104 @@ public class sqsAlertStream {
 		String nextQueue = "alertErrorHandling";
 
 		// set access to stream instance
-		kinesis = new AmazonKinesisClient(credentials);
+		AmazonKinesis kinesis = whgHelper.setStreamAccess(credentials);
 
 		final String streamName = "alertsStream";
-		final Integer streamSize = 1;
 
-		while (1 > 0) {
+		// receive, stream and forward until the process is stopped
+		new whgStageRuntime(sqs, thisQueue, nextQueue, new sqsAlertStream(sqs, kinesis, streamName)).run();
+	}
+
 
-			// pull list of current messages (up to 10) in the queue
-			List<Message> messages = whgHelper.getMessagesFromQueue(thisQueue, sqs);
-			System.out.println("Count of messages in " + thisQueue + ": " + messages.size());
+	@Override
+	public void processBatch(List<Message> messages, whgBatchForwarder forwarder)
+			throws InterruptedException, IOException {
 
+		// prepare every record first, so a bad body is set aside on its own
+		// instead of failing the receive after some records are put
+		List<Message> prepared = new ArrayList<Message>(messages.size());
+		List<Record> records = new ArrayList<Record>(messages.size());
+		for (Message message : messages) {
+			whgHelper.printMessage(message);
 			try {
+				records.add(record(message));
+			} catch (RuntimeException e) {
+				rejects.reject(message, e, forwarder);
+				continue;
+			}
+			prepared.add(message);
+		}
+
+		// put every record of the receive before waiting so they share PutRecords calls
+		List<whgKinesisProducer.Put> puts = new ArrayList<whgKinesisProducer.Put>(records.size());
+		for (Record record : records) {
+			puts.add(put(record));
+		}
 
-				for (Message message : messages) {
-					
-					whgHelper.printMessage(message);
-					for (Entry<String, String> entry : message.getAttributes().entrySet()) {
-						whgHelper.printMessageEntry(entry);
-					}
-
-					// Write record to the stream
-					long createTime = System.currentTimeMillis();
-					PutRecordRequest putRecordRequest = new PutRecordRequest();
-					putRecordRequest.setStreamName(streamName);
-					putRecordRequest.setData(ByteBuffer.wrap(String.format(message.getBody(), createTime).getBytes()));
-					putRecordRequest.setPartitionKey(String.format("partitionKey-%d", createTime));
-					PutRecordResult putRecordResult = kinesis.putRecord(putRecordRequest);
-					System.out.printf("Successfully put record, partition key : %s, ShardID : %s, SequenceNumber : %s.\n",
-							putRecordRequest.getPartitionKey(),
-							putRecordResult.getShardId(),
-							putRecordResult.getSequenceNumber());
-
-					// then send message to cache queue
-					System.out.println("Sending messages to next queue.");
-					sqs.sendMessage(new SendMessageRequest(nextQueue, message.getBody()));
-
-					// delete message after sending to persist queue
-					System.out.println("Deleting message from this queue.\n");
-					String messageRecieptHandle = message.getReceiptHandle();
-					sqs.deleteMessage(new DeleteMessageRequest(thisQueue, messageRecieptHandle));
-				}
-				Thread.sleep(20000); // do nothing for 1000 miliseconds (1 second)
-				
-			} catch (AmazonServiceException ase) {
-				whgHelper.errorMessagesAse(ase);	
-			} catch (AmazonClientException ace) {
-				whgHelper.errorMessagesAce(ace);
+		// then send each streamed message to error handling queue
+		for (int i = 0; i < prepared.size(); i++) {
+			Message message = prepared.get(i);
+			whgKinesisProducer.Put put = puts.get(i);
+			PutRecordsResultEntry putRecordResult;
+			try {
+				putRecordResult = put.await();
+			} catch (AmazonClientException e) {
+				log.warn("putFailed", "messageId", message.getMessageId(), "error", e);
+				continue;
 			}
+			log.debug("put", "messageId", message.getMessageId(), "partitionKey", put.getPartitionKey(),
+					"shardId", putRecordResult.getShardId(), "sequenceNumber", putRecordResult.getSequenceNumber());
+			forwarder.add(message, message.getBody());
+		}
+	}
+
+
+	@Override
+	public String process(Message message) throws InterruptedException, IOException {
+
+		whgHelper.printMessage(message);
+
+		Record record;
+		try {
+			record = record(message);
+		} catch (RuntimeException e) {
+			rejects.reject(message, e);
+			return null;
+		}
+
+		// Write record to the stream, keyed by its source; batched with other
+		// messages in flight, and only acknowledged once the record is put
+		whgKinesisProducer.Put put = put(record);
+		PutRecordsResultEntry putRecordResult = put.await();
+		log.debug("put", "messageId", message.getMessageId(), "partitionKey", put.getPartitionKey(),
+				"shardId", putRecordResult.getShardId(), "sequenceNumber", putRecordResult.getSequenceNumber());
+
+		// then send message to error handling queue
+		return message.getBody();
+	}
+
+
+	/**
+	 * The message's alert keyed by its source, with the trace ending at this
+	 * stage.
+	 *
+	 * @throws RuntimeException if the body cannot be decoded
+	 */
+	private Record record(Message message) throws IOException {
+		whgAlert alert = whgAlertCodec.decodeText(message.getBody());
+		String sourceId = alert.getSourceId();
+		if (sourceId == null) {
+			// no source to keep in order, so spread by message
+			sourceId = message.getMessageId();
 		}
+		// the record carries the trace so the consumer can tell which hop was slow
+		alert = alert.withTrace(whgTrace.from(message).hop(STAGE));
+		return new Record(partitioner.partitionKey(sourceId), partitioner.explicitHashKey(sourceId),
+				compressor.compress(whgAlertCodec.encode(alert)));
+	}
+
+
+	private whgKinesisProducer.Put put(Record record) {
+		return producer.put(record.partitionKey, record.explicitHashKey, ByteBuffer.wrap(record.data));
 	}
 }
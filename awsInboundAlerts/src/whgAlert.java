@@ -0,0 +1,91 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+/**
+ * The fields of an alert the stages work with, parsed once from its JSON.
+ */
+public final class whgAlert {
+
+	public static final int SEVERITY_UNKNOWN = -1;
+	public static final int SEVERITY_DEBUG = 0;
+	public static final int SEVERITY_INFO = 1;
+	public static final int SEVERITY_WARNING = 2;
+	public static final int SEVERITY_ERROR = 3;
+	public static final int SEVERITY_CRITICAL = 4;
+
+	private final String sourceId;
+	private final long timestamp;
+	private final int severity;
+	private final String body;
+	private final whgTrace trace;
+
+	public whgAlert(String sourceId, long timestamp, int severity, String body) {
+		this(sourceId, timestamp, severity, body, null);
+	}
+
+	public whgAlert(String sourceId, long timestamp, int severity, String body, whgTrace trace) {
+		this.sourceId = sourceId;
+		this.timestamp = timestamp;
+		this.severity = severity;
+		this.body = body;
+		this.trace = trace;
+	}
+
+	/** The alert source, or null if the alert did not name one. */
+	public String getSourceId() {
+		return sourceId;
+	}
+
+	/** Milliseconds since the epoch when the alert was raised, or 0 if not given. */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** One of the SEVERITY_ constants. */
+	public int getSeverity() {
+		return severity;
+	}
+
+	/** The alert JSON. */
+	public String getBody() {
+		return body;
+	}
+
+	/** The alert's path through the pipeline, or null if it is not traced. */
+	public whgTrace getTrace() {
+		return trace;
+	}
+
+	/** This alert carrying the given trace. */
+	public whgAlert withTrace(whgTrace trace) {
+		return new whgAlert(sourceId, timestamp, severity, body, trace);
+	}
+
+	/**
+	 * Maps a severity name or number to one of the SEVERITY_ constants.
+	 */
+	public static int severityOf(String name) {
+		if (name == null) {
+			return SEVERITY_UNKNOWN;
+		}
+		switch (name.toLowerCase()) {
+		case "0": case "debug": return SEVERITY_DEBUG;
+		case "1": case "info": return SEVERITY_INFO;
+		case "2": case "warn": case "warning": return SEVERITY_WARNING;
+		case "3": case "error": return SEVERITY_ERROR;
+		case "4": case "critical": case "fatal": return SEVERITY_CRITICAL;
+		default: return SEVERITY_UNKNOWN;
+		}
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compact, versioned binary encoding of a {@link whgAlert} shared by every
+ * stage.
+ * <p>
+ * An encoded alert is a magic byte and a version byte followed by tagged
+ * fields, each a varint tag (field number and wire type) and either a varint
+ * value or a varint length and bytes. Readers skip fields they do not know,
+ * so fields can be added without a version change. Source ids named in the
+ * system property whg.codec.sourceDictionary (comma separated, identical on
+ * every stage) are written as their index; the dictionary's checksum travels
+ * with them so a reader with a different dictionary fails loudly.
+ * <p>
+ * Stream records carry the binary form, with the alert's {@link whgTrace}.
+ * SQS bodies must be text, so between queues the fields other than the trace,
+ * which travels as a message attribute, are Base85 (Z85) encoded and the
+ * alert JSON follows as is:
+ * <pre>
+ * whg1:&lt;pad&gt;&lt;Z85 fields&gt;~&lt;alert JSON&gt;
+ * </pre>
+ * Bodies without the prefix are read as plain alert JSON, so stages accept
+ * messages written before this encoding.
+ */
+public class whgAlertCodec {
+
+	public static final byte MAGIC = (byte) 0xA7;
+	public static final byte VERSION = 1;
+
+	static final String TEXT_PREFIX = "whg1:";
+	private static final char TEXT_SEPARATOR = '~';
+
+	// field numbers
+	static final int FIELD_SOURCE_ID = 1;
+	static final int FIELD_SOURCE_INDEX = 2;
+	static final int FIELD_TIMESTAMP = 3;
+	static final int FIELD_SEVERITY = 4;
+	static final int FIELD_BODY = 5;
+	static final int FIELD_DICTIONARY = 6;
+	static final int FIELD_TRACE_ID = 7;
+	static final int FIELD_INGEST = 8;
+	static final int FIELD_HOP = 9;
+
+	// wire types
+	static final int VARINT = 0;
+	static final int BYTES = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final char[] Z85 =
+			"0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ.-:+=^!/*?&<>()[]{}@%$#".toCharArray();
+	private static final int[] Z85_VALUES = new int[128];
+	static {
+		Arrays.fill(Z85_VALUES, -1);
+		for (int i = 0; i < Z85.length; i++) {
+			Z85_VALUES[Z85[i]] = i;
+		}
+	}
+
+	private static final String[] dictionary;
+	private static final Map<String, Integer> dictionaryIndex = new HashMap<String, Integer>();
+	private static final long dictionaryId;
+	static {
+		String configured = System.getProperty("whg.codec.sourceDictionary", "").trim();
+		dictionary = configured.isEmpty() ? new String[0] : configured.split("\\s*,\\s*");
+		for (int i = 0; i < dictionary.length; i++) {
+			dictionaryIndex.put(dictionary[i], i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(configured.getBytes(UTF8));
+		// 14 bits, two varint bytes: enough to catch mismatched configuration
+		dictionaryId = crc.getValue() & 0x3FFF;
+	}
+
+
+	/**
+	 * Encodes an alert, body and trace included, for a stream record.
+	 */
+	public static byte[] encode(whgAlert alert) {
+		Writer out = new Writer(alert.getBody().length() + 64);
+		writeFields(out, alert);
+		if (alert.getTrace() != null) {
+			writeTrace(out, alert.getTrace());
+		}
+		out.tag(FIELD_BODY, BYTES);
+		out.bytes(alert.getBody().getBytes(UTF8));
+		return out.toByteArray();
+	}
+
+
+	/**
+	 * Encodes an alert as an SQS message body.
+	 */
+	public static String encodeText(whgAlert alert) {
+		Writer out = new Writer(32);
+		writeFields(out, alert);
+		byte[] fields = out.toByteArray();
+
+		int pad = (4 - fields.length % 4) % 4;
+		StringBuilder text = new StringBuilder(TEXT_PREFIX.length() + 2 + fields.length * 5 / 4 + 5
+				+ alert.getBody().length());
+		text.append(TEXT_PREFIX).append(pad);
+		appendZ85(text, Arrays.copyOf(fields, fields.length + pad));
+		text.append(TEXT_SEPARATOR).append(alert.getBody());
+		return text.toString();
+	}
+
+
+	/**
+	 * Checks whether a stream record holds an encoded alert.
+	 */
+	public static boolean isEncoded(ByteBuffer data) {
+		return data.remaining() >= 2 && data.get(data.position()) == MAGIC;
+	}
+
+
+	/**
+	 * Decodes a stream record written by {@link #encode(whgAlert)}.
+	 *
+	 * @throws IllegalArgumentException if the data is not an encoded alert
+	 */
+	public static whgAlert decode(ByteBuffer data) {
+		Reader in = new Reader(data.duplicate());
+		if (in.data.get() != MAGIC) {
+			throw new IllegalArgumentException("Not an encoded alert");
+		}
+		int version = in.data.get();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported alert encoding version " + version);
+		}
+		return readFields(in, null);
+	}
+
+
+	/**
+	 * Decodes an SQS message body, whether written by
+	 * {@link #encodeText(whgAlert)} or as plain alert JSON.
+	 *
+	 * @throws IllegalArgumentException if the body is neither
+	 */
+	public static whgAlert decodeText(String body) {
+		if (!body.startsWith(TEXT_PREFIX)) {
+			return whgAlertParser.parseJSON(body);
+		}
+		int separator = body.indexOf(TEXT_SEPARATOR, TEXT_PREFIX.length());
+		if (separator < 0 || body.length() < TEXT_PREFIX.length() + 1) {
+			throw new IllegalArgumentException("Malformed encoded alert");
+		}
+		int pad = body.charAt(TEXT_PREFIX.length()) - '0';
+		byte[] fields = fromZ85(body, TEXT_PREFIX.length() + 1, separator);
+		if (pad < 0 || pad > 3 || pad > fields.length) {
+			throw new IllegalArgumentException("Malformed encoded alert");
+		}
+		Reader in = new Reader(ByteBuffer.wrap(fields, 0, fields.length - pad));
+		return readFields(in, body.substring(separator + 1));
+	}
+
+
+	private static void writeFields(Writer out, whgAlert alert) {
+		out.raw(MAGIC);
+		out.raw(VERSION);
+
+		String sourceId = alert.getSourceId();
+		if (sourceId != null) {
+			Integer index = dictionaryIndex.get(sourceId);
+			if (index != null) {
+				out.tag(FIELD_DICTIONARY, VARINT);
+				out.varint(dictionaryId);
+				out.tag(FIELD_SOURCE_INDEX, VARINT);
+				out.varint(index);
+			} else {
+				out.tag(FIELD_SOURCE_ID, BYTES);
+				out.bytes(sourceId.getBytes(UTF8));
+			}
+		}
+		if (alert.getTimestamp() != 0) {
+			out.tag(FIELD_TIMESTAMP, VARINT);
+			out.varint(alert.getTimestamp());
+		}
+		if (alert.getSeverity() != whgAlert.SEVERITY_UNKNOWN) {
+			out.tag(FIELD_SEVERITY, VARINT);
+			out.varint(alert.getSeverity());
+		}
+	}
+
+
+	private static void writeTrace(Writer out, whgTrace trace) {
+		out.tag(FIELD_TRACE_ID, BYTES);
+		out.bytes(trace.getTraceId().getBytes(UTF8));
+		out.tag(FIELD_INGEST, VARINT);
+		out.varint(trace.getIngestMillis());
+		for (int i = 0; i < trace.getHopCount(); i++) {
+			// each hop is its offset from ingest (zigzag, as clocks may disagree) and its stage
+			Writer hop = new Writer(24);
+			long offset = trace.getHopMillis(i) - trace.getIngestMillis();
+			hop.varint((offset << 1) ^ (offset >> 63));
+			byte[] stage = trace.getStage(i).getBytes(UTF8);
+			for (byte b : stage) {
+				hop.raw(b);
+			}
+			out.tag(FIELD_HOP, BYTES);
+			out.bytes(hop.toByteArray());
+		}
+	}
+
+
+	private static whgAlert readFields(Reader in, String body) {
+		if (body != null) {
+			// the text form keeps the header bytes too; step over them
+			if (in.data.get() != MAGIC || in.data.get() != VERSION) {
+				throw new IllegalArgumentException("Unsupported alert encoding");
+			}
+		}
+
+		String sourceId = null;
+		long timestamp = 0;
+		int severity = whgAlert.SEVERITY_UNKNOWN;
+		long readerDictionary = -1;
+		String traceId = null;
+		long ingest = 0;
+		List<String> stages = null;
+		List<Long> hops = null;
+
+		while (in.data.hasRemaining()) {
+			long tag = in.varint();
+			int field = (int) (tag >>> 3);
+			int wireType = (int) (tag & 7);
+			switch (field) {
+			case FIELD_SOURCE_ID:
+				sourceId = new String(in.bytes(), UTF8);
+				break;
+			case FIELD_DICTIONARY:
+				readerDictionary = in.varint();
+				break;
+			case FIELD_SOURCE_INDEX:
+				int index = (int) in.varint();
+				if (readerDictionary != dictionaryId || index >= dictionary.length) {
+					throw new IllegalArgumentException("Alert was encoded with a different source dictionary");
+				}
+				sourceId = dictionary[index];
+				break;
+			case FIELD_TIMESTAMP:
+				timestamp = in.varint();
+				break;
+			case FIELD_SEVERITY:
+				severity = (int) in.varint();
+				break;
+			case FIELD_BODY:
+				body = new String(in.bytes(), UTF8);
+				break;
+			case FIELD_TRACE_ID:
+				traceId = new String(in.bytes(), UTF8);
+				break;
+			case FIELD_INGEST:
+				ingest = in.varint();
+				break;
+			case FIELD_HOP:
+				Reader hop = new Reader(ByteBuffer.wrap(in.bytes()));
+				long zigzag = hop.varint();
+				if (stages == null) {
+					stages = new ArrayList<String>();
+					hops = new ArrayList<Long>();
+				}
+				hops.add((zigzag >>> 1) ^ -(zigzag & 1));
+				stages.add(new String(hop.data.array(), hop.data.position(), hop.data.remaining(), UTF8));
+				break;
+			default:
+				// a field from a newer writer
+				in.skip(wireType);
+			}
+		}
+		if (body == null) {
+			throw new IllegalArgumentException("Encoded alert has no body");
+		}
+		whgTrace trace = null;
+		if (traceId != null) {
+			int count = stages == null ? 0 : stages.size();
+			long[] hopMillis = new long[count];
+			for (int i = 0; i < count; i++) {
+				hopMillis[i] = ingest + hops.get(i);
+			}
+			trace = new whgTrace(traceId, ingest, count == 0 ? new String[0] : stages.toArray(new String[count]),
+					hopMillis);
+		}
+		return new whgAlert(sourceId, timestamp, severity, body, trace);
+	}
+
+
+	private static void appendZ85(StringBuilder text, byte[] data) {
+		char[] chunk = new char[5];
+		for (int i = 0; i < data.length; i += 4) {
+			long value = ((data[i] & 0xFFL) << 24) | ((data[i + 1] & 0xFFL) << 16)
+					| ((data[i + 2] & 0xFFL) << 8) | (data[i + 3] & 0xFFL);
+			for (int j = 4; j >= 0; j--) {
+				chunk[j] = Z85[(int) (value % 85)];
+				value /= 85;
+			}
+			text.append(chunk);
+		}
+	}
+
+
+	private static byte[] fromZ85(String text, int start, int end) {
+		if ((end - start) % 5 != 0) {
+			throw new IllegalArgumentException("Malformed encoded alert");
+		}
+		byte[] data = new byte[(end - start) / 5 * 4];
+		int out = 0;
+		for (int i = start; i < end; i += 5) {
+			long value = 0;
+			for (int j = 0; j < 5; j++) {
+				char c = text.charAt(i + j);
+				int digit = c < 128 ? Z85_VALUES[c] : -1;
+				if (digit < 0) {
+					throw new IllegalArgumentException("Malformed encoded alert");
+				}
+				value = value * 85 + digit;
+			}
+			data[out++] = (byte) (value >>> 24);
+			data[out++] = (byte) (value >>> 16);
+			data[out++] = (byte) (value >>> 8);
+			data[out++] = (byte) value;
+		}
+		return data;
+	}
+
+
+	/**
+	 * Growable output buffer with varint writes.
+	 */
+	static final class Writer {
+
+		private byte[] buf;
+		private int length;
+
+		Writer(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void raw(byte b) {
+			if (length == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2 + 8);
+			}
+			buf[length++] = b;
+		}
+
+		void tag(int field, int wireType) {
+			varint((field << 3) | wireType);
+		}
+
+		void varint(long value) {
+			while ((value & ~0x7FL) != 0) {
+				raw((byte) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			raw((byte) value);
+		}
+
+		void bytes(byte[] bytes) {
+			varint(bytes.length);
+			if (length + bytes.length > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + bytes.length));
+			}
+			System.arraycopy(bytes, 0, buf, length, bytes.length);
+			length += bytes.length;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, length);
+		}
+	}
+
+
+	/**
+	 * Varint reads over a buffer.
+	 */
+	static final class Reader {
+
+		final ByteBuffer data;
+
+		Reader(ByteBuffer data) {
+			this.data = data;
+		}
+
+		long varint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = data.get();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint");
+		}
+
+		byte[] bytes() {
+			int length = (int) varint();
+			if (length < 0 || length > data.remaining()) {
+				throw new IllegalArgumentException("Malformed length");
+			}
+			byte[] bytes = new byte[length];
+			data.get(bytes);
+			return bytes;
+		}
+
+		void skip(int wireType) {
+			if (wireType == VARINT) {
+				varint();
+			} else if (wireType == BYTES) {
+				int length = (int) varint();
+				data.position(data.position() + length);
+			} else {
+				throw new IllegalArgumentException("Unknown wire type " + wireType);
+			}
+		}
+	}
+}
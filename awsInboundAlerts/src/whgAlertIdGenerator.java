@@ -0,0 +1,219 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique 64-bit alert ids without locking.
+ * <p>
+ * An id packs, from the top bit down, 41 bits of milliseconds since
+ * 2015-01-01 UTC, a 10-bit worker id and a 12-bit sequence within the
+ * millisecond. All threads of a process share one generator: the last issued
+ * timestamp and sequence live in a single AtomicLong that is advanced with
+ * compare-and-set, so up to 4096 ids per millisecond are issued without
+ * blocking. When the sequence runs out, or the clock steps backwards, ids
+ * carry on from the last issued timestamp rather than waiting for the clock.
+ * <p>
+ * Processes that write alerts must use different worker ids, set with the
+ * system property whg.workerId (0-1023). It is required unless whg.local is
+ * set: a worker id hashed from the host name and process id into 10 bits is
+ * likely to collide across a fleet, so it is only used, with a warning, for
+ * local runs. The system property whg.alertId.layout chooses how ids are
+ * laid out:
+ * <ul>
+ * <li>sequential - time ordered (default)</li>
+ * <li>reversed - bits reversed, so consecutive ids differ in their leading bits</li>
+ * <li>hashed - bits mixed by a reversible hash, spreading ids evenly over the key space</li>
+ * </ul>
+ * Every layout is a one-to-one mapping, so ids stay unique.
+ * <p>
+ * {@link #keyFor} instead derives an id from something that stays the same
+ * when an alert is delivered again, so storing the alert twice overwrites
+ * the first copy rather than adding a second. It needs no worker id.
+ */
+public class whgAlertIdGenerator {
+
+	// 2015-01-01T00:00:00Z
+	private static final long EPOCH_MILLIS = 1420070400000L;
+
+	private static final int WORKER_BITS = 10;
+	private static final int SEQUENCE_BITS = 12;
+	private static final long MAX_WORKER = (1L << WORKER_BITS) - 1;
+	private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+	private static final char[] BASE62 =
+			"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+	// 62^11 > 2^64, so every id fits in 11 digits
+	private static final int KEY_LENGTH = 11;
+
+	public enum Layout { SEQUENTIAL, REVERSED, HASHED }
+
+	private static final whgLog log = whgLog.get("AlertId");
+
+	private static volatile whgAlertIdGenerator defaultGenerator;
+
+	private final long worker;
+	private final Layout layout;
+
+	// (timestamp << SEQUENCE_BITS) | sequence of the last id issued
+	private final AtomicLong last = new AtomicLong();
+
+	public whgAlertIdGenerator(int workerId, Layout layout) {
+		if (workerId < 0 || workerId > MAX_WORKER) {
+			throw new IllegalArgumentException("Worker id must be between 0 and " + MAX_WORKER + ": " + workerId);
+		}
+		this.worker = workerId;
+		this.layout = layout;
+	}
+
+
+	/**
+	 * The generator shared by the whole process, configured from system properties.
+	 *
+	 * @throws IllegalStateException if whg.workerId is not set outside local mode
+	 */
+	public static whgAlertIdGenerator getDefault() {
+		whgAlertIdGenerator generator = defaultGenerator;
+		if (generator == null) {
+			generator = createDefault();
+		}
+		return generator;
+	}
+
+
+	private static synchronized whgAlertIdGenerator createDefault() {
+		if (defaultGenerator == null) {
+			defaultGenerator = new whgAlertIdGenerator(defaultWorkerId(),
+					DefaultLayout.VALUE);
+		}
+		return defaultGenerator;
+	}
+
+
+	private static final class DefaultLayout {
+		static final Layout VALUE =
+				Layout.valueOf(System.getProperty("whg.alertId.layout", "sequential").toUpperCase());
+	}
+
+
+	public long nextId() {
+		long now = System.currentTimeMillis() - EPOCH_MILLIS;
+		while (true) {
+			long previous = last.get();
+			long timestamp = previous >>> SEQUENCE_BITS;
+			long next;
+			if (now > timestamp) {
+				next = now << SEQUENCE_BITS;
+			} else if ((previous & MAX_SEQUENCE) < MAX_SEQUENCE) {
+				next = previous + 1;
+			} else {
+				// sequence exhausted for this millisecond; borrow the next one
+				next = (timestamp + 1) << SEQUENCE_BITS;
+			}
+			if (last.compareAndSet(previous, next)) {
+				long id = ((next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS))
+						| (worker << SEQUENCE_BITS)
+						| (next & MAX_SEQUENCE);
+				return layout(layout, id);
+			}
+		}
+	}
+
+
+	/**
+	 * A key for an alert that is the same every time the alert is delivered,
+	 * laid out as whg.alertId.layout says. The ingest time fills the
+	 * timestamp bits and a hash of the name fills the worker and sequence
+	 * bits, so two alerts share a key only if they entered the pipeline in
+	 * the same millisecond and their names hash to the same 22 bits.
+	 *
+	 * @param ingestMillis when the alert entered the pipeline
+	 * @param name a name unique to the alert, such as its trace id
+	 */
+	public static String keyFor(long ingestMillis, String name) {
+		// 64-bit FNV-1a, then folded so every character reaches the low bits
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 32;
+		long timestamp = Math.max(0, ingestMillis - EPOCH_MILLIS);
+		long id = (timestamp << (WORKER_BITS + SEQUENCE_BITS))
+				| (hash & ((1L << (WORKER_BITS + SEQUENCE_BITS)) - 1));
+		return toBase62(layout(DefaultLayout.VALUE, id));
+	}
+
+
+	/**
+	 * The next id as a fixed-width base-62 string, for use as a key attribute.
+	 */
+	public String nextKey() {
+		return toBase62(nextId());
+	}
+
+
+	/**
+	 * Encodes an id as 11 base-62 digits. Sequential ids keep their order when
+	 * the strings are compared.
+	 */
+	public static String toBase62(long id) {
+		char[] digits = new char[KEY_LENGTH];
+		// treat the id as unsigned: peel off the first digit with an unsigned shift
+		long quotient = (id >>> 1) / 31;
+		digits[KEY_LENGTH - 1] = BASE62[(int) (id - quotient * 62)];
+		for (int i = KEY_LENGTH - 2; i >= 0; i--) {
+			digits[i] = BASE62[(int) (quotient % 62)];
+			quotient /= 62;
+		}
+		return new String(digits);
+	}
+
+
+	private static long layout(Layout layout, long id) {
+		switch (layout) {
+		case REVERSED:
+			return Long.reverse(id);
+		case HASHED:
+			// the 64-bit finalizer from MurmurHash3; every step is invertible
+			id ^= id >>> 33;
+			id *= 0xff51afd7ed558ccdL;
+			id ^= id >>> 33;
+			id *= 0xc4ceb9fe1a85ec53L;
+			id ^= id >>> 33;
+			return id;
+		default:
+			return id;
+		}
+	}
+
+
+	private static int defaultWorkerId() {
+		Integer configured = Integer.getInteger("whg.workerId");
+		if (configured != null) {
+			return configured;
+		}
+		if (!whgLocal.enabled()) {
+			throw new IllegalStateException("Set whg.workerId (0-" + MAX_WORKER
+					+ ") to a value unique to this process; alert ids from processes sharing one collide");
+		}
+		// "pid@host" identifies this process on this host
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int hash = name.hashCode();
+		int workerId = (int) ((hash ^ (hash >>> 16)) & MAX_WORKER);
+		log.warn("workerIdDerived", "workerId", workerId, "from", name);
+		return workerId;
+	}
+}
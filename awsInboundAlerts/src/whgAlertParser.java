@@ -0,0 +1,377 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.nio.charset.Charset;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Turns a Base64 inbound message body into a {@link whgAlert} in one pass.
+ * <p>
+ * The body is decoded into a buffer reused by the calling thread, and the
+ * JSON is scanned in place: the top-level sourceId (or alertSourceId),
+ * timestamp and severity fields are read as they are passed and everything
+ * else is skipped without building any tree. The only allocations per alert
+ * are the alert itself, its JSON string and the short field values.
+ * <p>
+ * The timestamp may be epoch milliseconds, as a number or a string, or an
+ * ISO-8601 date and time (UTC when no offset is given). Any other value is
+ * read as 0, like a missing timestamp, rather than rejecting the alert.
+ */
+public class whgAlertParser {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// most specific first; each must match the whole value
+	private static final String[] ISO_8601 = { "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX",
+			"yyyy-MM-dd'T'HH:mm:ss.SSSXX", "yyyy-MM-dd'T'HH:mm:ssXX", "yyyy-MM-dd'T'HH:mm:ss.SSS",
+			"yyyy-MM-dd'T'HH:mm:ss" };
+
+	// Base64 digit values for both the standard and URL-safe alphabets
+	private static final byte[] DECODE = new byte[128];
+	private static final byte NOT_DIGIT = -1;
+	private static final byte SKIP = -2;
+	static {
+		Arrays.fill(DECODE, NOT_DIGIT);
+		String digits = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+		for (int i = 0; i < digits.length(); i++) {
+			DECODE[digits.charAt(i)] = (byte) i;
+		}
+		DECODE['+'] = 62;
+		DECODE['-'] = 62;
+		DECODE['/'] = 63;
+		DECODE['_'] = 63;
+		DECODE[' '] = SKIP;
+		DECODE['\t'] = SKIP;
+		DECODE['\r'] = SKIP;
+		DECODE['\n'] = SKIP;
+	}
+
+	private static final ThreadLocal<Scanner> scanners = new ThreadLocal<Scanner>() {
+		@Override
+		protected Scanner initialValue() {
+			return new Scanner();
+		}
+	};
+
+	/**
+	 * Decodes a Base64 message body and parses the alert JSON inside it.
+	 *
+	 * @throws IllegalArgumentException if the body is not Base64 encoded JSON
+	 */
+	public static whgAlert parse(String base64Body) {
+		Scanner scanner = scanners.get();
+		scanner.decode(base64Body);
+		return scanner.parse();
+	}
+
+
+	/**
+	 * Parses alert JSON that is already decoded.
+	 *
+	 * @throws IllegalArgumentException if the text is not a JSON object
+	 */
+	public static whgAlert parseJSON(String alertJSON) {
+		Scanner scanner = scanners.get();
+		scanner.load(alertJSON.getBytes(UTF8));
+		return scanner.parse();
+	}
+
+
+	/**
+	 * Per-thread decode buffer and read position.
+	 */
+	private static final class Scanner {
+
+		private byte[] buf = new byte[1024];
+		private int length;
+		private int pos;
+		private SimpleDateFormat[] dateFormats;
+
+		void load(byte[] bytes) {
+			ensureCapacity(bytes.length);
+			System.arraycopy(bytes, 0, buf, 0, bytes.length);
+			length = bytes.length;
+		}
+
+		void decode(String base64) {
+			ensureCapacity(base64.length() / 4 * 3 + 3);
+			int out = 0;
+			int bits = 0;
+			int digits = 0;
+			for (int i = 0; i < base64.length(); i++) {
+				char c = base64.charAt(i);
+				if (c == '=') {
+					break;
+				}
+				byte value = c < 128 ? DECODE[c] : NOT_DIGIT;
+				if (value == SKIP) {
+					continue;
+				}
+				if (value == NOT_DIGIT) {
+					throw new IllegalArgumentException("Not a Base64 character at " + i + ": " + c);
+				}
+				bits = (bits << 6) | value;
+				if (++digits == 4) {
+					buf[out++] = (byte) (bits >> 16);
+					buf[out++] = (byte) (bits >> 8);
+					buf[out++] = (byte) bits;
+					bits = 0;
+					digits = 0;
+				}
+			}
+			// a trailing group of 2 or 3 digits carries 1 or 2 more bytes
+			if (digits == 2) {
+				buf[out++] = (byte) (bits >> 4);
+			} else if (digits == 3) {
+				buf[out++] = (byte) (bits >> 10);
+				buf[out++] = (byte) (bits >> 2);
+			} else if (digits == 1) {
+				throw new IllegalArgumentException("Truncated Base64 input");
+			}
+			length = out;
+		}
+
+		private void ensureCapacity(int size) {
+			if (buf.length < size) {
+				buf = new byte[Math.max(size, buf.length * 2)];
+			}
+		}
+
+		whgAlert parse() {
+			pos = 0;
+			String sourceId = null;
+			long timestamp = 0;
+			int severity = whgAlert.SEVERITY_UNKNOWN;
+
+			expect('{');
+			skipWhitespace();
+			if (peek() != '}') {
+				while (true) {
+					skipWhitespace();
+					int keyStart = pos + 1;
+					skipString();
+					int keyLength = pos - 1 - keyStart;
+					expect(':');
+					skipWhitespace();
+
+					if (keyIs(keyStart, keyLength, "sourceId") || keyIs(keyStart, keyLength, "alertSourceId")) {
+						sourceId = readScalar();
+					} else if (keyIs(keyStart, keyLength, "timestamp")) {
+						timestamp = timestampOf(readScalar());
+					} else if (keyIs(keyStart, keyLength, "severity")) {
+						severity = whgAlert.severityOf(readScalar());
+					} else {
+						skipValue();
+					}
+
+					skipWhitespace();
+					byte next = next();
+					if (next == '}') {
+						break;
+					}
+					if (next != ',') {
+						throw error("expected , or }");
+					}
+				}
+			} else {
+				pos++;
+			}
+
+			return new whgAlert(sourceId, timestamp, severity, new String(buf, 0, length, UTF8));
+		}
+
+		/**
+		 * Epoch milliseconds for a timestamp value, or 0 if it is neither a
+		 * number nor an ISO-8601 date and time.
+		 */
+		private long timestampOf(String value) {
+			if (value == null || value.isEmpty()) {
+				return 0;
+			}
+			char first = value.charAt(0);
+			if (first == '-' || (first >= '0' && first <= '9' && value.indexOf('T') < 0)) {
+				try {
+					return (long) Double.parseDouble(value);
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+			if (dateFormats == null) {
+				dateFormats = new SimpleDateFormat[ISO_8601.length];
+				for (int i = 0; i < ISO_8601.length; i++) {
+					dateFormats[i] = new SimpleDateFormat(ISO_8601[i]);
+					dateFormats[i].setTimeZone(TimeZone.getTimeZone("UTC"));
+					dateFormats[i].setLenient(false);
+				}
+			}
+			for (SimpleDateFormat format : dateFormats) {
+				ParsePosition position = new ParsePosition(0);
+				Date date = format.parse(value, position);
+				if (date != null && position.getIndex() == value.length()) {
+					return date.getTime();
+				}
+			}
+			return 0;
+		}
+
+		private boolean keyIs(int start, int keyLength, String key) {
+			if (keyLength != key.length()) {
+				return false;
+			}
+			for (int i = 0; i < keyLength; i++) {
+				if (buf[start + i] != key.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Reads a string, number, boolean or null as text (null for JSON null).
+		 */
+		private String readScalar() {
+			byte first = peek();
+			if (first == '"') {
+				int start = pos + 1;
+				boolean escaped = skipString();
+				String raw = new String(buf, start, pos - 1 - start, UTF8);
+				return escaped ? unescape(raw) : raw;
+			}
+			if (first == '{' || first == '[') {
+				skipValue();
+				return null;
+			}
+			int start = pos;
+			while (pos < length && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']' && !isWhitespace(buf[pos])) {
+				pos++;
+			}
+			String literal = new String(buf, start, pos - start, UTF8);
+			return "null".equals(literal) ? null : literal;
+		}
+
+		private void skipValue() {
+			byte first = peek();
+			if (first == '"') {
+				skipString();
+			} else if (first == '{' || first == '[') {
+				// skip to the matching close, stepping over strings
+				int depth = 0;
+				do {
+					byte c = peek();
+					if (c == '"') {
+						skipString();
+						continue;
+					}
+					if (c == '{' || c == '[') {
+						depth++;
+					} else if (c == '}' || c == ']') {
+						depth--;
+					}
+					pos++;
+				} while (depth > 0);
+			} else {
+				while (pos < length && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']') {
+					pos++;
+				}
+			}
+		}
+
+		/**
+		 * Steps over a quoted string.
+		 *
+		 * @return true if it contained escapes
+		 */
+		private boolean skipString() {
+			expect('"');
+			boolean escaped = false;
+			while (true) {
+				byte c = next();
+				if (c == '"') {
+					return escaped;
+				}
+				if (c == '\\') {
+					next();
+					escaped = true;
+				}
+			}
+		}
+
+		private void skipWhitespace() {
+			while (pos < length && isWhitespace(buf[pos])) {
+				pos++;
+			}
+		}
+
+		private void expect(char c) {
+			skipWhitespace();
+			if (next() != c) {
+				throw error("expected " + c);
+			}
+		}
+
+		private byte peek() {
+			if (pos >= length) {
+				throw error("unexpected end of input");
+			}
+			return buf[pos];
+		}
+
+		private byte next() {
+			byte c = peek();
+			pos++;
+			return c;
+		}
+
+		private IllegalArgumentException error(String problem) {
+			return new IllegalArgumentException("Malformed alert JSON at " + pos + ": " + problem);
+		}
+	}
+
+
+	private static boolean isWhitespace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+
+	private static String unescape(String raw) {
+		StringBuilder sb = new StringBuilder(raw.length());
+		for (int i = 0; i < raw.length(); i++) {
+			char c = raw.charAt(i);
+			if (c != '\\' || i + 1 >= raw.length()) {
+				sb.append(c);
+				continue;
+			}
+			char e = raw.charAt(++i);
+			switch (e) {
+			case 'n': sb.append('\n'); break;
+			case 't': sb.append('\t'); break;
+			case 'r': sb.append('\r'); break;
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'u':
+				if (i + 4 < raw.length()) {
+					sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+					i += 4;
+				}
+				break;
+			default: sb.append(e);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Forwards processed messages from one queue to the next in batches.
+ * <p>
+ * Messages added to the forwarder are sent to the next queue with
+ * SendMessageBatch and, once sent, removed from this queue with
+ * DeleteMessageBatch, 10 entries per call. Entries that fail are matched back
+ * to their message by batch entry id; retryable failures are resent on their
+ * own after a jittered exponential backoff, and anything still failing is
+ * left on this queue so SQS redelivers it after the visibility timeout. A
+ * call that throws fails only its own entries: the other batches are still
+ * sent, and every message that was sent is still deleted.
+ * <p>
+ * The forwarder is guarded by a lock rather than synchronized methods so a
+ * virtual thread blocked in a batch call does not pin its carrier thread.
+ */
+public class whgBatchForwarder {
+
+	// SQS limits per batch call
+	public static final int MAX_BATCH_ENTRIES = 10;
+	private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+	// attempts per entry before it is left for redelivery, and the bound on
+	// the wait before the first retry, doubling with each one after
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long BASE_BACKOFF_MILLIS = 50L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final whgLog log = whgLog.get("Forwarder");
+
+	private final AmazonSQS sqs;
+	private final String thisQueue;
+	private final String nextQueue;
+
+	private final List<Message> pendingMessages = new ArrayList<Message>();
+	private final List<String> pendingBodies = new ArrayList<String>();
+	private final List<whgTrace> pendingTraces = new ArrayList<whgTrace>();
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final whgHistogram sendLatency;
+	private final whgHistogram deleteLatency;
+	private final whgCounter sendErrors;
+	private final whgCounter deleteErrors;
+
+	public whgBatchForwarder(AmazonSQS sqs, String thisQueue, String nextQueue) {
+		this.sqs = sqs;
+		this.thisQueue = thisQueue;
+		this.nextQueue = nextQueue;
+
+		this.sendLatency = whgMetrics.histogram("whg_sqs_send_batch_seconds", "queue", nextQueue);
+		this.deleteLatency = whgMetrics.histogram("whg_sqs_delete_batch_seconds", "queue", thisQueue);
+		this.sendErrors = whgMetrics.counter("whg_sqs_errors_total", "queue", nextQueue, "call", "send");
+		this.deleteErrors = whgMetrics.counter("whg_sqs_errors_total", "queue", thisQueue, "call", "delete");
+	}
+
+
+	/**
+	 * Queues a message to be forwarded with the given body and then deleted
+	 * from this queue. A null body deletes the message without forwarding it.
+	 * The forwarded message carries the message's trace with a hop for this
+	 * queue's stage.
+	 */
+	public void add(Message message, String forwardBody) {
+		add(message, forwardBody, forwardBody == null ? null : whgTrace.from(message).hop(thisQueue));
+	}
+
+
+	/**
+	 * Queues a message to be forwarded with the given body and trace.
+	 */
+	public void add(Message message, String forwardBody, whgTrace trace) {
+		lock.lock();
+		try {
+			pendingMessages.add(message);
+			pendingBodies.add(forwardBody);
+			pendingTraces.add(trace);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Removes everything queued so far without sending or deleting it, for a
+	 * runtime that passes processed messages on itself.
+	 *
+	 * @return the body queued for each message, keyed by the message object
+	 */
+	Map<Message, String> takePending() {
+		lock.lock();
+		try {
+			Map<Message, String> taken = new IdentityHashMap<Message, String>();
+			for (int i = 0; i < pendingMessages.size(); i++) {
+				taken.put(pendingMessages.get(i), pendingBodies.get(i));
+			}
+			return taken;
+		} finally {
+			pendingMessages.clear();
+			pendingBodies.clear();
+			pendingTraces.clear();
+			lock.unlock();
+		}
+	}
+
+
+	public int size() {
+		lock.lock();
+		try {
+			return pendingMessages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Sends and deletes everything queued so far.
+	 *
+	 * @return the messages that could not be forwarded or deleted; they stay
+	 *         on this queue and will be received again
+	 */
+	public List<Message> flush() {
+		List<Message> failed = new ArrayList<Message>();
+		List<Message> toDelete = new ArrayList<Message>();
+		lock.lock();
+		try {
+			List<Message> toSend = new ArrayList<Message>();
+			List<String> toSendBodies = new ArrayList<String>();
+			List<whgTrace> toSendTraces = new ArrayList<whgTrace>();
+			for (int i = 0; i < pendingMessages.size(); i++) {
+				if (pendingBodies.get(i) == null) {
+					toDelete.add(pendingMessages.get(i));
+				} else {
+					toSend.add(pendingMessages.get(i));
+					toSendBodies.add(pendingBodies.get(i));
+					toSendTraces.add(pendingTraces.get(i));
+				}
+			}
+			try {
+				if (!toSend.isEmpty()) {
+					sendAll(toSend, toSendBodies, toSendTraces, toDelete, failed);
+				}
+			} finally {
+				// whatever reached the next queue must leave this one, or it is forwarded twice
+				deleteAll(toDelete, failed);
+			}
+		} finally {
+			pendingMessages.clear();
+			pendingBodies.clear();
+			pendingTraces.clear();
+			lock.unlock();
+		}
+
+		if (!failed.isEmpty()) {
+			log.warn("leftForRedelivery", "queue", thisQueue, "count", failed.size());
+		}
+		return failed;
+	}
+
+
+	private void sendAll(List<Message> messages, List<String> bodies, List<whgTrace> traces, List<Message> sent,
+			List<Message> failed) {
+
+		for (int attempt = 1; !messages.isEmpty(); attempt++) {
+			if (attempt > 1 && !backoff(attempt)) {
+				failed.addAll(messages);
+				return;
+			}
+			List<Message> retryMessages = new ArrayList<Message>();
+			List<String> retryBodies = new ArrayList<String>();
+			List<whgTrace> retryTraces = new ArrayList<whgTrace>();
+
+			int start = 0;
+			while (start < messages.size()) {
+				// fill one batch up to the entry and payload limits
+				int end = start;
+				int bytes = 0;
+				List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+				while (end < messages.size() && entries.size() < MAX_BATCH_ENTRIES) {
+					whgTrace trace = traces.get(end);
+					String traceText = trace == null ? null : trace.toString();
+					// attribute name, type and value count toward the message size
+					int size = bodies.get(end).getBytes(UTF8).length
+							+ (traceText == null ? 0 : whgTrace.ATTRIBUTE.length() + 6 + traceText.length());
+					if (!entries.isEmpty() && bytes + size > MAX_BATCH_BYTES) {
+						break;
+					}
+					bytes += size;
+					SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(String.valueOf(end - start),
+							bodies.get(end));
+					if (trace != null) {
+						entry.setMessageAttributes(trace.toAttributes());
+					}
+					entries.add(entry);
+					end++;
+				}
+
+				long sentAt = System.nanoTime();
+				SendMessageBatchResult result;
+				try {
+					result = sqs.sendMessageBatch(new SendMessageBatchRequest(nextQueue, entries));
+				} catch (RuntimeException e) {
+					// whether any of the batch arrived is unknown, so none of it is resent
+					sendErrors.increment();
+					log.warn("sendFailed", "queue", nextQueue, "count", entries.size(), "error", e);
+					failed.addAll(messages.subList(start, end));
+					start = end;
+					continue;
+				}
+				sendLatency.recordSince(sentAt);
+				sendErrors.add(result.getFailed().size());
+				boolean[] entryFailed = new boolean[entries.size()];
+				for (BatchResultErrorEntry error : result.getFailed()) {
+					int index = Integer.parseInt(error.getId());
+					entryFailed[index] = true;
+					if (retryable(error) && attempt < MAX_ATTEMPTS) {
+						retryMessages.add(messages.get(start + index));
+						retryBodies.add(bodies.get(start + index));
+						retryTraces.add(traces.get(start + index));
+					} else {
+						failed.add(messages.get(start + index));
+						printError("send", error);
+					}
+				}
+				for (int i = 0; i < entries.size(); i++) {
+					if (!entryFailed[i]) {
+						sent.add(messages.get(start + i));
+					}
+				}
+				start = end;
+			}
+
+			messages = retryMessages;
+			bodies = retryBodies;
+			traces = retryTraces;
+		}
+	}
+
+
+	private void deleteAll(List<Message> messages, List<Message> failed) {
+
+		for (int attempt = 1; !messages.isEmpty(); attempt++) {
+			if (attempt > 1 && !backoff(attempt)) {
+				failed.addAll(messages);
+				return;
+			}
+			List<Message> retryMessages = new ArrayList<Message>();
+
+			for (int start = 0; start < messages.size(); start += MAX_BATCH_ENTRIES) {
+				int end = Math.min(start + MAX_BATCH_ENTRIES, messages.size());
+				List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>();
+				for (int i = start; i < end; i++) {
+					entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i - start),
+							messages.get(i).getReceiptHandle()));
+				}
+
+				long deletedAt = System.nanoTime();
+				DeleteMessageBatchResult result;
+				try {
+					result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(thisQueue, entries));
+				} catch (RuntimeException e) {
+					deleteErrors.increment();
+					log.warn("deleteFailed", "queue", thisQueue, "count", entries.size(), "error", e);
+					failed.addAll(messages.subList(start, end));
+					continue;
+				}
+				deleteLatency.recordSince(deletedAt);
+				deleteErrors.add(result.getFailed().size());
+				for (BatchResultErrorEntry error : result.getFailed()) {
+					Message message = messages.get(start + Integer.parseInt(error.getId()));
+					if (retryable(error) && attempt < MAX_ATTEMPTS) {
+						retryMessages.add(message);
+					} else {
+						failed.add(message);
+						printError("delete", error);
+					}
+				}
+			}
+
+			messages = retryMessages;
+		}
+	}
+
+
+	/**
+	 * Sleeps for a random time up to a bound that doubles with each retry.
+	 *
+	 * @return false if interrupted, in which case nothing more is retried
+	 */
+	private static boolean backoff(int attempt) {
+		long bound = BASE_BACKOFF_MILLIS << (attempt - 2);
+		try {
+			Thread.sleep(1 + ThreadLocalRandom.current().nextLong(bound));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+
+	private static boolean retryable(BatchResultErrorEntry error) {
+		// sender faults (bad receipt handle, oversized body) fail the same way every time
+		return error.getSenderFault() == null || !error.getSenderFault();
+	}
+
+
+	private static void printError(String operation, BatchResultErrorEntry error) {
+		log.warn(operation + "Failed", "entry", error.getId(), "code", error.getCode(), "message", error.getMessage());
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.List;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * A stage that handles a whole receive at once, for downstream calls that
+ * are cheaper per batch than per message. {@link whgStageRuntime} passes such
+ * a stage every received batch in one call instead of one message at a time.
+ */
+public interface whgBatchStageHandler extends whgStageHandler {
+
+	/**
+	 * Processes every message of one receive.
+	 *
+	 * @param messages the received messages
+	 * @param forwarder where each successfully processed message is added with
+	 *        the body to send on; messages not added stay on the queue and are
+	 *        received again
+	 * @throws Exception if the batch could not be processed at all
+	 */
+	void processBatch(List<Message> messages, whgBatchForwarder forwarder) throws Exception;
+}
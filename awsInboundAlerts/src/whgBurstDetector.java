@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Flags sources whose alert rate jumps well above their usual rate.
+ * <p>
+ * Alerts are counted per source over short intervals. At the end of each
+ * interval every source's count is compared with an exponentially weighted
+ * moving average of its past counts: a source whose count exceeds the
+ * average by more than k standard deviations, and by at least a minimum
+ * number of alerts, has burst. The deviation used is never less than the
+ * square root of the average, the spread of alerts arriving at random, so a
+ * very steady source does not burst on one extra alert. The count is then
+ * folded into the average and variance, except while the source is
+ * bursting, so a storm stays a burst instead of becoming the new normal.
+ * A burst that lasts the maximum number of intervals is taken as a lasting
+ * change of rate instead: the average is re-seeded from the counts seen
+ * during the burst, the variance is cleared, and the source is watched
+ * from its new level. A burst is reported once, when it starts, and again
+ * only after the source has calmed down or settled at a new rate.
+ * <p>
+ * Per source the state is a count, a mean, a variance, a warmup count, a
+ * burst flag and the length and total of the current burst, kept
+ * in flat arrays indexed by the source's id in a {@link whgSourceIndex}, so
+ * counting allocates nothing and memory does not grow with traffic. A source
+ * that has gone quiet, its average below one alert in a hundred intervals,
+ * is forgotten and its id reused; if it comes back it is watched through
+ * the warmup again. Bursts
+ * are logged and sent as JSON messages to an SQS queue, such as
+ * {"alertSourceId":"db-7","at":1444000020000,"count":480,"expected":12.5,"sigma":3.1,"sigmas":150.8}.
+ * <p>
+ * Settings are read from system properties by {@link #fromProperties()}:
+ * <ul>
+ * <li>whg.analysis.burst.intervalMillis - counting interval (default 1000)</li>
+ * <li>whg.analysis.burst.alpha - weight of the newest interval in the average (default 0.05)</li>
+ * <li>whg.analysis.burst.sigmas - standard deviations above the average that make a burst (default 4)</li>
+ * <li>whg.analysis.burst.minAlerts - fewest alerts in an interval that can be a burst (default 10)</li>
+ * <li>whg.analysis.burst.warmup - intervals a source is watched before it can burst (default 30)</li>
+ * <li>whg.analysis.burst.maxIntervals - intervals a burst may last before its rate becomes the average (default 300)</li>
+ * <li>whg.analysis.burst.maxSources - sources tracked at once; alerts from any more are ignored (default 1000000)</li>
+ * <li>whg.analysis.burst.queue - queue bursts are sent to (default alertBursts; empty to only log them)</li>
+ * </ul>
+ */
+public class whgBurstDetector {
+
+	private static final int INITIAL_SOURCES = 1024;
+	// an average below this many alerts per interval is a source gone quiet
+	private static final double IDLE_MEAN = 0.01;
+
+	private static final whgLog log = whgLog.get("Bursts");
+
+	/**
+	 * A burst found at the end of an interval, waiting to be sent.
+	 */
+	private static final class Burst {
+
+		final String sourceId;
+		final long at;
+		final int count;
+		final double expected;
+		final double sigma;
+
+		Burst(String sourceId, long at, int count, double expected, double sigma) {
+			this.sourceId = sourceId;
+			this.at = at;
+			this.count = count;
+			this.expected = expected;
+			this.sigma = sigma;
+		}
+	}
+
+	private final long intervalMillis;
+	private final double alpha;
+	private final double sigmas;
+	private final int minAlerts;
+	private final int warmup;
+	private final int maxBurstIntervals;
+	private final AmazonSQS sqs;
+	private final String queue;
+	private ScheduledExecutorService ticker;
+
+	// guarded by this; indexed by source id
+	private final whgSourceIndex sources;
+	private int[] counts = new int[INITIAL_SOURCES];
+	private double[] means = new double[INITIAL_SOURCES];
+	private double[] variances = new double[INITIAL_SOURCES];
+	private int[] intervalsSeen = new int[INITIAL_SOURCES];
+	private boolean[] bursting = new boolean[INITIAL_SOURCES];
+	// intervals and alerts, after scaling, since the current burst started
+	private int[] burstIntervals = new int[INITIAL_SOURCES];
+	private double[] burstCounts = new double[INITIAL_SOURCES];
+	private long intervalStart;
+
+	private final whgCounter bursts = whgMetrics.counter("whg_analysis_bursts_total");
+	private final whgCounter ignored = whgMetrics.counter("whg_analysis_burst_sources_dropped_total");
+	private final whgCounter sendErrors = whgMetrics.counter("whg_analysis_burst_send_errors_total");
+	private final whgHistogram checkLatency = whgMetrics.histogram("whg_analysis_burst_check_seconds");
+
+	/**
+	 * @param sqs client for the burst queue, or null to only log bursts
+	 */
+	public whgBurstDetector(long intervalMillis, double alpha, double sigmas, int minAlerts, int warmup,
+			int maxBurstIntervals, int maxSources, AmazonSQS sqs, String queue) {
+		this.intervalMillis = intervalMillis;
+		this.alpha = alpha;
+		this.sigmas = sigmas;
+		this.minAlerts = minAlerts;
+		this.warmup = warmup;
+		this.maxBurstIntervals = Math.max(1, maxBurstIntervals);
+		this.sources = new whgSourceIndex(INITIAL_SOURCES, maxSources);
+		this.sqs = sqs;
+		this.queue = queue;
+	}
+
+
+	public static whgBurstDetector fromProperties() {
+		String queue = System.getProperty("whg.analysis.burst.queue", "alertBursts");
+		return new whgBurstDetector(Long.getLong("whg.analysis.burst.intervalMillis", 1000L),
+				Double.parseDouble(System.getProperty("whg.analysis.burst.alpha", "0.05")),
+				Double.parseDouble(System.getProperty("whg.analysis.burst.sigmas", "4")),
+				Integer.getInteger("whg.analysis.burst.minAlerts", 10),
+				Integer.getInteger("whg.analysis.burst.warmup", 30),
+				Integer.getInteger("whg.analysis.burst.maxIntervals", 300),
+				Integer.getInteger("whg.analysis.burst.maxSources", 1000000),
+				queue.isEmpty() ? null : whgHelper.setQueueAccess(whgHelper.getCred("jreilly")), queue);
+	}
+
+
+	/**
+	 * Starts the thread that closes each interval and sends bursts.
+	 */
+	public synchronized void start() {
+		if (ticker != null) {
+			return;
+		}
+		intervalStart = System.currentTimeMillis();
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "analysis-bursts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					send(check(System.currentTimeMillis()));
+				} catch (RuntimeException e) {
+					// a scheduled task that throws is never run again
+					log.error("checkFailed", "error", e);
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Counts one alert from the source in the current interval.
+	 */
+	public synchronized void add(String sourceId) {
+		int id = sources.idOf(sourceId);
+		if (id < 0) {
+			ignored.increment();
+			return;
+		}
+		if (id >= counts.length) {
+			int capacity = sources.capacity();
+			counts = Arrays.copyOf(counts, capacity);
+			means = Arrays.copyOf(means, capacity);
+			variances = Arrays.copyOf(variances, capacity);
+			intervalsSeen = Arrays.copyOf(intervalsSeen, capacity);
+			bursting = Arrays.copyOf(bursting, capacity);
+			burstIntervals = Arrays.copyOf(burstIntervals, capacity);
+			burstCounts = Arrays.copyOf(burstCounts, capacity);
+		}
+		counts[id]++;
+	}
+
+
+	/**
+	 * Ends the current interval: checks every source for a burst, folds its
+	 * count into its average and starts the next interval.
+	 *
+	 * @return the bursts that started in this interval
+	 */
+	synchronized List<Burst> check(long nowMillis) {
+		long start = System.nanoTime();
+		List<Burst> found = null;
+		// a late tick stretches the interval; scale counts back to one interval
+		double scale = nowMillis > intervalStart ? (double) intervalMillis / (nowMillis - intervalStart) : 1.0;
+		intervalStart = nowMillis;
+
+		int limit = sources.limit();
+		for (int id = 0; id < limit; id++) {
+			if (sources.sourceOf(id) == null) {
+				continue;
+			}
+			double count = counts[id] * scale;
+			double mean = means[id];
+			if (intervalsSeen[id] == 0) {
+				// the first interval seeds the average instead of pulling it up from zero
+				means[id] = count;
+				intervalsSeen[id] = 1;
+				counts[id] = 0;
+				continue;
+			}
+
+			// a steady source has almost no variance; allow at least the spread of random arrivals
+			double sigma = Math.sqrt(Math.max(variances[id], mean));
+			boolean high = counts[id] >= minAlerts && count - mean > sigmas * sigma;
+			if (high && !bursting[id] && intervalsSeen[id] >= warmup) {
+				bursting[id] = true;
+				bursts.increment();
+				if (found == null) {
+					found = new ArrayList<Burst>();
+				}
+				found.add(new Burst(sources.sourceOf(id), nowMillis, counts[id], mean, sigma));
+			} else if (!high && bursting[id]) {
+				bursting[id] = false;
+				burstIntervals[id] = 0;
+				burstCounts[id] = 0;
+				log.info("burstEnded", "source", sources.sourceOf(id), "count", counts[id]);
+			}
+
+			counts[id] = 0;
+			if (bursting[id]) {
+				// a storm is not folded in, so it cannot make itself look normal,
+				// until it has gone on so long that it is the normal
+				burstCounts[id] += count;
+				if (++burstIntervals[id] < maxBurstIntervals) {
+					continue;
+				}
+				means[id] = burstCounts[id] / burstIntervals[id];
+				variances[id] = 0;
+				bursting[id] = false;
+				burstIntervals[id] = 0;
+				burstCounts[id] = 0;
+				log.info("burstSettled", "source", sources.sourceOf(id), "mean", means[id]);
+				continue;
+			}
+
+			// exponentially weighted mean and variance
+			double diff = count - mean;
+			double increment = alpha * diff;
+			means[id] = mean + increment;
+			variances[id] = (1 - alpha) * (variances[id] + diff * increment);
+			if (intervalsSeen[id] < warmup) {
+				intervalsSeen[id]++;
+			}
+			if (count == 0 && means[id] < IDLE_MEAN) {
+				forget(id);
+			}
+		}
+		checkLatency.recordSince(start);
+		return found;
+	}
+
+
+	/**
+	 * Clears a quiet source's state and releases its id.
+	 */
+	private void forget(int id) {
+		counts[id] = 0;
+		means[id] = 0;
+		variances[id] = 0;
+		intervalsSeen[id] = 0;
+		bursting[id] = false;
+		burstIntervals[id] = 0;
+		burstCounts[id] = 0;
+		sources.release(id);
+	}
+
+
+	private void send(List<Burst> found) {
+		if (found == null) {
+			return;
+		}
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+		for (Burst burst : found) {
+			log.warn("burst", "source", burst.sourceId, "count", burst.count, "expected", burst.expected,
+					"sigma", burst.sigma);
+			entries.add(new SendMessageBatchRequestEntry(String.valueOf(entries.size()), toJSON(burst)));
+			if (entries.size() == whgBatchForwarder.MAX_BATCH_ENTRIES) {
+				sendBatch(entries);
+			}
+		}
+		sendBatch(entries);
+	}
+
+
+	private void sendBatch(List<SendMessageBatchRequestEntry> entries) {
+		if (sqs == null || entries.isEmpty()) {
+			entries.clear();
+			return;
+		}
+		try {
+			SendMessageBatchResult result = sqs.sendMessageBatch(
+					new SendMessageBatchRequest(queue, new ArrayList<SendMessageBatchRequestEntry>(entries)));
+			for (BatchResultErrorEntry error : result.getFailed()) {
+				sendErrors.increment();
+				log.warn("burstSendFailed", "queue", queue, "code", error.getCode(), "error", error.getMessage());
+			}
+		} catch (AmazonClientException e) {
+			sendErrors.add(entries.size());
+			log.warn("burstSendFailed", "queue", queue, "bursts", entries.size(), "error", e);
+		} finally {
+			entries.clear();
+		}
+	}
+
+
+	private static String toJSON(Burst burst) {
+		double sigmasAbove = burst.sigma > 0 ? (burst.count - burst.expected) / burst.sigma : 0;
+		StringBuilder json = new StringBuilder(160);
+		json.append("{\"alertSourceId\":\"");
+		whgWindowQueue.appendEscaped(json, burst.sourceId);
+		return json.append("\",\"at\":").append(burst.at)
+				.append(",\"count\":").append(burst.count)
+				.append(",\"expected\":").append(burst.expected)
+				.append(",\"sigma\":").append(burst.sigma)
+				.append(",\"sigmas\":").append(sigmasAbove)
+				.append('}').toString();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.MemcachedClient;
+
+/**
+ * The process-wide cache client.
+ * <p>
+ * One MemcachedClient is created on first use and shared by every thread, so
+ * alerts reuse its connection instead of opening their own. Sets are
+ * asynchronous; issuing the sets for a whole batch before waiting on any of
+ * them lets the client pipeline them over the connection in a single round
+ * trip.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.cache.endpoint - cluster configuration endpoint</li>
+ * <li>whg.cache.port - cluster port (default 6379)</li>
+ * <li>whg.cache.opTimeoutMillis - how long an operation may take (default 1000)</li>
+ * </ul>
+ */
+public class whgCacheClient {
+
+	private static final String DEFAULT_ENDPOINT = "alertsbrdregrol-001.tiluxk.0001.use1.cache.amazonaws.com";
+	private static final int DEFAULT_PORT = 6379;
+
+	private static whgCacheClient instance;
+
+	private final MemcachedClient client;
+	private final long opTimeoutMillis;
+
+	private final whgHistogram setLatency = whgMetrics.histogram("whg_cache_set_seconds");
+	private final whgCounter errors = whgMetrics.counter("whg_cache_errors_total");
+
+	private whgCacheClient(String endpoint, int port, long opTimeoutMillis) throws IOException {
+		this.opTimeoutMillis = opTimeoutMillis;
+		List<InetSocketAddress> addresses = Collections.singletonList(new InetSocketAddress(endpoint, port));
+		this.client = new MemcachedClient(new ConnectionFactoryBuilder().setOpTimeout(opTimeoutMillis).build(), addresses);
+	}
+
+
+	/**
+	 * Returns the shared client, connecting on first use.
+	 */
+	public static synchronized whgCacheClient get() throws IOException {
+		if (instance == null) {
+			// with whg.local set, the cache is an in-process server on the loopback interface
+			boolean local = whgLocal.enabled();
+			final whgCacheClient created = new whgCacheClient(
+					local ? "127.0.0.1" : System.getProperty("whg.cache.endpoint", DEFAULT_ENDPOINT),
+					local ? whgLocal.cachePort() : Integer.getInteger("whg.cache.port", DEFAULT_PORT),
+					Long.getLong("whg.cache.opTimeoutMillis", 1000L));
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					created.client.shutdown(created.opTimeoutMillis, TimeUnit.MILLISECONDS);
+				}
+			}, "cache-shutdown"));
+			instance = created;
+		}
+		return instance;
+	}
+
+
+	/**
+	 * Starts storing a value without waiting for the cache to answer.
+	 */
+	public Future<Boolean> set(String key, int expirySeconds, String value) {
+		return new TimedSet(client.set(key, expirySeconds, value));
+	}
+
+
+	/**
+	 * Waits up to the operation timeout for a set to be confirmed.
+	 *
+	 * @return true if the cache stored the value
+	 */
+	public boolean await(Future<Boolean> set) throws InterruptedException {
+		boolean stored = false;
+		try {
+			stored = Boolean.TRUE.equals(set.get(opTimeoutMillis, TimeUnit.MILLISECONDS));
+			return stored;
+		} catch (TimeoutException e) {
+			set.cancel(false);
+			return false;
+		} catch (ExecutionException e) {
+			return false;
+		} finally {
+			// waited for in issue order, so a set is timed to when its turn to be checked came
+			if (set instanceof TimedSet) {
+				setLatency.recordSince(((TimedSet) set).issuedAt);
+			}
+			if (!stored) {
+				errors.increment();
+			}
+		}
+	}
+
+
+	/**
+	 * A set remembering when it was issued.
+	 */
+	private static final class TimedSet implements Future<Boolean> {
+
+		private final Future<Boolean> set;
+		private final long issuedAt = System.nanoTime();
+
+		TimedSet(Future<Boolean> set) {
+			this.set = set;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return set.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return set.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return set.isDone();
+		}
+
+		@Override
+		public Boolean get() throws InterruptedException, ExecutionException {
+			return set.get();
+		}
+
+		@Override
+		public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return set.get(timeout, unit);
+		}
+	}
+}
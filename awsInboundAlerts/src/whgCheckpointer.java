@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.KinesisClientLibDependencyException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ShutdownException;
+import com.amazonaws.services.kinesis.clientlibrary.exceptions.ThrottlingException;
+import com.amazonaws.services.kinesis.clientlibrary.interfaces.IRecordProcessorCheckpointer;
+
+/**
+ * Checkpoints one shard in the background, at the sequence number its
+ * {@link whgSequenceTracker} says is complete.
+ * <p>
+ * After each batch, empty ones included, the record processor asks whether
+ * a checkpoint is due. One is due once whg.kcl.checkpointRecords records
+ * (default 10000) have completed since the last, once
+ * whg.kcl.checkpointMillis (default 60000) have passed, or, while the shard
+ * looks caught up, once whg.kcl.checkpointMinMillis (default 5000) have
+ * passed, so that a caught-up shard replays little after a failover.
+ * <p>
+ * KCL 1.2.1 does not hand the processor MillisBehindLatest, so "caught up"
+ * means an empty batch, or a newest alert whose end-to-end age, from ingest
+ * to now, is under whg.kcl.checkpointAgeMillis (default 10000). That age
+ * includes time spent in the SQS stages, not only time spent on the shard.
+ * <p>
+ * Checkpoints are written on a shared background thread, never on the
+ * shard's. Requests made while one is being written, or retried after
+ * throttling, are coalesced into one at the newest sequence number.
+ * <p>
+ * whg_kcl_checkpoint_seconds times each checkpoint. The replay window, what
+ * a failover would reprocess, is whg_kcl_completed_records_total less
+ * whg_kcl_checkpointed_records_total in records, and
+ * whg_kcl_replay_window_seconds in time at each checkpoint.
+ */
+public class whgCheckpointer {
+
+	private static final long BACKOFF_MILLIS = 1000L;
+	private static final int MAX_ATTEMPTS = 10;
+
+	private static final whgLog log = whgLog.get("Checkpoint");
+
+	private static final ExecutorService CHECKPOINTS = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "kcl-checkpoint");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final whgHistogram latency = whgMetrics.histogram("whg_kcl_checkpoint_seconds");
+	private static final whgHistogram replayWindow = whgMetrics.histogram("whg_kcl_replay_window_seconds");
+	private static final whgCounter checkpointed = whgMetrics.counter("whg_kcl_checkpointed_records_total");
+	private static final whgCounter throttles = whgMetrics.counter("whg_kcl_checkpoint_throttles_total");
+	private static final whgCounter errors = whgMetrics.counter("whg_kcl_checkpoint_errors_total");
+
+	private final String shardId;
+	private final whgSequenceTracker tracker;
+	private final long everyRecords = Math.max(1, Long.getLong("whg.kcl.checkpointRecords", 10000L));
+	private final long everyMillis = Long.getLong("whg.kcl.checkpointMillis", 60000L);
+	private final long caughtUpMillis = Long.getLong("whg.kcl.checkpointMinMillis", 5000L);
+	private final long caughtUpAgeMillis = Long.getLong("whg.kcl.checkpointAgeMillis", 10000L);
+
+	// guarded by this
+	private IRecordProcessorCheckpointer checkpointer;
+	private String requested;
+	private long requestedCount;
+	private boolean writing;
+	private boolean closed;
+	private long checkpointedCount;
+	private long checkpointedAt = System.currentTimeMillis();
+	private long windowStartedAt;
+
+	private final Runnable writer = new Runnable() {
+		@Override
+		public void run() {
+			write();
+		}
+	};
+
+	public whgCheckpointer(String shardId, whgSequenceTracker tracker) {
+		this.shardId = shardId;
+		this.tracker = tracker;
+	}
+
+
+	/**
+	 * Requests a checkpoint if one is due. Returns at once.
+	 *
+	 * @param checkpointer the checkpointer KCL passed with the latest batch
+	 * @param alertAgeMillis end-to-end age of the newest alert read, 0 if the
+	 *            shard has been read to its tip, or Long.MAX_VALUE if unknown
+	 */
+	public synchronized void checkpointIfDue(IRecordProcessorCheckpointer checkpointer, long alertAgeMillis) {
+		this.checkpointer = checkpointer;
+		String completedThrough = tracker.getCompletedThrough();
+		long completedCount = tracker.getCompletedCount();
+		if (closed || completedThrough == null || completedCount == Math.max(checkpointedCount, requestedCount)) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		if (windowStartedAt == 0) {
+			windowStartedAt = now;
+		}
+		long elapsed = now - checkpointedAt;
+		if (completedCount - checkpointedCount >= everyRecords || elapsed >= everyMillis
+				|| (alertAgeMillis <= caughtUpAgeMillis && elapsed >= caughtUpMillis)) {
+			requested = completedThrough;
+			requestedCount = completedCount;
+			if (!writing) {
+				writing = true;
+				CHECKPOINTS.execute(writer);
+			}
+		}
+	}
+
+
+	/**
+	 * Stops checkpointing, as when the shard's lease has been lost.
+	 */
+	public synchronized void close() {
+		closed = true;
+		requested = null;
+	}
+
+
+	/**
+	 * Waits for any checkpoint being written, then checkpoints the end of the
+	 * shard. Every record must be complete.
+	 */
+	public void checkpointEndOfShard(IRecordProcessorCheckpointer checkpointer) throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			requested = null;
+			while (writing) {
+				wait();
+			}
+		}
+		checkpoint(checkpointer, null, tracker.getCompletedCount());
+	}
+
+
+	/**
+	 * Writes the newest requested checkpoint until no request is left.
+	 */
+	private void write() {
+		while (true) {
+			IRecordProcessorCheckpointer target;
+			String sequenceNumber;
+			long count;
+			synchronized (this) {
+				if (requested == null || closed) {
+					writing = false;
+					notifyAll();
+					return;
+				}
+				target = checkpointer;
+				sequenceNumber = requested;
+				count = requestedCount;
+				requested = null;
+			}
+			if (!checkpoint(target, sequenceNumber, count)) {
+				synchronized (this) {
+					// retried later, unless a newer request has already taken its place
+					if (requested == null && !closed) {
+						requested = sequenceNumber;
+						requestedCount = count;
+					}
+				}
+				try {
+					Thread.sleep(BACKOFF_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					synchronized (this) {
+						writing = false;
+						notifyAll();
+					}
+					return;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Makes one checkpoint, retrying throttled attempts when it is the end of
+	 * the shard.
+	 *
+	 * @param sequenceNumber where to checkpoint, or null for the end of the shard
+	 * @return false if the checkpoint was throttled and should be retried
+	 */
+	private boolean checkpoint(IRecordProcessorCheckpointer target, String sequenceNumber, long count) {
+		int attempts = sequenceNumber == null ? MAX_ATTEMPTS : 1;
+		for (int i = 0; i < attempts; i++) {
+			long start = System.nanoTime();
+			try {
+				if (sequenceNumber == null) {
+					target.checkpoint();
+				} else {
+					target.checkpoint(sequenceNumber);
+				}
+				latency.recordSince(start);
+				checkpointed(count);
+				log.debug("checkpointed", "shard", shardId, "sequenceNumber", sequenceNumber);
+				return true;
+			} catch (ThrottlingException e) {
+				throttles.increment();
+				log.info("checkpointThrottled", "shard", shardId, "attempt", i + 1);
+			} catch (KinesisClientLibDependencyException e) {
+				throttles.increment();
+				log.info("checkpointDependencyFailed", "shard", shardId, "attempt", i + 1, "error", e);
+			} catch (ShutdownException e) {
+				// the lease has moved to another worker, which checkpoints from here on
+				log.info("checkpointAfterShutdown", "shard", shardId);
+				close();
+				return true;
+			} catch (InvalidStateException e) {
+				// the KCL lease table is missing or unusable; a later request tries again
+				errors.increment();
+				log.error("checkpointFailed", "shard", shardId, "error", e);
+				return true;
+			}
+			if (i + 1 < attempts) {
+				try {
+					TimeUnit.MILLISECONDS.sleep(BACKOFF_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if (sequenceNumber == null) {
+			errors.increment();
+			log.error("endOfShardCheckpointFailed", "shard", shardId, "attempts", attempts);
+		}
+		return sequenceNumber == null;
+	}
+
+
+	private synchronized void checkpointed(long count) {
+		long now = System.currentTimeMillis();
+		checkpointed.add(count - checkpointedCount);
+		if (windowStartedAt != 0) {
+			replayWindow.record(TimeUnit.MILLISECONDS.toNanos(now - windowStartedAt));
+		}
+		checkpointedCount = count;
+		checkpointedAt = now;
+		// records completed while the checkpoint was being written open the next window
+		windowStartedAt = tracker.getCompletedCount() > count ? now : 0;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that many threads can add to without contending on one memory
+ * location.
+ * <p>
+ * Each thread adds to one of several cells chosen by its id, and the cells
+ * are spaced a cache line apart so threads on different cells do not share
+ * a line. Reading sums the cells, so a read racing with adds may miss the
+ * adds in progress.
+ */
+public class whgCounter {
+
+	// longs per 64-byte cache line
+	private static final int STRIDE = 8;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	public whgCounter() {
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+		this.mask = stripes - 1;
+		this.cells = new AtomicLongArray(stripes * STRIDE);
+	}
+
+
+	public void increment() {
+		add(1);
+	}
+
+
+	public void add(long amount) {
+		cells.getAndAdd(cell(), amount);
+	}
+
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += STRIDE) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+
+	private int cell() {
+		// thread ids are sequential, so spread them before taking the low bits
+		long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int) (id >>> 32) & mask) * STRIDE;
+	}
+}
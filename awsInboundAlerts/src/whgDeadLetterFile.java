@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Appends failed records to a local spill file, one per line, for replaying
+ * or inspecting later.
+ * <p>
+ * Each line holds, tab separated, the time it was written, the shard, the
+ * sequence number, the partition key, the record data in Base64 and the
+ * reason. The file is dead-letters.log in the directory named by
+ * whg.kcl.deadLetterDir (default "deadletters"). Writers to the same file
+ * must share one instance, {@link #shared()} for the default file, or their
+ * lines can interleave.
+ */
+public class whgDeadLetterFile implements whgDeadLetterSink {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static whgDeadLetterFile shared;
+
+	private final File file;
+	private Writer out;
+
+	public whgDeadLetterFile() {
+		this(new File(System.getProperty("whg.kcl.deadLetterDir", "deadletters"), "dead-letters.log"));
+	}
+
+
+	public whgDeadLetterFile(File file) {
+		this.file = file;
+	}
+
+
+	/**
+	 * The spill file shared by the process, created on first use.
+	 */
+	public static synchronized whgDeadLetterFile shared() {
+		if (shared == null) {
+			shared = new whgDeadLetterFile();
+		}
+		return shared;
+	}
+
+
+	public File getFile() {
+		return file;
+	}
+
+
+	@Override
+	public synchronized void send(String shardId, Record record, String reason) throws IOException {
+		if (out == null) {
+			File directory = file.getAbsoluteFile().getParentFile();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create " + directory);
+			}
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+		}
+
+		ByteBuffer data = record.getData().duplicate();
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+
+		out.write(System.currentTimeMillis() + "\t" + shardId + "\t" + record.getSequenceNumber() + "\t"
+				+ record.getPartitionKey() + "\t" + Base64.encodeBase64String(bytes) + "\t"
+				+ String.valueOf(reason).replace('\t', ' ').replace('\n', ' ').replace('\r', ' ') + "\n");
+		// dead letters are rare; each is on disk before the record is checkpointed past
+		out.flush();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Sends failed records to an SQS queue, by default alertErrorHandling (set
+ * with whg.kcl.deadLetterQueue), so they join the alerts already waiting
+ * there for attention.
+ * <p>
+ * The message body is the record data in Base64; the shard, sequence
+ * number, partition key and reason travel as message attributes. A record
+ * that cannot be sent is written to the spill file instead.
+ */
+public class whgDeadLetterQueue implements whgDeadLetterSink {
+
+	private static final whgLog log = whgLog.get("DeadLetter");
+
+	private final AmazonSQS sqs;
+	private final String queue;
+	private final whgDeadLetterFile fallback = whgDeadLetterFile.shared();
+
+	public whgDeadLetterQueue(AmazonSQS sqs, String queue) {
+		this.sqs = sqs;
+		this.queue = queue;
+	}
+
+
+	@Override
+	public void send(String shardId, Record record, String reason) throws IOException {
+		ByteBuffer data = record.getData().duplicate();
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+
+		Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		attributes.put("shardId", attribute(shardId));
+		attributes.put("sequenceNumber", attribute(record.getSequenceNumber()));
+		attributes.put("partitionKey", attribute(record.getPartitionKey()));
+		attributes.put("reason", attribute(reason));
+		try {
+			sqs.sendMessage(new SendMessageRequest(queue, Base64.encodeBase64String(bytes))
+					.withMessageAttributes(attributes));
+		} catch (AmazonClientException e) {
+			log.warn("deadLetterSendFailed", "queue", queue, "sequenceNumber", record.getSequenceNumber(),
+					"file", fallback.getFile(), "error", e);
+			fallback.send(shardId, record, reason);
+		}
+	}
+
+
+	private static MessageAttributeValue attribute(String value) {
+		// SQS rejects empty attribute values
+		return new MessageAttributeValue().withDataType("String")
+				.withStringValue(value == null || value.isEmpty() ? "-" : value);
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Where stream records go when they cannot be processed, so one bad record
+ * is set aside instead of holding up its shard.
+ * <p>
+ * The sink is picked with the system property whg.kcl.deadLetter: "file"
+ * for {@link whgDeadLetterFile} (the default) or "sqs" for
+ * {@link whgDeadLetterQueue}.
+ */
+public interface whgDeadLetterSink {
+
+	/**
+	 * @param shardId the shard the record was read from
+	 * @param record the record that failed
+	 * @param reason why it failed
+	 * @throws IOException if the record could not be set aside
+	 */
+	void send(String shardId, Record record, String reason) throws IOException;
+}
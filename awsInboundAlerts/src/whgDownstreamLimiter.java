@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of concurrent calls a stage makes to one downstream
+ * service (DynamoDB, Kinesis, the cache), however many messages are in
+ * flight.
+ * <p>
+ * Limiters are shared per name. The limit for a downstream is read from the
+ * system property whg.limit.&lt;name&gt; (default 64). Time spent waiting for a
+ * permit is recorded so a saturated downstream shows up in {@link #report()}.
+ */
+public class whgDownstreamLimiter {
+
+	private static final int DEFAULT_LIMIT = 64;
+
+	private static final whgLog log = whgLog.get("Limiter");
+
+	private static final ConcurrentMap<String, whgDownstreamLimiter> limiters =
+			new ConcurrentHashMap<String, whgDownstreamLimiter>();
+
+	private final String name;
+	private final int limit;
+	private final Semaphore permits;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	private whgDownstreamLimiter(String name, int limit) {
+		this.name = name;
+		this.limit = limit;
+		this.permits = new Semaphore(limit);
+	}
+
+
+	public static whgDownstreamLimiter get(String name) {
+		whgDownstreamLimiter limiter = limiters.get(name);
+		if (limiter == null) {
+			int limit = Math.max(1, Integer.getInteger("whg.limit." + name, DEFAULT_LIMIT));
+			whgDownstreamLimiter created = new whgDownstreamLimiter(name, limit);
+			limiter = limiters.putIfAbsent(name, created);
+			if (limiter == null) {
+				limiter = created;
+			}
+		}
+		return limiter;
+	}
+
+
+	/**
+	 * Blocks until a call to this downstream may start. Every successful
+	 * acquire must be matched by a {@link #release()} in a finally block.
+	 */
+	public void acquire() throws InterruptedException {
+		calls.incrementAndGet();
+		if (permits.tryAcquire()) {
+			return;
+		}
+		long start = System.nanoTime();
+		permits.acquire();
+		waits.incrementAndGet();
+		waitNanos.addAndGet(System.nanoTime() - start);
+	}
+
+
+	public void release() {
+		permits.release();
+	}
+
+
+	/**
+	 * Logs call and wait counts for every downstream used so far.
+	 */
+	public static void report() {
+		for (whgDownstreamLimiter limiter : limiters.values()) {
+			long waited = limiter.waits.get();
+			log.info("limiter", "downstream", limiter.name, "limit", limiter.limit, "calls", limiter.calls.get(),
+					"waited", waited, "averageWaitMillis", waited == 0 ? 0.0 : limiter.waitNanos.get() / 1e6 / waited,
+					"inUse", limiter.limit - limiter.permits.availablePermits());
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+/**
+ * Write-behind sink that coalesces alert items into BatchWriteItem calls.
+ * <p>
+ * Callers add an item and wait on the returned {@link Write}. Writer threads
+ * send a batch as soon as 25 items are buffered, or once the oldest buffered
+ * item has waited the linger time. Items DynamoDB returns as unprocessed, and
+ * whole batches rejected for throughput, are resubmitted after a jittered
+ * exponential backoff. A write completes only when its item is confirmed
+ * stored, so callers can acknowledge the source message afterwards.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.dynamodb.lingerMillis - longest an item waits for a fuller batch (default 10)</li>
+ * <li>whg.dynamodb.writers - concurrent BatchWriteItem calls (default 4)</li>
+ * </ul>
+ */
+public class whgDynamoBatchWriter {
+
+	// DynamoDB limit per BatchWriteItem call
+	public static final int MAX_BATCH_ITEMS = 25;
+
+	private static final int MAX_ATTEMPTS = 10;
+	private static final long BASE_BACKOFF_MILLIS = 50L;
+	private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+	private static final whgLog log = whgLog.get("Writer");
+
+	private final AmazonDynamoDB dynamoDB;
+	private final String tableName;
+	private final String keyName;
+	private final long lingerNanos;
+	private final whgDownstreamLimiter limiter = whgDownstreamLimiter.get("dynamodb");
+	private final Random random = new Random();
+
+	private final whgHistogram callLatency;
+	private final whgHistogram writeLatency;
+	private final whgCounter throttles;
+	private final whgCounter errors;
+	private final whgCounter unprocessedItems;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final LinkedList<Write> buffer = new LinkedList<Write>();
+
+	/**
+	 * A buffered item; completes once the item is stored or has failed for good.
+	 */
+	public static final class Write {
+
+		private final Map<String, AttributeValue> item;
+		private final long addedAt = System.nanoTime();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile AmazonClientException error;
+
+		Write(Map<String, AttributeValue> item) {
+			this.item = item;
+		}
+
+		/**
+		 * Waits until the item is stored.
+		 *
+		 * @throws AmazonClientException if the item could not be written
+		 */
+		public void await() throws InterruptedException {
+			done.await();
+			if (error != null) {
+				throw error;
+			}
+		}
+
+		void complete(AmazonClientException error) {
+			// only the writer thread completes a write; the first outcome stands
+			if (done.getCount() == 0) {
+				return;
+			}
+			this.error = error;
+			done.countDown();
+		}
+	}
+
+	public whgDynamoBatchWriter(AmazonDynamoDB dynamoDB, String tableName, String keyName) {
+		this.dynamoDB = dynamoDB;
+		this.tableName = tableName;
+		this.keyName = keyName;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("whg.dynamodb.lingerMillis", 10L));
+
+		this.callLatency = whgMetrics.histogram("whg_dynamodb_batch_write_seconds", "table", tableName);
+		this.writeLatency = whgMetrics.histogram("whg_dynamodb_item_write_seconds", "table", tableName);
+		this.throttles = whgMetrics.counter("whg_dynamodb_throttles_total", "table", tableName);
+		this.errors = whgMetrics.counter("whg_dynamodb_errors_total", "table", tableName);
+		this.unprocessedItems = whgMetrics.counter("whg_dynamodb_unprocessed_items_total", "table", tableName);
+
+		int writers = Math.max(1, Integer.getInteger("whg.dynamodb.writers", 4));
+		for (int i = 0; i < writers; i++) {
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeBatches();
+				}
+			}, tableName + "-writer-" + i);
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+
+	/**
+	 * Buffers an item for the next batch.
+	 */
+	public Write write(Map<String, AttributeValue> item) {
+		Write write = new Write(item);
+		lock.lock();
+		try {
+			buffer.add(write);
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+		return write;
+	}
+
+
+	private void writeBatches() {
+		while (true) {
+			List<Write> batch;
+			try {
+				batch = takeBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				writeBatch(batch);
+			} catch (RuntimeException e) {
+				// anything else thrown fails just these writes; ending the thread
+				// would leave every later await() blocked
+				errors.increment();
+				log.warn("batchWriteFailed", "table", tableName, "count", batch.size(), "error", e);
+				fail(batch, new AmazonClientException("Unexpected failure writing to " + tableName, e));
+			}
+		}
+	}
+
+
+	/**
+	 * Waits for a full batch or for the oldest item's linger time to run out.
+	 */
+	private List<Write> takeBatch() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				if (buffer.size() >= MAX_BATCH_ITEMS) {
+					break;
+				}
+				if (buffer.isEmpty()) {
+					changed.await();
+					continue;
+				}
+				long wait = buffer.getFirst().addedAt + lingerNanos - System.nanoTime();
+				if (wait <= 0) {
+					break;
+				}
+				changed.awaitNanos(wait);
+			}
+
+			// a batch may not hold two writes for the same key, so later ones wait their turn
+			List<Write> batch = new ArrayList<Write>(MAX_BATCH_ITEMS);
+			Set<String> keys = new HashSet<String>();
+			for (Iterator<Write> i = buffer.iterator(); i.hasNext() && batch.size() < MAX_BATCH_ITEMS;) {
+				Write write = i.next();
+				if (keys.add(key(write.item))) {
+					batch.add(write);
+					i.remove();
+				}
+			}
+			if (!buffer.isEmpty()) {
+				changed.signal();
+			}
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	private void writeBatch(List<Write> batch) {
+
+		for (int attempt = 1; !batch.isEmpty(); attempt++) {
+			if (attempt > 1) {
+				if (!backoff(attempt)) {
+					fail(batch, new AmazonClientException("Interrupted while retrying BatchWriteItem"));
+					return;
+				}
+			}
+
+			Map<String, Write> byKey = new HashMap<String, Write>();
+			List<WriteRequest> requests = new ArrayList<WriteRequest>(batch.size());
+			for (Write write : batch) {
+				byKey.put(key(write.item), write);
+				requests.add(new WriteRequest(new PutRequest(write.item)));
+			}
+			Map<String, List<WriteRequest>> requestItems = new HashMap<String, List<WriteRequest>>();
+			requestItems.put(tableName, requests);
+
+			BatchWriteItemResult result;
+			try {
+				limiter.acquire();
+				long start = System.nanoTime();
+				try {
+					result = dynamoDB.batchWriteItem(new BatchWriteItemRequest(requestItems));
+				} finally {
+					callLatency.recordSince(start);
+					limiter.release();
+				}
+			} catch (ProvisionedThroughputExceededException e) {
+				throttles.increment();
+				// nothing in the batch was written; try all of it again
+				if (attempt >= MAX_ATTEMPTS) {
+					fail(batch, e);
+					return;
+				}
+				continue;
+			} catch (AmazonClientException e) {
+				errors.increment();
+				fail(batch, e);
+				return;
+			} catch (InterruptedException e) {
+				fail(batch, new AmazonClientException("Interrupted while writing to " + tableName, e));
+				return;
+			}
+
+			// everything not handed back as unprocessed is stored
+			List<Write> unprocessed = new ArrayList<Write>();
+			List<WriteRequest> unprocessedRequests = result.getUnprocessedItems() == null ? null
+					: result.getUnprocessedItems().get(tableName);
+			if (unprocessedRequests != null) {
+				for (WriteRequest request : unprocessedRequests) {
+					Write write = byKey.remove(key(request.getPutRequest().getItem()));
+					if (write != null) {
+						unprocessed.add(write);
+					}
+				}
+			}
+			for (Write write : byKey.values()) {
+				write.complete(null);
+				writeLatency.recordSince(write.addedAt);
+			}
+			unprocessedItems.add(unprocessed.size());
+
+			if (!unprocessed.isEmpty() && attempt >= MAX_ATTEMPTS) {
+				fail(unprocessed, new AmazonClientException(unprocessed.size() + " items still unprocessed after "
+						+ attempt + " BatchWriteItem attempts"));
+				return;
+			}
+			batch = unprocessed;
+		}
+	}
+
+
+	/**
+	 * Sleeps for a random time up to an exponentially growing bound.
+	 */
+	private boolean backoff(int attempt) {
+		long bound = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 2, 16));
+		long sleep = 1 + (long) (random.nextDouble() * bound);
+		try {
+			Thread.sleep(sleep);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+
+	private static void fail(List<Write> writes, AmazonClientException error) {
+		for (Write write : writes) {
+			write.complete(error);
+		}
+	}
+
+
+	private String key(Map<String, AttributeValue> item) {
+		AttributeValue key = item.get(keyName);
+		return key.getS() != null ? key.getS() : key.getN();
+	}
+}
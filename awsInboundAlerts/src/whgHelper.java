@@ -17,14 +17,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.model.AttributeDefinition;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
@@ -35,6 +39,7 @@ import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
 import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import com.amazonaws.services.dynamodbv2.model.TableDescription;
 import com.amazonaws.services.dynamodbv2.util.Tables;
+import com.amazonaws.services.kinesis.AmazonKinesis;
 import com.amazonaws.services.kinesis.AmazonKinesisClient;
 import com.amazonaws.services.kinesis.model.CreateStreamRequest;
 import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
@@ -66,12 +71,35 @@ import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
  */
 public class whgHelper {
 
+	// SQS caps a receive at 10 messages and a long poll at 20 seconds
+	public static final int MAX_MESSAGES_PER_RECEIVE = 10;
+	public static final int RECEIVE_WAIT_SECONDS = 20;
+
+	// extra wait after back-to-back empty long polls
+	private static final long EMPTY_RECEIVE_BACKOFF_MILLIS = 250L;
+	private static final long MAX_EMPTY_RECEIVE_BACKOFF_MILLIS = 5000L;
+
+	// stands in for the source of alerts that do not name one
+	private static final Random random = new Random();
+
+	private static final whgLog log = whgLog.get("Helper");
+
+	// receive metrics by queue, so a receive builds no metric keys
+	private static final ConcurrentMap<String, ReceiveMetrics> receiveMetrics =
+			new ConcurrentHashMap<String, ReceiveMetrics>();
+
+	private static whgDeadLetterSink deadLetterSink;
+
 	public static AWSCredentials getCred(String user) {
 		/*
 		 * The ProfileCredentialsProvider will return your [user]
 		 * credential profile by reading from the credentials file located at
 		 * (/Users/johnreilly/.aws/credentials).
 		 */
+		if (whgLocal.enabled()) {
+			// the local stand-ins accept anything
+			return new BasicAWSCredentials("local", "local");
+		}
 		AWSCredentials credentials = null;
 		try {
 			credentials = new ProfileCredentialsProvider(user).getCredentials();
@@ -89,6 +117,10 @@ public class whgHelper {
 
 	public static AmazonSQS setQueueAccess(AWSCredentials credentials) {
 
+		if (whgLocal.enabled()) {
+			return whgLocal.sqs();
+		}
+
 		// setup access with SQS, set region
 		AmazonSQS sqs = new AmazonSQSClient(credentials);
 		Region usEast1 = Region.getRegion(Regions.US_EAST_1);
@@ -98,7 +130,22 @@ public class whgHelper {
 	}
 
 
-	public static void setTable(AmazonDynamoDBClient dynamoDB, String tableName) {
+	public static AmazonDynamoDB setDatabaseAccess(AWSCredentials credentials) {
+
+		if (whgLocal.enabled()) {
+			return whgLocal.dynamoDB();
+		}
+
+		// setup access with DynamoDB, set region
+		AmazonDynamoDBClient dynamoDB = new AmazonDynamoDBClient(credentials);
+		Region usEast1 = Region.getRegion(Regions.US_EAST_1);
+		dynamoDB.setRegion(usEast1);
+		return dynamoDB;
+
+	}
+
+
+	public static void setTable(AmazonDynamoDB dynamoDB, String tableName) {
 
 		// Create table if it does not exist yet
 		if (Tables.doesTableExist(dynamoDB, tableName)) {
@@ -120,29 +167,104 @@ public class whgHelper {
 	}
 
 	
-	public static Map<String, AttributeValue> newAlert(String alertMessageBody) {
+	public static Map<String, AttributeValue> newAlert(whgAlert alertFields, String alertId) {
 		Map<String, AttributeValue> alert = new HashMap<String, AttributeValue>();
+		long now = System.currentTimeMillis();
+
+		// fields were parsed once at inbound and travel with the message
+		String source = alertFields.getSourceId();
+		if (source == null) {
+			source = String.valueOf(random.nextInt(10) + 1);
+		}
+		long alertTime = alertFields.getTimestamp() != 0 ? alertFields.getTimestamp() : now;
 
-		// parse JSON in message body
-		System.out.println("");
-		System.out.println("Alert Attributes: " + String.valueOf(System.currentTimeMillis()));
-		System.out.println("   sourceID: " + String.valueOf(System.currentTimeMillis()));
-		System.out.println("   something: adt" + String.valueOf(System.currentTimeMillis()));
-		System.out.println("   alertmessagebody: " + alertMessageBody);		
-
-		Random rn = new Random();
-		int source = rn.nextInt(10) + 1;
-
-		alert.put("alertId", new AttributeValue(String.valueOf(System.currentTimeMillis())));
-		alert.put("alertSourceId", new AttributeValue(String.valueOf(source)));
-		alert.put("alertDateTime", new AttributeValue("adt" + String.valueOf(System.currentTimeMillis())));
-		alert.put("alertMessageBody", new AttributeValue(alertMessageBody));
-		alert.put("alertPersistedDateTime", new AttributeValue().withN(Double.toString(System.currentTimeMillis())));
+		log.debug("alert", "now", now, "sourceId", source, "alertTime", alertTime, "body", alertFields.getBody());
+
+		alert.put("alertId", new AttributeValue(alertId));
+		alert.put("alertSourceId", new AttributeValue(source));
+		alert.put("alertDateTime", new AttributeValue("adt" + alertTime));
+		if (alertFields.getSeverity() != whgAlert.SEVERITY_UNKNOWN) {
+			alert.put("alertSeverity", new AttributeValue().withN(Integer.toString(alertFields.getSeverity())));
+		}
+		alert.put("alertMessageBody", new AttributeValue(alertFields.getBody()));
+		alert.put("alertPersistedDateTime", new AttributeValue().withN(Double.toString(now)));
 		return alert;
 	}
 	
 
-	public static void setStream(AmazonKinesisClient kinesis, String streamName, int shardCount) {
+	public static whgPartitioner getPartitioner() {
+
+		// the partitioner class may be swapped without code changes
+		String className = System.getProperty("whg.kinesis.partitioner");
+		if (className == null) {
+			return new whgSourcePartitioner();
+		}
+		try {
+			return (whgPartitioner) Class.forName(className).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Cannot create partitioner " + className, e);
+		}
+
+	}
+
+
+	/**
+	 * The dead letter sink shared by every shard of the process, created on
+	 * first use, so lines written for different shards never interleave.
+	 */
+	public static synchronized whgDeadLetterSink getDeadLetterSink() {
+
+		if (deadLetterSink != null) {
+			return deadLetterSink;
+		}
+		// records that keep failing are spilled locally unless a queue is asked for
+		String sink = System.getProperty("whg.kcl.deadLetter", "file");
+		if (sink.equals("file")) {
+			deadLetterSink = whgDeadLetterFile.shared();
+		} else if (sink.equals("sqs")) {
+			deadLetterSink = new whgDeadLetterQueue(setQueueAccess(getCred("jreilly")),
+					System.getProperty("whg.kcl.deadLetterQueue", "alertErrorHandling"));
+		} else {
+			throw new IllegalArgumentException("whg.kcl.deadLetter must be file or sqs, not " + sink);
+		}
+		return deadLetterSink;
+
+	}
+
+
+	public static whgWindowSink getWindowSink() {
+
+		// window results are logged unless a queue is asked for
+		String sink = System.getProperty("whg.analysis.sink", "log");
+		if (sink.equals("log")) {
+			return new whgWindowLog();
+		} else if (sink.equals("sqs")) {
+			return new whgWindowQueue(setQueueAccess(getCred("jreilly")),
+					System.getProperty("whg.analysis.queue", "alertWindows"));
+		} else if (sink.equals("none")) {
+			return null;
+		}
+		throw new IllegalArgumentException("whg.analysis.sink must be log, sqs or none, not " + sink);
+
+	}
+
+
+	public static AmazonKinesis setStreamAccess(AWSCredentials credentials) {
+
+		if (whgLocal.enabled()) {
+			return whgLocal.kinesis();
+		}
+
+		// setup access with Kinesis, set region
+		AmazonKinesis kinesis = new AmazonKinesisClient(credentials);
+		Region usEast1 = Region.getRegion(Regions.US_EAST_1);
+		kinesis.setRegion(usEast1);
+		return kinesis;
+
+	}
+
+
+	public static void setStream(AmazonKinesis kinesis, String streamName, int shardCount) {
 		
 		try {
 			// Describe the stream and check if it exists
@@ -183,7 +305,7 @@ public class whgHelper {
 	}
 
 
-	private static void waitForStreamToBecomeAvailable(AmazonKinesisClient kinesis, String myStreamName) 
+	private static void waitForStreamToBecomeAvailable(AmazonKinesis kinesis, String myStreamName) 
 			throws InterruptedException {
 
 		System.out.printf("Waiting for %s to become ACTIVE...\n", myStreamName);
@@ -191,8 +313,6 @@ public class whgHelper {
 		long startTime = System.currentTimeMillis();
 		long endTime = startTime + TimeUnit.MINUTES.toMillis(10);
 		while (System.currentTimeMillis() < endTime) {
-			Thread.sleep(TimeUnit.SECONDS.toMillis(20));
-
 			try {
 				DescribeStreamRequest describeStreamRequest = new DescribeStreamRequest();
 				describeStreamRequest.setStreamName(myStreamName);
@@ -211,13 +331,14 @@ public class whgHelper {
 			} catch (AmazonServiceException ase) {
 				throw ase;
 			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(20));
 		}
 
 		throw new RuntimeException(String.format("Stream %s never became active", myStreamName));
 	}
 	
 
-	public static List<String> getStreams(AmazonKinesisClient kinesis) {
+	public static List<String> getStreams(AmazonKinesis kinesis) {
 
 		// List all of my streams.
 		ListStreamsRequest listStreamsRequest = new ListStreamsRequest();
@@ -242,21 +363,85 @@ public class whgHelper {
 	}
 
 
+	/**
+	 * The receive metrics for a queue, looked up once per queue rather than
+	 * once per receive.
+	 */
+	private static ReceiveMetrics receiveMetrics(String queue) {
+		ReceiveMetrics metrics = receiveMetrics.get(queue);
+		if (metrics == null) {
+			metrics = new ReceiveMetrics(queue);
+			ReceiveMetrics existing = receiveMetrics.putIfAbsent(queue, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+
+
+	private static final class ReceiveMetrics {
+		final whgHistogram latency;
+		final whgCounter received;
+		final whgCounter errors;
+
+		ReceiveMetrics(String queue) {
+			latency = whgMetrics.histogram("whg_sqs_receive_seconds", "queue", queue);
+			received = whgMetrics.counter("whg_sqs_received_total", "queue", queue);
+			errors = whgMetrics.counter("whg_sqs_errors_total", "queue", queue, "call", "receive");
+		}
+	}
+
+
 	public static List<Message> getMessagesFromQueue(String thisQueue, AmazonSQS sqs) {
 
-		// get messages from provided queue
-		System.out.println("Helper: receiving messages from " + thisQueue + ".");
-		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(thisQueue);
-		List<Message> messages = sqs.receiveMessage(receiveMessageRequest).getMessages();
+		// get messages from provided queue, long polling so an idle queue
+		// holds the request open instead of answering empty right away
+		log.debug("receive", "queue", thisQueue);
+		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(thisQueue)
+				.withMaxNumberOfMessages(MAX_MESSAGES_PER_RECEIVE)
+				.withWaitTimeSeconds(RECEIVE_WAIT_SECONDS)
+				// the alert's trace, and when SQS accepted it in case it has none yet
+				.withMessageAttributeNames(whgTrace.ATTRIBUTE)
+				.withAttributeNames("SentTimestamp");
+		ReceiveMetrics metrics = receiveMetrics(thisQueue);
+		long start = System.nanoTime();
+		List<Message> messages;
+		try {
+			messages = sqs.receiveMessage(receiveMessageRequest).getMessages();
+		} catch (RuntimeException e) {
+			metrics.errors.increment();
+			throw e;
+		}
+		metrics.latency.recordSince(start);
+		metrics.received.add(messages.size());
 		return messages;
 
 	}
+
+
+	public static int backoffIfEmpty(List<Message> messages, int emptyReceives) throws InterruptedException {
+
+		// a busy queue is polled again straight away; only consecutive empty
+		// receives back off, doubling up to the cap
+		if (!messages.isEmpty()) {
+			return 0;
+		}
+		emptyReceives++;
+		if (emptyReceives > 1) {
+			long backoff = Math.min(EMPTY_RECEIVE_BACKOFF_MILLIS << Math.min(emptyReceives - 2, 16),
+					MAX_EMPTY_RECEIVE_BACKOFF_MILLIS);
+			Thread.sleep(backoff);
+		}
+		return emptyReceives;
+
+	}
 	
 
 	public static void deleteMessageFromQueue(Message message, String thisQueue, AmazonSQS sqs) {
 
 		// delete message from provided queue
-		System.out.println("Helper: deleting message with body: " + message.getBody() + "\n");
+		log.debug("delete", "queue", thisQueue, "messageId", message.getMessageId());
 		String messageRecieptHandle = message.getReceiptHandle();
 		sqs.deleteMessage(new DeleteMessageRequest(thisQueue, messageRecieptHandle));
 
@@ -282,18 +467,12 @@ public class whgHelper {
 	}
 	
 	public static void printMessage (Message message) {
-		System.out.println("  Message");
-		System.out.println("    MessageId:     " + message.getMessageId());
-		System.out.println("    ReceiptHandle: " + message.getReceiptHandle());
-		System.out.println("    MD5OfBody:     " + message.getMD5OfBody());
-		System.out.println("    Body:          " + message.getBody());
-		System.out.println();
+		// the attributes map is only formatted if debug output is on
+		log.debug("message", "messageId", message.getMessageId(), "receiptHandle", message.getReceiptHandle(),
+				"md5OfBody", message.getMD5OfBody(), "body", message.getBody(), "attributes", message.getAttributes());
 	}
 
 	public static void printMessageEntry (Entry<String, String> entry) {
-		System.out.println("  Attribute");
-		System.out.println("    Name:  " + entry.getKey());
-		System.out.println("    Value: " + entry.getValue());
-		System.out.println();
+		log.debug("attribute", "name", entry.getKey(), "value", entry.getValue());
 	}
 }
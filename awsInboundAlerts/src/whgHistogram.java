@@ -0,0 +1,126 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with a fixed relative error, in the manner of
+ * HdrHistogram.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split into
+ * 64 equal sub-buckets, so any recorded value is reported within about 1.6%
+ * whatever its magnitude, from nanoseconds up to hours, in a fixed 30 KB of
+ * counts. Recording is a single atomic add and never allocates.
+ */
+public class whgHistogram {
+
+	// sub-buckets per power of two are 2^(SUB_BUCKET_BITS - 1)
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF = SUB_BUCKETS / 2;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS + 1) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final whgCounter count = new whgCounter();
+	private final whgCounter sum = new whgCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one value; negative values count as zero.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.getAndIncrement(index(value));
+		count.increment();
+		sum.add(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+
+	/**
+	 * Records the nanoseconds elapsed since a System.nanoTime() reading.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+
+	public long count() {
+		return count.sum();
+	}
+
+
+	public long sum() {
+		return sum.sum();
+	}
+
+
+	public long max() {
+		return max.get();
+	}
+
+
+	/**
+	 * The value at or below which the given fraction of recorded values fall.
+	 *
+	 * @param quantile between 0 and 1, such as 0.99
+	 */
+	public long valueAt(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestEquivalentValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+
+	static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int offset = index - SUB_BUCKETS;
+		int shift = offset / HALF + 1;
+		long top = offset % HALF + HALF;
+		long highest = ((top + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
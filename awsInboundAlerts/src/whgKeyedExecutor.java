@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A pool of single-threaded lanes. Work for a key always runs on the same
+ * lane, so work for one key runs in the order it was submitted while
+ * different keys run in parallel.
+ * <p>
+ * One pool is shared by every shard processor in the process, so the lanes
+ * are sized to the machine rather than to the number of shards. Its size is
+ * read from whg.kcl.workers (default one lane per core).
+ */
+public class whgKeyedExecutor {
+
+	private static whgKeyedExecutor shared;
+
+	private final ExecutorService[] lanes;
+
+	public whgKeyedExecutor(int laneCount, final String name) {
+		this.lanes = new ExecutorService[Math.max(1, laneCount)];
+		for (int i = 0; i < lanes.length; i++) {
+			final String threadName = name + "-" + i;
+			lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+
+	/**
+	 * The pool shared by the process, created on first use.
+	 */
+	public static synchronized whgKeyedExecutor shared() {
+		if (shared == null) {
+			shared = new whgKeyedExecutor(Integer.getInteger("whg.kcl.workers",
+					Runtime.getRuntime().availableProcessors()), "kcl-worker");
+		}
+		return shared;
+	}
+
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+
+	/**
+	 * The lane that runs the work for a key.
+	 */
+	public int laneOf(String key) {
+		// spread the hash bits so keys differing only in their last characters still spread
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return (hash & 0x7fffffff) % lanes.length;
+	}
+
+
+	/**
+	 * Runs a task after everything already submitted to its lane.
+	 */
+	public void execute(int lane, Runnable task) {
+		lanes[lane].execute(task);
+	}
+
+
+	public void execute(String key, Runnable task) {
+		execute(laneOf(key), task);
+	}
+
+
+	public void shutdown() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Batching producer that sends stream records with PutRecords.
+ * <p>
+ * Callers add a record and wait on the returned {@link Put}. Sender threads
+ * send a batch once 500 records or 5 MB are buffered, or once the oldest
+ * buffered record has waited the linger time. Only the entries PutRecords
+ * reports as failed are resubmitted, after a jittered exponential backoff; a
+ * call rejected as a whole for throughput is resubmitted in full.
+ * <p>
+ * Records for one partition key keep their order within a batch, and with a
+ * single sender batches go out one after another. A failed entry that is
+ * retried can still land behind later records for its key, as with any
+ * PutRecords producer.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.kinesis.lingerMillis - longest a record waits for a fuller batch (default 10)</li>
+ * <li>whg.kinesis.senders - concurrent PutRecords calls (default 1)</li>
+ * </ul>
+ */
+public class whgKinesisProducer {
+
+	// Kinesis limits per PutRecords call and per record
+	public static final int MAX_BATCH_RECORDS = 500;
+	public static final int MAX_BATCH_BYTES = 5 * 1024 * 1024;
+	public static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+	private static final int MAX_ATTEMPTS = 10;
+	private static final long BASE_BACKOFF_MILLIS = 50L;
+	private static final long MAX_BACKOFF_MILLIS = 5000L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final whgLog log = whgLog.get("Producer");
+
+	private final AmazonKinesis kinesis;
+	private final String streamName;
+	private final long lingerNanos;
+	private final whgDownstreamLimiter limiter = whgDownstreamLimiter.get("kinesis");
+	private final Random random = new Random();
+
+	private final whgHistogram callLatency;
+	private final whgHistogram putLatency;
+	private final whgCounter throttles;
+	private final whgCounter errors;
+	private final whgCounter failedRecords;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final LinkedList<Put> buffer = new LinkedList<Put>();
+	private long bufferedBytes;
+
+	/**
+	 * A buffered record; completes once the record is in the stream or has
+	 * failed for good.
+	 */
+	public static final class Put {
+
+		private final PutRecordsRequestEntry entry;
+		private final int size;
+		private final long addedAt = System.nanoTime();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile PutRecordsResultEntry result;
+		private volatile AmazonClientException error;
+
+		Put(PutRecordsRequestEntry entry, int size) {
+			this.entry = entry;
+			this.size = size;
+		}
+
+		public String getPartitionKey() {
+			return entry.getPartitionKey();
+		}
+
+		/**
+		 * Waits until the record is in the stream.
+		 *
+		 * @return the shard and sequence number the record was given
+		 * @throws AmazonClientException if the record could not be put
+		 */
+		public PutRecordsResultEntry await() throws InterruptedException {
+			done.await();
+			if (error != null) {
+				throw error;
+			}
+			return result;
+		}
+
+		void complete(PutRecordsResultEntry result, AmazonClientException error) {
+			// only the sender thread completes a put; the first outcome stands
+			if (done.getCount() == 0) {
+				return;
+			}
+			this.result = result;
+			this.error = error;
+			done.countDown();
+		}
+	}
+
+	public whgKinesisProducer(AmazonKinesis kinesis, String streamName) {
+		this.kinesis = kinesis;
+		this.streamName = streamName;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("whg.kinesis.lingerMillis", 10L));
+
+		this.callLatency = whgMetrics.histogram("whg_kinesis_put_records_seconds", "stream", streamName);
+		this.putLatency = whgMetrics.histogram("whg_kinesis_record_put_seconds", "stream", streamName);
+		this.throttles = whgMetrics.counter("whg_kinesis_throttles_total", "stream", streamName);
+		this.errors = whgMetrics.counter("whg_kinesis_errors_total", "stream", streamName);
+		this.failedRecords = whgMetrics.counter("whg_kinesis_failed_records_total", "stream", streamName);
+
+		int senders = Math.max(1, Integer.getInteger("whg.kinesis.senders", 1));
+		for (int i = 0; i < senders; i++) {
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					sendBatches();
+				}
+			}, streamName + "-sender-" + i);
+			sender.setDaemon(true);
+			sender.start();
+		}
+	}
+
+
+	/**
+	 * Buffers a record for the next batch.
+	 *
+	 * @param explicitHashKey the hash key that picks the shard, or null to
+	 *        hash the partition key
+	 */
+	public Put put(String partitionKey, String explicitHashKey, ByteBuffer data) {
+		PutRecordsRequestEntry entry = new PutRecordsRequestEntry()
+				.withPartitionKey(partitionKey)
+				.withExplicitHashKey(explicitHashKey)
+				.withData(data);
+		int size = data.remaining() + partitionKey.getBytes(UTF8).length;
+		Put put = new Put(entry, size);
+		if (size > MAX_RECORD_BYTES) {
+			put.complete(null, new AmazonClientException("Record of " + size + " bytes is over the Kinesis limit"));
+			return put;
+		}
+
+		lock.lock();
+		try {
+			buffer.add(put);
+			bufferedBytes += size;
+			changed.signal();
+		} finally {
+			lock.unlock();
+		}
+		return put;
+	}
+
+
+	private void sendBatches() {
+		while (true) {
+			List<Put> batch;
+			try {
+				batch = takeBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				sendBatch(batch);
+			} catch (RuntimeException e) {
+				// a bug or an unexpected client failure fails this batch only; the
+				// thread carries on so later callers are not left waiting forever
+				errors.increment();
+				log.warn("putRecordsFailed", "stream", streamName, "count", batch.size(), "error", e);
+				fail(batch, new AmazonClientException("Unexpected failure sending to " + streamName, e));
+			}
+		}
+	}
+
+
+	/**
+	 * Waits for a full batch or for the oldest record's linger time to run out.
+	 */
+	private List<Put> takeBatch() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				if (buffer.size() >= MAX_BATCH_RECORDS || bufferedBytes >= MAX_BATCH_BYTES) {
+					break;
+				}
+				if (buffer.isEmpty()) {
+					changed.await();
+					continue;
+				}
+				long wait = buffer.getFirst().addedAt + lingerNanos - System.nanoTime();
+				if (wait <= 0) {
+					break;
+				}
+				changed.awaitNanos(wait);
+			}
+
+			List<Put> batch = new ArrayList<Put>();
+			long batchBytes = 0;
+			while (!buffer.isEmpty() && batch.size() < MAX_BATCH_RECORDS
+					&& batchBytes + buffer.getFirst().size <= MAX_BATCH_BYTES) {
+				Put put = buffer.removeFirst();
+				batchBytes += put.size;
+				bufferedBytes -= put.size;
+				batch.add(put);
+			}
+			if (!buffer.isEmpty()) {
+				changed.signal();
+			}
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	private void sendBatch(List<Put> batch) {
+
+		for (int attempt = 1; !batch.isEmpty(); attempt++) {
+			if (attempt > 1) {
+				if (!backoff(attempt)) {
+					fail(batch, new AmazonClientException("Interrupted while retrying PutRecords"));
+					return;
+				}
+			}
+
+			List<PutRecordsRequestEntry> entries = new ArrayList<PutRecordsRequestEntry>(batch.size());
+			for (Put put : batch) {
+				// a retried entry is sent again from the start of its data
+				put.entry.getData().rewind();
+				entries.add(put.entry);
+			}
+
+			PutRecordsResult result;
+			try {
+				limiter.acquire();
+				long start = System.nanoTime();
+				try {
+					result = kinesis.putRecords(new PutRecordsRequest().withStreamName(streamName).withRecords(entries));
+				} finally {
+					callLatency.recordSince(start);
+					limiter.release();
+				}
+			} catch (ProvisionedThroughputExceededException e) {
+				throttles.increment();
+				// nothing in the batch was put; try all of it again
+				if (attempt >= MAX_ATTEMPTS) {
+					fail(batch, e);
+					return;
+				}
+				continue;
+			} catch (AmazonClientException e) {
+				errors.increment();
+				fail(batch, e);
+				return;
+			} catch (InterruptedException e) {
+				fail(batch, new AmazonClientException("Interrupted while putting records to " + streamName, e));
+				return;
+			}
+
+			// result entries line up with request entries; failed ones carry an error code
+			List<Put> failed = new ArrayList<Put>();
+			List<PutRecordsResultEntry> results = result.getRecords();
+			for (int i = 0; i < batch.size(); i++) {
+				PutRecordsResultEntry entry = results.get(i);
+				if (entry.getErrorCode() == null) {
+					batch.get(i).complete(entry, null);
+					putLatency.recordSince(batch.get(i).addedAt);
+					continue;
+				}
+				failedRecords.increment();
+				if (attempt >= MAX_ATTEMPTS) {
+					batch.get(i).complete(null, new AmazonClientException("PutRecords failed after " + attempt
+							+ " attempts: " + entry.getErrorCode() + " " + entry.getErrorMessage()));
+				} else {
+					failed.add(batch.get(i));
+				}
+			}
+			batch = failed;
+		}
+	}
+
+
+	/**
+	 * Sleeps for a random time up to an exponentially growing bound.
+	 */
+	private boolean backoff(int attempt) {
+		long bound = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 2, 16));
+		long sleep = 1 + (long) (random.nextDouble() * bound);
+		try {
+			Thread.sleep(sleep);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+
+	private static void fail(List<Put> puts, AmazonClientException error) {
+		for (Put put : puts) {
+			put.complete(null, error);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Publishes synthetic alerts at a fixed rate, to the inbound queue or
+ * straight to the stream, and reports the latency callers would see.
+ * <p>
+ * The schedule is open loop: alert i is due at start + i / rate whether or
+ * not earlier sends have finished, and its latency is measured from when it
+ * was due, not from when a sender got to it. A slow send therefore counts
+ * against every alert that queued up behind it, as it would for real
+ * producers, instead of quietly lowering the offered rate (coordinated
+ * omission). Service time, measured from when the send actually started, is
+ * reported alongside for comparison.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.load.target - sqs (default) or kinesis</li>
+ * <li>whg.load.queue / whg.load.stream - where to publish (alertInbound, alertsStream)</li>
+ * <li>whg.load.rate - alerts per second (default 100)</li>
+ * <li>whg.load.durationSeconds - how long to run (default 60)</li>
+ * <li>whg.load.senders - concurrent senders (default 32)</li>
+ * <li>whg.load.sources - distinct alert sources (default 1000)</li>
+ * <li>whg.load.sourceSkew - Zipf exponent of source popularity, 0 for uniform (default 1.0)</li>
+ * <li>whg.load.payloadBytes - median alert size (default 512)</li>
+ * <li>whg.load.payloadSpread - log-normal sigma of alert size (default 0.5)</li>
+ * <li>whg.load.burstEverySeconds - seconds between bursts, 0 for none (default 0)</li>
+ * <li>whg.load.burstSeconds - length of a burst (default 5)</li>
+ * <li>whg.load.burstFactor - rate multiplier during a burst (default 5)</li>
+ * <li>whg.load.reportSeconds - interval between progress reports (default 10)</li>
+ * </ul>
+ */
+public class whgLoadGenerator {
+
+	// SQS takes at most 256 KB per message; Base64 adds a third
+	private static final int MAX_PAYLOAD_BYTES = 190 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] SEVERITIES = { "debug", "info", "warning", "error", "critical" };
+	private static final String[] CHECKS = { "disk", "cpu", "memory", "latency", "heartbeat", "certificate" };
+
+	/**
+	 * Sends one alert; implemented for each target.
+	 */
+	interface Sender {
+		void send(String sourceId, String json) throws Exception;
+	}
+
+	private final Sender sender;
+	private final double rate;
+	private final long durationNanos;
+	private final int senderCount;
+	private final double[] sourceCdf;
+	private final int payloadBytes;
+	private final double payloadSpread;
+	private final long burstEveryNanos;
+	private final long burstNanos;
+	private final double burstFactor;
+	private final long reportNanos;
+
+	private final whgHistogram responseTime = new whgHistogram();
+	private final whgHistogram serviceTime = new whgHistogram();
+	private final AtomicReference<whgHistogram> intervalResponseTime = new AtomicReference<whgHistogram>(new whgHistogram());
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public whgLoadGenerator(Sender sender) {
+		this.sender = sender;
+		this.rate = Double.parseDouble(System.getProperty("whg.load.rate", "100"));
+		this.durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("whg.load.durationSeconds", 60L));
+		this.senderCount = Math.max(1, Integer.getInteger("whg.load.senders", 32));
+		this.sourceCdf = zipfCdf(Math.max(1, Integer.getInteger("whg.load.sources", 1000)),
+				Double.parseDouble(System.getProperty("whg.load.sourceSkew", "1.0")));
+		this.payloadBytes = Math.max(64, Integer.getInteger("whg.load.payloadBytes", 512));
+		this.payloadSpread = Double.parseDouble(System.getProperty("whg.load.payloadSpread", "0.5"));
+		this.burstEveryNanos = TimeUnit.SECONDS.toNanos(Long.getLong("whg.load.burstEverySeconds", 0L));
+		this.burstNanos = TimeUnit.SECONDS.toNanos(Long.getLong("whg.load.burstSeconds", 5L));
+		this.burstFactor = Double.parseDouble(System.getProperty("whg.load.burstFactor", "5"));
+		this.reportNanos = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("whg.load.reportSeconds", 10L)));
+		if (rate <= 0) {
+			throw new IllegalArgumentException("whg.load.rate must be positive");
+		}
+	}
+
+
+	/**
+	 * Publishes on schedule for the configured duration, waits for the sends
+	 * still in flight, and prints the final report.
+	 */
+	public void run() throws InterruptedException {
+
+		ExecutorService senders = Executors.newFixedThreadPool(senderCount);
+		System.out.printf("Load: %.0f alerts/s for %d s over %d sources, %d senders.%n", rate,
+				TimeUnit.NANOSECONDS.toSeconds(durationNanos), sourceCdf.length, senderCount);
+
+		long start = System.nanoTime();
+		long nextReport = start + reportNanos;
+		long lastSent = 0;
+		long due = start;
+		while (due - start < durationNanos) {
+			long now = System.nanoTime();
+			if (due > now) {
+				LockSupport.parkNanos(due - now);
+			}
+			// hand the alert over at once; if senders fall behind it waits in the
+			// executor queue, and that wait is part of its latency
+			final long dueAt = due;
+			senders.execute(new Runnable() {
+				@Override
+				public void run() {
+					sendOne(dueAt);
+				}
+			});
+			due += intervalNanos(due - start);
+
+			if (System.nanoTime() >= nextReport) {
+				long total = sent.get();
+				report(String.format("%.0f alerts/s", (total - lastSent) * 1e9 / reportNanos),
+						intervalResponseTime.getAndSet(new whgHistogram()), null);
+				lastSent = total;
+				nextReport += reportNanos;
+			}
+		}
+
+		senders.shutdown();
+		senders.awaitTermination(1, TimeUnit.MINUTES);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println();
+		report(String.format("total %d sent, %d failed, %.1f alerts/s achieved", sent.get(), failed.get(),
+				sent.get() / seconds), responseTime, serviceTime);
+	}
+
+
+	private void sendOne(long dueAt) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		String sourceId = "source-" + pickSource(random.nextDouble());
+		String json = alertJSON(sourceId, random);
+
+		long startedAt = System.nanoTime();
+		try {
+			sender.send(sourceId, json);
+			sent.incrementAndGet();
+		} catch (Exception e) {
+			if (failed.incrementAndGet() <= 10) {
+				System.out.println("Load: send failed: " + e);
+			}
+		}
+		long finishedAt = System.nanoTime();
+		responseTime.record(finishedAt - dueAt);
+		intervalResponseTime.get().record(finishedAt - dueAt);
+		serviceTime.record(finishedAt - startedAt);
+	}
+
+
+	/**
+	 * Time from one alert to the next, shortened while a burst is on.
+	 */
+	private long intervalNanos(long elapsed) {
+		double current = rate;
+		if (burstEveryNanos > 0 && elapsed % burstEveryNanos >= burstEveryNanos - burstNanos) {
+			current *= burstFactor;
+		}
+		return Math.max(1, (long) (1e9 / current));
+	}
+
+
+	/**
+	 * Cumulative probabilities of a Zipf distribution over the sources, so a
+	 * few sources raise most alerts as in production.
+	 */
+	static double[] zipfCdf(int sources, double skew) {
+		double[] cdf = new double[sources];
+		double total = 0;
+		for (int i = 0; i < sources; i++) {
+			total += 1 / Math.pow(i + 1, skew);
+			cdf[i] = total;
+		}
+		for (int i = 0; i < sources; i++) {
+			cdf[i] /= total;
+		}
+		return cdf;
+	}
+
+
+	private int pickSource(double uniform) {
+		int index = Arrays.binarySearch(sourceCdf, uniform);
+		return Math.min(index < 0 ? -index - 1 : index, sourceCdf.length - 1);
+	}
+
+
+	/**
+	 * Alert JSON with a log-normally distributed size around the median.
+	 */
+	private String alertJSON(String sourceId, ThreadLocalRandom random) {
+		int size = (int) Math.min(MAX_PAYLOAD_BYTES, payloadBytes * Math.exp(payloadSpread * random.nextGaussian()));
+		StringBuilder json = new StringBuilder(size + 64);
+		json.append("{\"sourceId\":\"").append(sourceId)
+				.append("\",\"timestamp\":").append(System.currentTimeMillis())
+				.append(",\"severity\":\"").append(SEVERITIES[random.nextInt(SEVERITIES.length)])
+				.append("\",\"host\":\"web-").append(random.nextInt(100))
+				.append("\",\"check\":\"").append(CHECKS[random.nextInt(CHECKS.length)])
+				.append("\",\"message\":\"");
+		while (json.length() < size - 2) {
+			json.append(CHECKS[random.nextInt(CHECKS.length)]).append(" threshold exceeded ");
+		}
+		return json.append("\"}").toString();
+	}
+
+
+	private static void report(String heading, whgHistogram response, whgHistogram service) {
+		System.out.printf("Load: %s; response ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f%n", heading,
+				millis(response.valueAt(0.5)), millis(response.valueAt(0.9)), millis(response.valueAt(0.99)),
+				millis(response.valueAt(0.999)), millis(response.max()));
+		if (service != null) {
+			System.out.printf("Load: service ms p50 %.1f p90 %.1f p99 %.1f p99.9 %.1f max %.1f%n",
+					millis(service.valueAt(0.5)), millis(service.valueAt(0.9)), millis(service.valueAt(0.99)),
+					millis(service.valueAt(0.999)), millis(service.max()));
+		}
+	}
+
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+
+	public static void main(String[] args) throws Exception {
+
+		// get credentials
+		String user = "jreilly";
+		AWSCredentials credentials = whgHelper.getCred(user);
+
+		Sender sender;
+		if ("kinesis".equals(System.getProperty("whg.load.target", "sqs"))) {
+			// records as sqsAlertStream writes them, through the same batching producer
+			AmazonKinesis kinesis = whgHelper.setStreamAccess(credentials);
+			final whgKinesisProducer producer = new whgKinesisProducer(kinesis,
+					System.getProperty("whg.load.stream", "alertsStream"));
+			final whgPartitioner partitioner = whgHelper.getPartitioner();
+			final whgRecordCompressor compressor = whgRecordCompressor.fromProperties();
+			sender = new Sender() {
+				@Override
+				public void send(String sourceId, String json) throws Exception {
+					whgAlert alert = whgAlertParser.parseJSON(json).withTrace(whgTrace.start(System.currentTimeMillis()));
+					producer.put(partitioner.partitionKey(sourceId), partitioner.explicitHashKey(sourceId),
+							ByteBuffer.wrap(compressor.compress(whgAlertCodec.encode(alert)))).await();
+				}
+			};
+		} else {
+			// Base64 JSON bodies, as alert sources send them to the inbound queue
+			final AmazonSQS sqs = whgHelper.setQueueAccess(credentials);
+			final String queue = System.getProperty("whg.load.queue", "alertInbound");
+			sender = new Sender() {
+				@Override
+				public void send(String sourceId, String json) {
+					sqs.sendMessage(new SendMessageRequest(queue, Base64.encodeBase64String(json.getBytes(UTF8))));
+				}
+			};
+		}
+
+		new whgLoadGenerator(sender).run();
+	}
+}
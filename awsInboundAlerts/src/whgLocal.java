@@ -0,0 +1,783 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.CreateStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamRequest;
+import com.amazonaws.services.kinesis.model.DescribeStreamResult;
+import com.amazonaws.services.kinesis.model.ListStreamsRequest;
+import com.amazonaws.services.kinesis.model.ListStreamsResult;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+import com.amazonaws.services.kinesis.model.PutRecordsRequest;
+import com.amazonaws.services.kinesis.model.PutRecordsRequestEntry;
+import com.amazonaws.services.kinesis.model.PutRecordsResult;
+import com.amazonaws.services.kinesis.model.PutRecordsResultEntry;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.StreamDescription;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * In-process stand-ins for SQS, DynamoDB, Kinesis and the cache, so the
+ * stages can run, and be measured, on one machine without AWS.
+ * <p>
+ * With the system property whg.local=true, whgHelper and whgCacheClient hand
+ * out these in place of the real clients. Each service is a single instance
+ * per process, so stages running in the same JVM share queues, tables and
+ * streams. Queues, tables and streams are created on first use. Only the
+ * calls the stages make are implemented; anything else throws
+ * UnsupportedOperationException.
+ * <p>
+ * Every call can be slowed and made to fail, per service (sqs, dynamodb,
+ * kinesis, cache), with system properties:
+ * <ul>
+ * <li>whg.local.&lt;service&gt;.latencyMillis - added to every call (default 0)</li>
+ * <li>whg.local.&lt;service&gt;.jitterMillis - random extra latency up to this (default 0)</li>
+ * <li>whg.local.&lt;service&gt;.throttleRate - fraction of batch entries throttled (default 0)</li>
+ * <li>whg.local.&lt;service&gt;.failureRate - fraction of calls failing with a 500 (default 0)</li>
+ * </ul>
+ * Random choices come from whg.local.seed (default 42), so a single-threaded
+ * run makes the same choices every time.
+ */
+public class whgLocal {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static AmazonSQS sqs;
+	private static AmazonDynamoDB dynamoDB;
+	private static AmazonKinesis kinesis;
+	private static LocalSQS localSQS;
+	private static LocalDynamoDB localDynamoDB;
+	private static LocalKinesis localKinesis;
+	private static whgLocalCache cache;
+
+	public static boolean enabled() {
+		return Boolean.getBoolean("whg.local");
+	}
+
+
+	public static synchronized AmazonSQS sqs() {
+		if (sqs == null) {
+			localSQS = new LocalSQS();
+			sqs = proxy(AmazonSQS.class, localSQS);
+		}
+		return sqs;
+	}
+
+
+	public static synchronized AmazonDynamoDB dynamoDB() {
+		if (dynamoDB == null) {
+			localDynamoDB = new LocalDynamoDB();
+			dynamoDB = proxy(AmazonDynamoDB.class, localDynamoDB);
+		}
+		return dynamoDB;
+	}
+
+
+	public static synchronized AmazonKinesis kinesis() {
+		if (kinesis == null) {
+			localKinesis = new LocalKinesis();
+			kinesis = proxy(AmazonKinesis.class, localKinesis);
+		}
+		return kinesis;
+	}
+
+
+	/**
+	 * The port of the local memcached server, started on first use.
+	 */
+	public static synchronized int cachePort() throws IOException {
+		if (cache == null) {
+			cache = new whgLocalCache(new Faults("cache"));
+		}
+		return cache.getPort();
+	}
+
+
+	/** Messages waiting or in flight on a local queue. */
+	public static synchronized int queueDepth(String queueUrl) {
+		return localSQS == null ? 0 : localSQS.queue(queueUrl).depth();
+	}
+
+
+	/** Items stored in a local table. */
+	public static synchronized int tableSize(String tableName) {
+		return localDynamoDB == null ? 0 : localDynamoDB.table(tableName, null).items.size();
+	}
+
+
+	/** The most recent records put to a local stream, oldest first. */
+	public static synchronized List<Record> streamRecords(String streamName) {
+		return localKinesis == null ? Collections.<Record>emptyList() : localKinesis.stream(streamName).recent();
+	}
+
+
+	/** Calls made to each local service, keyed by service and operation, such as "sqs.sendMessageBatch". */
+	public static Map<String, Long> callCounts() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : calls.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+
+	private static final ConcurrentMap<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+
+	private static void count(String service, String operation) {
+		String key = service + "." + operation;
+		AtomicLong count = calls.get(key);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = calls.putIfAbsent(key, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+
+	/**
+	 * A client interface backed by an object with methods of the same names
+	 * and parameter types.
+	 */
+	private static <T> T proxy(final Class<T> type, final Object target) {
+		final String service = type.getSimpleName().replace("Amazon", "").toLowerCase();
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("toString")) {
+					return "local " + type.getSimpleName();
+				} else if (name.equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				} else if (name.equals("equals")) {
+					return proxy == args[0];
+				} else if (name.equals("setRegion") || name.equals("setEndpoint") || name.equals("shutdown")) {
+					return null;
+				}
+
+				Method local;
+				try {
+					local = target.getClass().getDeclaredMethod(name, method.getParameterTypes());
+				} catch (NoSuchMethodException e) {
+					throw new UnsupportedOperationException(type.getSimpleName() + "." + name + " is not available locally");
+				}
+				count(service, name);
+				try {
+					local.setAccessible(true);
+					return local.invoke(target, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}));
+	}
+
+
+	/**
+	 * Latency and failure injection for one service.
+	 */
+	static final class Faults {
+
+		private final String service;
+		private final long latencyMillis;
+		private final long jitterMillis;
+		private final double throttleRate;
+		private final double failureRate;
+		private final Random random = new Random(Long.getLong("whg.local.seed", 42L));
+
+		Faults(String service) {
+			String prefix = "whg.local." + service + ".";
+			this.service = service;
+			this.latencyMillis = Long.getLong(prefix + "latencyMillis", 0L);
+			this.jitterMillis = Long.getLong(prefix + "jitterMillis", 0L);
+			this.throttleRate = Double.parseDouble(System.getProperty(prefix + "throttleRate", "0"));
+			this.failureRate = Double.parseDouble(System.getProperty(prefix + "failureRate", "0"));
+		}
+
+		/**
+		 * Waits out the call's latency, then fails it if its number comes up.
+		 */
+		void call() {
+			long delay = latencyMillis + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0);
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (failureRate > 0 && random.nextDouble() < failureRate) {
+				AmazonServiceException failure = new AmazonServiceException("Injected failure in local " + service);
+				failure.setStatusCode(500);
+				failure.setErrorCode("InternalFailure");
+				throw failure;
+			}
+		}
+
+		boolean fails() {
+			return failureRate > 0 && random.nextDouble() < failureRate;
+		}
+
+		boolean throttled() {
+			return throttleRate > 0 && random.nextDouble() < throttleRate;
+		}
+	}
+
+
+	/**
+	 * Queues with long polling, visibility timeouts and redelivery.
+	 */
+	private static final class LocalSQS {
+
+		private final Faults faults = new Faults("sqs");
+		private final ConcurrentMap<String, LocalQueue> queues = new ConcurrentHashMap<String, LocalQueue>();
+		private final long visibilityMillis = TimeUnit.SECONDS.toMillis(Long.getLong("whg.local.sqs.visibilitySeconds", 30L));
+
+		LocalQueue queue(String url) {
+			LocalQueue queue = queues.get(url);
+			if (queue == null) {
+				LocalQueue created = new LocalQueue();
+				queue = queues.putIfAbsent(url, created);
+				if (queue == null) {
+					queue = created;
+				}
+			}
+			return queue;
+		}
+
+		public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) throws InterruptedException {
+			faults.call();
+			int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+			long waitMillis = request.getWaitTimeSeconds() == null ? 0 : TimeUnit.SECONDS.toMillis(request.getWaitTimeSeconds());
+			long visibility = request.getVisibilityTimeout() == null ? visibilityMillis
+					: TimeUnit.SECONDS.toMillis(request.getVisibilityTimeout());
+			return new ReceiveMessageResult().withMessages(queue(request.getQueueUrl())
+					.receive(max, waitMillis, visibility, request.getAttributeNames(), request.getMessageAttributeNames()));
+		}
+
+		public ReceiveMessageResult receiveMessage(String queueUrl) throws InterruptedException {
+			return receiveMessage(new ReceiveMessageRequest(queueUrl));
+		}
+
+		public SendMessageResult sendMessage(SendMessageRequest request) {
+			faults.call();
+			String id = queue(request.getQueueUrl()).send(request.getMessageBody(), request.getMessageAttributes());
+			return new SendMessageResult().withMessageId(id);
+		}
+
+		public SendMessageResult sendMessage(String queueUrl, String body) {
+			return sendMessage(new SendMessageRequest(queueUrl, body));
+		}
+
+		public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+			faults.call();
+			LocalQueue queue = queue(request.getQueueUrl());
+			List<SendMessageBatchResultEntry> successful = new ArrayList<SendMessageBatchResultEntry>();
+			List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+			for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+				if (faults.throttled()) {
+					failed.add(new BatchResultErrorEntry().withId(entry.getId()).withCode("RequestThrottled")
+							.withSenderFault(false).withMessage("Injected throttle"));
+					continue;
+				}
+				String id = queue.send(entry.getMessageBody(), entry.getMessageAttributes());
+				successful.add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(id));
+			}
+			return new SendMessageBatchResult().withSuccessful(successful).withFailed(failed);
+		}
+
+		public void deleteMessage(DeleteMessageRequest request) {
+			faults.call();
+			if (!queue(request.getQueueUrl()).delete(request.getReceiptHandle())) {
+				AmazonServiceException invalid = new AmazonServiceException("The receipt handle is not valid");
+				invalid.setStatusCode(400);
+				invalid.setErrorCode("ReceiptHandleIsInvalid");
+				throw invalid;
+			}
+		}
+
+		public void deleteMessage(String queueUrl, String receiptHandle) {
+			deleteMessage(new DeleteMessageRequest(queueUrl, receiptHandle));
+		}
+
+		public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+			faults.call();
+			LocalQueue queue = queue(request.getQueueUrl());
+			List<DeleteMessageBatchResultEntry> successful = new ArrayList<DeleteMessageBatchResultEntry>();
+			List<BatchResultErrorEntry> failed = new ArrayList<BatchResultErrorEntry>();
+			for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+				if (faults.throttled()) {
+					failed.add(new BatchResultErrorEntry().withId(entry.getId()).withCode("RequestThrottled")
+							.withSenderFault(false).withMessage("Injected throttle"));
+				} else if (queue.delete(entry.getReceiptHandle())) {
+					successful.add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+				} else {
+					failed.add(new BatchResultErrorEntry().withId(entry.getId()).withCode("ReceiptHandleIsInvalid")
+							.withSenderFault(true).withMessage("The receipt handle is not valid"));
+				}
+			}
+			return new DeleteMessageBatchResult().withSuccessful(successful).withFailed(failed);
+		}
+	}
+
+
+	/**
+	 * One queue. Received messages stay in flight until deleted or until their
+	 * visibility timeout runs out, when they become visible again.
+	 */
+	private static final class LocalQueue {
+
+		private static final AtomicLong ids = new AtomicLong();
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition arrived = lock.newCondition();
+		private final ArrayDeque<Stored> visible = new ArrayDeque<Stored>();
+		// in receive order, and so in expiry order for a fixed visibility timeout
+		private final LinkedHashMap<String, Stored> inFlight = new LinkedHashMap<String, Stored>();
+
+		private static final class Stored {
+			final String messageId;
+			final String body;
+			final Map<String, MessageAttributeValue> attributes;
+			final long sentAt = System.currentTimeMillis();
+			int receiveCount;
+			long visibleAt;
+
+			Stored(String messageId, String body, Map<String, MessageAttributeValue> attributes) {
+				this.messageId = messageId;
+				this.body = body;
+				this.attributes = attributes;
+			}
+		}
+
+		String send(String body, Map<String, MessageAttributeValue> attributes) {
+			Stored message = new Stored("local-" + ids.incrementAndGet(), body,
+					attributes == null ? Collections.<String, MessageAttributeValue>emptyMap() : attributes);
+			lock.lock();
+			try {
+				visible.addLast(message);
+				arrived.signal();
+			} finally {
+				lock.unlock();
+			}
+			return message.messageId;
+		}
+
+		List<Message> receive(int max, long waitMillis, long visibilityMillis, List<String> attributeNames,
+				List<String> messageAttributeNames) throws InterruptedException {
+			List<Message> received = new ArrayList<Message>(max);
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			lock.lock();
+			try {
+				expire();
+				while (visible.isEmpty()) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return received;
+					}
+					arrived.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)));
+					expire();
+				}
+				long now = System.currentTimeMillis();
+				while (received.size() < max && !visible.isEmpty()) {
+					Stored message = visible.pollFirst();
+					message.receiveCount++;
+					message.visibleAt = now + visibilityMillis;
+					String receiptHandle = message.messageId + "#" + message.receiveCount;
+					inFlight.put(receiptHandle, message);
+					received.add(toMessage(message, receiptHandle, attributeNames, messageAttributeNames));
+				}
+			} finally {
+				lock.unlock();
+			}
+			return received;
+		}
+
+		boolean delete(String receiptHandle) {
+			lock.lock();
+			try {
+				return inFlight.remove(receiptHandle) != null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int depth() {
+			lock.lock();
+			try {
+				return visible.size() + inFlight.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void expire() {
+			long now = System.currentTimeMillis();
+			Iterator<Stored> messages = inFlight.values().iterator();
+			while (messages.hasNext()) {
+				Stored message = messages.next();
+				if (message.visibleAt > now) {
+					break;
+				}
+				messages.remove();
+				visible.addLast(message);
+			}
+		}
+
+		/**
+		 * The message as received, with only the attributes that were asked for.
+		 */
+		private static Message toMessage(Stored stored, String receiptHandle, List<String> attributeNames,
+				List<String> messageAttributeNames) {
+			Map<String, String> attributes = new HashMap<String, String>();
+			if (requested(attributeNames, "SentTimestamp")) {
+				attributes.put("SentTimestamp", Long.toString(stored.sentAt));
+			}
+			if (requested(attributeNames, "ApproximateReceiveCount")) {
+				attributes.put("ApproximateReceiveCount", Integer.toString(stored.receiveCount));
+			}
+
+			Map<String, MessageAttributeValue> messageAttributes = new HashMap<String, MessageAttributeValue>();
+			for (Map.Entry<String, MessageAttributeValue> entry : stored.attributes.entrySet()) {
+				if (requested(messageAttributeNames, entry.getKey())) {
+					messageAttributes.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return new Message().withMessageId(stored.messageId).withReceiptHandle(receiptHandle)
+					.withBody(stored.body).withAttributes(attributes).withMessageAttributes(messageAttributes);
+		}
+
+		private static boolean requested(List<String> names, String name) {
+			return names != null && (names.contains("All") || names.contains(name));
+		}
+	}
+
+
+	/**
+	 * Tables as maps from hash key to item.
+	 */
+	private static final class LocalDynamoDB {
+
+		private final Faults faults = new Faults("dynamodb");
+		private final ConcurrentMap<String, LocalTable> tables = new ConcurrentHashMap<String, LocalTable>();
+
+		private static final class LocalTable {
+			final String keyName;
+			final ConcurrentMap<String, Map<String, AttributeValue>> items =
+					new ConcurrentHashMap<String, Map<String, AttributeValue>>();
+
+			LocalTable(String keyName) {
+				this.keyName = keyName;
+			}
+		}
+
+		LocalTable table(String name, String keyName) {
+			LocalTable table = tables.get(name);
+			if (table == null) {
+				// a table first seen in a write is keyed as the pipeline keys alerts
+				LocalTable created = new LocalTable(keyName != null ? keyName : "alertId");
+				table = tables.putIfAbsent(name, created);
+				if (table == null) {
+					table = created;
+				}
+			}
+			return table;
+		}
+
+		public CreateTableResult createTable(CreateTableRequest request) {
+			faults.call();
+			String keyName = null;
+			for (KeySchemaElement key : request.getKeySchema()) {
+				if ("HASH".equals(key.getKeyType())) {
+					keyName = key.getAttributeName();
+				}
+			}
+			table(request.getTableName(), keyName);
+			return new CreateTableResult().withTableDescription(describe(request.getTableName()));
+		}
+
+		public DescribeTableResult describeTable(DescribeTableRequest request) {
+			faults.call();
+			if (!tables.containsKey(request.getTableName())) {
+				throw new com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException(
+						"Table not found: " + request.getTableName());
+			}
+			return new DescribeTableResult().withTable(describe(request.getTableName()));
+		}
+
+		public DescribeTableResult describeTable(String tableName) {
+			return describeTable(new DescribeTableRequest().withTableName(tableName));
+		}
+
+		public PutItemResult putItem(PutItemRequest request) {
+			faults.call();
+			if (faults.throttled()) {
+				throw new com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException(
+						"Injected throttle");
+			}
+			put(table(request.getTableName(), null), request.getItem());
+			return new PutItemResult();
+		}
+
+		public PutItemResult putItem(String tableName, Map<String, AttributeValue> item) {
+			return putItem(new PutItemRequest().withTableName(tableName).withItem(item));
+		}
+
+		public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+			faults.call();
+			Map<String, List<WriteRequest>> unprocessed = new HashMap<String, List<WriteRequest>>();
+			int written = 0;
+			for (Map.Entry<String, List<WriteRequest>> entry : request.getRequestItems().entrySet()) {
+				LocalTable table = table(entry.getKey(), null);
+				for (WriteRequest write : entry.getValue()) {
+					if (faults.throttled()) {
+						List<WriteRequest> left = unprocessed.get(entry.getKey());
+						if (left == null) {
+							left = new ArrayList<WriteRequest>();
+							unprocessed.put(entry.getKey(), left);
+						}
+						left.add(write);
+					} else if (write.getPutRequest() != null) {
+						put(table, write.getPutRequest().getItem());
+						written++;
+					} else {
+						throw new UnsupportedOperationException("Only put requests are available locally");
+					}
+				}
+			}
+			if (written == 0 && !unprocessed.isEmpty()) {
+				throw new com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException(
+						"Injected throttle");
+			}
+			return new BatchWriteItemResult().withUnprocessedItems(unprocessed);
+		}
+
+		private static void put(LocalTable table, Map<String, AttributeValue> item) {
+			AttributeValue key = item.get(table.keyName);
+			if (key == null) {
+				AmazonServiceException invalid = new AmazonServiceException("Item has no " + table.keyName);
+				invalid.setStatusCode(400);
+				invalid.setErrorCode("ValidationException");
+				throw invalid;
+			}
+			table.items.put(key.getS() != null ? key.getS() : key.getN(), item);
+		}
+
+		private TableDescription describe(String tableName) {
+			return new TableDescription().withTableName(tableName).withTableStatus("ACTIVE")
+					.withItemCount((long) tables.get(tableName).items.size());
+		}
+	}
+
+
+	/**
+	 * Streams that keep a bounded window of recent records.
+	 */
+	private static final class LocalKinesis {
+
+		private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+		private final Faults faults = new Faults("kinesis");
+		private final ConcurrentMap<String, LocalStream> streams = new ConcurrentHashMap<String, LocalStream>();
+		private final int defaultShards = Math.max(1, Integer.getInteger("whg.local.kinesis.shards", 1));
+		private final int retain = Math.max(1, Integer.getInteger("whg.local.kinesis.retain", 10000));
+
+		private final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance("MD5");
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+
+		private final class LocalStream {
+			final String name;
+			final int shards;
+			final AtomicLong sequence = new AtomicLong();
+			final ArrayDeque<Record> records = new ArrayDeque<Record>();
+
+			LocalStream(String name, int shards) {
+				this.name = name;
+				this.shards = shards;
+			}
+
+			synchronized void add(Record record) {
+				if (records.size() == retain) {
+					records.pollFirst();
+				}
+				records.addLast(record);
+			}
+
+			synchronized List<Record> recent() {
+				return new ArrayList<Record>(records);
+			}
+		}
+
+		LocalStream stream(String name) {
+			return stream(name, defaultShards);
+		}
+
+		LocalStream stream(String name, int shards) {
+			LocalStream stream = streams.get(name);
+			if (stream == null) {
+				LocalStream created = new LocalStream(name, shards);
+				stream = streams.putIfAbsent(name, created);
+				if (stream == null) {
+					stream = created;
+				}
+			}
+			return stream;
+		}
+
+		public void createStream(CreateStreamRequest request) {
+			faults.call();
+			stream(request.getStreamName(), request.getShardCount() == null ? defaultShards : request.getShardCount());
+		}
+
+		public void createStream(String streamName, Integer shardCount) {
+			createStream(new CreateStreamRequest().withStreamName(streamName).withShardCount(shardCount));
+		}
+
+		public DescribeStreamResult describeStream(DescribeStreamRequest request) {
+			faults.call();
+			LocalStream stream = streams.get(request.getStreamName());
+			if (stream == null) {
+				throw new com.amazonaws.services.kinesis.model.ResourceNotFoundException(
+						"Stream not found: " + request.getStreamName());
+			}
+			return new DescribeStreamResult().withStreamDescription(new StreamDescription()
+					.withStreamName(stream.name).withStreamStatus("ACTIVE").withHasMoreShards(false));
+		}
+
+		public DescribeStreamResult describeStream(String streamName) {
+			return describeStream(new DescribeStreamRequest().withStreamName(streamName));
+		}
+
+		public ListStreamsResult listStreams(ListStreamsRequest request) {
+			faults.call();
+			return new ListStreamsResult().withStreamNames(new ArrayList<String>(streams.keySet())).withHasMoreStreams(false);
+		}
+
+		public ListStreamsResult listStreams() {
+			return listStreams(new ListStreamsRequest());
+		}
+
+		public PutRecordResult putRecord(PutRecordRequest request) {
+			faults.call();
+			if (faults.throttled()) {
+				throw new com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException("Injected throttle");
+			}
+			PutRecordsResultEntry entry = put(stream(request.getStreamName()), request.getPartitionKey(),
+					request.getExplicitHashKey(), request.getData());
+			return new PutRecordResult().withShardId(entry.getShardId()).withSequenceNumber(entry.getSequenceNumber());
+		}
+
+		public PutRecordsResult putRecords(PutRecordsRequest request) {
+			faults.call();
+			LocalStream stream = stream(request.getStreamName());
+			List<PutRecordsResultEntry> results = new ArrayList<PutRecordsResultEntry>(request.getRecords().size());
+			int failed = 0;
+			for (PutRecordsRequestEntry entry : request.getRecords()) {
+				if (faults.throttled()) {
+					results.add(new PutRecordsResultEntry().withErrorCode("ProvisionedThroughputExceededException")
+							.withErrorMessage("Injected throttle"));
+					failed++;
+				} else if (faults.fails()) {
+					results.add(new PutRecordsResultEntry().withErrorCode("InternalFailure")
+							.withErrorMessage("Injected failure"));
+					failed++;
+				} else {
+					results.add(put(stream, entry.getPartitionKey(), entry.getExplicitHashKey(), entry.getData()));
+				}
+			}
+			return new PutRecordsResult().withRecords(results).withFailedRecordCount(failed);
+		}
+
+		private PutRecordsResultEntry put(LocalStream stream, String partitionKey, String explicitHashKey, ByteBuffer data) {
+			BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey)
+					: new BigInteger(1, md5.get().digest(partitionKey.getBytes(UTF8)));
+			int shard = hashKey.multiply(BigInteger.valueOf(stream.shards)).divide(HASH_KEY_SPACE).intValue();
+			String sequenceNumber = String.format("%020d", stream.sequence.incrementAndGet());
+
+			// keep a copy; the caller may reuse its buffer
+			ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+			copy.put(data.duplicate()).flip();
+			stream.add(new Record().withPartitionKey(partitionKey).withSequenceNumber(sequenceNumber).withData(copy));
+			return new PutRecordsResultEntry().withShardId(String.format("shardId-%012d", shard))
+					.withSequenceNumber(sequenceNumber);
+		}
+	}
+}
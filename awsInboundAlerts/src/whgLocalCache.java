@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * A memcached server on the loopback interface, for running the cache stage
+ * without ElastiCache.
+ * <p>
+ * It speaks enough of the text protocol for the cache client: set, add,
+ * replace, get, gets, delete, version and quit. It also answers the
+ * ElastiCache cluster configuration request, config get cluster, naming
+ * itself as the cluster's only node, so the ElastiCache Cluster Client can
+ * run in its default auto-discovery mode. Values never expire. Each
+ * connection is served by its own thread. Injected failures for the "cache"
+ * service answer a data command with SERVER_ERROR; see whgLocal.
+ */
+public class whgLocalCache {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final String CLUSTER_CONFIG_KEY = "AmazonElastiCache:cluster";
+
+	private static final whgLog log = whgLog.get("Local");
+
+	private static final class Value {
+		final int flags;
+		final byte[] data;
+
+		Value(int flags, byte[] data) {
+			this.flags = flags;
+			this.data = data;
+		}
+	}
+
+	private final ConcurrentMap<String, Value> values = new ConcurrentHashMap<String, Value>();
+	private final whgLocal.Faults faults;
+	private final ServerSocket server;
+
+	whgLocalCache(whgLocal.Faults faults) throws IOException {
+		this.faults = faults;
+		this.server = new ServerSocket(Integer.getInteger("whg.local.cache.port", 0), 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "whg-local-cache");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("cacheListening", "port", server.getLocalPort());
+	}
+
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+
+	/** Values currently stored. */
+	public int size() {
+		return values.size();
+	}
+
+
+	private void accept() {
+		while (!server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				Thread connection = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "whg-local-cache-" + socket.getPort());
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				log.warn("cacheAcceptFailed", "error", e);
+			}
+		}
+	}
+
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			String line;
+			while ((line = readLine(in)) != null) {
+				String[] words = line.trim().split(" +");
+				String command = words[0];
+				if (command.equals("quit")) {
+					break;
+				}
+
+				// a set's data block must be read whether or not the set fails
+				byte[] data = null;
+				if (command.equals("set") || command.equals("add") || command.equals("replace")) {
+					data = new byte[Integer.parseInt(words[4])];
+					readFully(in, data);
+					readLine(in);
+				}
+
+				String reply;
+				try {
+					// discovery is not a data operation; failing it would stop the client from starting at all
+					if (!command.equals("config") && !command.equals("version")) {
+						faults.call();
+					}
+					reply = execute(words, data);
+				} catch (AmazonServiceException e) {
+					reply = "SERVER_ERROR injected failure\r\n";
+				}
+				// a trailing noreply suppresses the answer to storage and delete commands
+				if (!words[words.length - 1].equals("noreply") || command.equals("get") || command.equals("gets")) {
+					out.write(reply.getBytes(LATIN1));
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			log.debug("cacheConnectionClosed", "error", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+
+	private String execute(String[] words, byte[] data) {
+		String command = words[0];
+		if (command.equals("set")) {
+			values.put(words[1], new Value(Integer.parseInt(words[2]), data));
+			return "STORED\r\n";
+		} else if (command.equals("add")) {
+			return values.putIfAbsent(words[1], new Value(Integer.parseInt(words[2]), data)) == null
+					? "STORED\r\n" : "NOT_STORED\r\n";
+		} else if (command.equals("replace")) {
+			return values.replace(words[1], new Value(Integer.parseInt(words[2]), data)) != null
+					? "STORED\r\n" : "NOT_STORED\r\n";
+		} else if (command.equals("config") && words.length == 3 && words[1].equals("get")
+				&& words[2].equals("cluster")) {
+			byte[] config = clusterConfig();
+			return "CONFIG cluster 0 " + config.length + "\r\n" + new String(config, LATIN1) + "\r\nEND\r\n";
+		} else if (command.equals("get") || command.equals("gets")) {
+			StringBuilder reply = new StringBuilder();
+			for (int i = 1; i < words.length; i++) {
+				Value value = values.get(words[i]);
+				if (value == null && words[i].equals(CLUSTER_CONFIG_KEY)) {
+					// engines before 1.4.14 kept the cluster configuration under a reserved key
+					value = new Value(0, clusterConfig());
+				}
+				if (value != null) {
+					reply.append("VALUE ").append(words[i]).append(' ').append(value.flags).append(' ')
+							.append(value.data.length).append("\r\n").append(new String(value.data, LATIN1)).append("\r\n");
+				}
+			}
+			return reply.append("END\r\n").toString();
+		} else if (command.equals("delete")) {
+			return values.remove(words[1]) != null ? "DELETED\r\n" : "NOT_FOUND\r\n";
+		} else if (command.equals("version")) {
+			return "VERSION 1.4.14\r\n";
+		}
+		return "ERROR\r\n";
+	}
+
+
+	/**
+	 * The cluster configuration auto-discovery reads: a version, then the one
+	 * node, this server.
+	 */
+	private byte[] clusterConfig() {
+		return ("1\nlocalhost|127.0.0.1|" + server.getLocalPort() + "\n").getBytes(LATIN1);
+	}
+
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				byte[] bytes = line.toByteArray();
+				int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+				return new String(bytes, 0, length, LATIN1);
+			}
+			line.write(b);
+		}
+		return null;
+	}
+
+
+	private static void readFully(InputStream in, byte[] data) throws IOException {
+		int read = 0;
+		while (read < data.length) {
+			int n = in.read(data, read, data.length - read);
+			if (n < 0) {
+				throw new IOException("Connection closed in the middle of a value");
+			}
+			read += n;
+		}
+	}
+}
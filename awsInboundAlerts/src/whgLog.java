@@ -0,0 +1,375 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Asynchronous structured logger for the pipeline's hot paths.
+ * <p>
+ * An event is a name plus key/value pairs rather than a formatted string.
+ * Logging one copies the references into a preallocated slot of a ring
+ * buffer and returns; a single background thread turns events into text and
+ * writes them to standard output, so callers never wait on the console and
+ * never build strings for events that are filtered out. Values are formatted
+ * on the writer thread, so they must not be changed after they are logged.
+ * When the ring is full the event is dropped and counted rather than blocking
+ * the caller.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.log.level - DEBUG, INFO (default), WARN or ERROR</li>
+ * <li>whg.log.level.&lt;name&gt; - level for one logger</li>
+ * <li>whg.log.sample.&lt;name&gt; - keep one in N debug and info events of a logger (default 1)</li>
+ * <li>whg.log.rateLimit - debug and info events per second per logger before the rest are dropped (default 1000)</li>
+ * <li>whg.log.warnRateLimit - warn and error events per second per logger, counted apart so a
+ * flood of info events cannot crowd them out (default 1000)</li>
+ * <li>whg.log.bufferSize - events the ring holds (default 8192)</li>
+ * </ul>
+ */
+public class whgLog {
+
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	// most key/value pairs one event carries
+	private static final int MAX_PAIRS = 8;
+
+	private static final ConcurrentMap<String, whgLog> loggers = new ConcurrentHashMap<String, whgLog>();
+	private static final Ring ring = new Ring(Integer.getInteger("whg.log.bufferSize", 8192));
+
+	private final String name;
+	private final Level level;
+	private final int sampleEvery;
+
+	private final AtomicLong sampled = new AtomicLong();
+	private final Rate infoRate;
+	private final Rate warnRate;
+
+	private whgLog(String name) {
+		this.name = name;
+		this.level = Level.valueOf(System.getProperty("whg.log.level." + name,
+				System.getProperty("whg.log.level", "INFO")).toUpperCase());
+		this.sampleEvery = Math.max(1, Integer.getInteger("whg.log.sample." + name, 1));
+		this.infoRate = new Rate(Integer.getInteger("whg.log.rateLimit", 1000));
+		this.warnRate = new Rate(Integer.getInteger("whg.log.warnRateLimit", 1000));
+	}
+
+
+	/**
+	 * The logger with the given name, created on first use.
+	 */
+	public static whgLog get(String name) {
+		whgLog log = loggers.get(name);
+		if (log == null) {
+			whgLog created = new whgLog(name);
+			log = loggers.putIfAbsent(name, created);
+			if (log == null) {
+				log = created;
+			}
+		}
+		return log;
+	}
+
+
+	public boolean isDebugEnabled() {
+		return level == Level.DEBUG;
+	}
+
+
+	public boolean isEnabled(Level eventLevel) {
+		return eventLevel.compareTo(level) >= 0;
+	}
+
+
+	public void debug(String event, Object... keyValues) {
+		log(Level.DEBUG, event, keyValues);
+	}
+
+
+	public void info(String event, Object... keyValues) {
+		log(Level.INFO, event, keyValues);
+	}
+
+
+	public void warn(String event, Object... keyValues) {
+		log(Level.WARN, event, keyValues);
+	}
+
+
+	public void error(String event, Object... keyValues) {
+		log(Level.ERROR, event, keyValues);
+	}
+
+
+	/**
+	 * Logs an event with alternating keys and values.
+	 */
+	public void log(Level eventLevel, String event, Object... keyValues) {
+		if (!isEnabled(eventLevel)) {
+			return;
+		}
+		if (eventLevel.compareTo(Level.WARN) < 0 && sampleEvery > 1
+				&& sampled.getAndIncrement() % sampleEvery != 0) {
+			return;
+		}
+		boolean severe = eventLevel.compareTo(Level.WARN) >= 0;
+		if (!(severe ? warnRate : infoRate).allow(this, severe ? "warn" : "info")) {
+			return;
+		}
+		ring.publish(this, eventLevel, event, keyValues);
+	}
+
+
+	/**
+	 * A per-second event budget; what goes over it is dropped and counted,
+	 * and the count is logged when the next second starts.
+	 */
+	private static final class Rate {
+
+		private final int limit;
+		// current one-second window and events logged in it
+		private final AtomicLong window = new AtomicLong();
+		private final AtomicLong windowCount = new AtomicLong();
+		private final AtomicLong suppressed = new AtomicLong();
+
+		Rate(int limit) {
+			this.limit = Math.max(1, limit);
+		}
+
+		boolean allow(whgLog logger, String levels) {
+			long second = System.currentTimeMillis() / 1000;
+			long current = window.get();
+			if (second != current && window.compareAndSet(current, second)) {
+				long dropped = suppressed.getAndSet(0);
+				windowCount.set(0);
+				if (dropped > 0) {
+					ring.publish(logger, Level.WARN, "suppressed",
+							new Object[] { "events", dropped, "levels", levels });
+				}
+			}
+			if (windowCount.incrementAndGet() > limit) {
+				suppressed.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+	}
+
+
+	/**
+	 * Writes out every event logged so far; for use when shutting down.
+	 */
+	public static void flush() {
+		ring.drain();
+	}
+
+
+	/**
+	 * Events lost because the ring was full.
+	 */
+	public static long dropped() {
+		return ring.dropped.get();
+	}
+
+
+	/**
+	 * One reusable event; the fields are written by the producer that claims
+	 * the slot and read by the writer once the slot is published.
+	 */
+	private static final class Slot {
+		long time;
+		whgLog logger;
+		Level level;
+		String event;
+		int length;
+		final Object[] keyValues = new Object[MAX_PAIRS * 2];
+	}
+
+
+	/**
+	 * Many producers, one writer. Each slot's sequence says whether it is free
+	 * for a producer on this lap or published for the writer.
+	 */
+	private static final class Ring implements Runnable {
+
+		private final int mask;
+		private final Slot[] slots;
+		private final AtomicLongArray sequences;
+		private final AtomicLong tail = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		private long head;
+
+		private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+		private final StringBuilder line = new StringBuilder(256);
+		private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+
+		Ring(int capacity) {
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			this.mask = size - 1;
+			this.slots = new Slot[size];
+			this.sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				slots[i] = new Slot();
+				sequences.set(i, i);
+			}
+			timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+			Thread writer = new Thread(this, "whg-log-writer");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, "whg-log-drain"));
+		}
+
+
+		void publish(whgLog logger, Level level, String event, Object[] keyValues) {
+			long position;
+			while (true) {
+				position = tail.get();
+				long difference = sequences.get((int) position & mask) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						break;
+					}
+				} else if (difference < 0) {
+					dropped.incrementAndGet();
+					return;
+				}
+			}
+
+			int index = (int) position & mask;
+			Slot slot = slots[index];
+			slot.time = System.currentTimeMillis();
+			slot.logger = logger;
+			slot.level = level;
+			slot.event = event;
+			slot.length = Math.min(keyValues.length, slot.keyValues.length);
+			System.arraycopy(keyValues, 0, slot.keyValues, 0, slot.length);
+			sequences.set(index, position + 1);
+		}
+
+
+		@Override
+		public void run() {
+			for (int idle = 0;; idle++) {
+				if (writeAvailable()) {
+					idle = 0;
+				} else {
+					if (idle == 0) {
+						flush();
+					}
+					whgRingBuffer.idle(idle + 200);
+				}
+			}
+		}
+
+
+		/**
+		 * Writes whatever has been published.
+		 *
+		 * @return true if anything was written
+		 */
+		private synchronized boolean writeAvailable() {
+			boolean wrote = false;
+			while (true) {
+				int index = (int) head & mask;
+				if (sequences.get(index) != head + 1) {
+					return wrote;
+				}
+				write(slots[index]);
+				slots[index].logger = null;
+				Arrays.fill(slots[index].keyValues, 0, slots[index].length, null);
+				sequences.set(index, head + mask + 1);
+				head++;
+				wrote = true;
+			}
+		}
+
+
+		private void write(Slot slot) {
+			line.setLength(0);
+			line.append(timeFormat.format(new Date(slot.time))).append(' ')
+					.append(slot.level).append(' ')
+					.append(slot.logger.name).append(' ')
+					.append(slot.event);
+			for (int i = 0; i + 1 < slot.length; i += 2) {
+				line.append(' ').append(slot.keyValues[i]).append('=');
+				appendValue(slot.keyValues[i + 1]);
+			}
+			line.append('\n');
+			try {
+				out.write(line.toString());
+			} catch (IOException e) {
+				dropped.incrementAndGet();
+			}
+		}
+
+
+		private void appendValue(Object value) {
+			String text = String.valueOf(value);
+			boolean quote = text.isEmpty();
+			for (int i = 0; i < text.length() && !quote; i++) {
+				char c = text.charAt(i);
+				quote = c == ' ' || c == '"' || c == '=' || c < 0x20;
+			}
+			if (!quote) {
+				line.append(text);
+				return;
+			}
+			line.append('"');
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c == '"' || c == '\\') {
+					line.append('\\').append(c);
+				} else if (c == '\n') {
+					line.append("\\n");
+				} else if (c < 0x20) {
+					line.append(' ');
+				} else {
+					line.append(c);
+				}
+			}
+			line.append('"');
+		}
+
+
+		private synchronized void flush() {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				// nothing sensible to do if standard output is gone
+			}
+		}
+
+
+		void drain() {
+			writeAvailable();
+			flush();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Process-wide registry of counters and latency histograms.
+ * <p>
+ * Metrics are named in the Prometheus style with optional labels, and are
+ * looked up once and kept in a field by the code that updates them. Every
+ * metric is readable over JMX as attributes of the whg:type=Metrics MBean,
+ * and as Prometheus text from a small HTTP endpoint that is started when
+ * whg.metrics.port is set (bound to whg.metrics.host, default 127.0.0.1).
+ * Latencies are recorded in nanoseconds and exported in seconds.
+ */
+public class whgMetrics {
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// sorted so the text output groups each metric's label sets together
+	private static final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+
+	private static HttpServer endpoint;
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("whg:type=Metrics"));
+		} catch (JMException e) {
+			whgLog.get("Metrics").warn("jmxUnavailable", "error", e);
+		}
+	}
+
+
+	/**
+	 * The counter with the given name and label pairs, created on first use.
+	 */
+	public static whgCounter counter(String name, String... labels) {
+		String key = key(name, labels);
+		Object existing = metrics.get(key);
+		return (whgCounter) (existing != null ? existing : register(key, new whgCounter()));
+	}
+
+
+	/**
+	 * The histogram with the given name and label pairs, created on first use.
+	 */
+	public static whgHistogram histogram(String name, String... labels) {
+		String key = key(name, labels);
+		Object existing = metrics.get(key);
+		// a histogram's buckets are worth not allocating on every lookup
+		return (whgHistogram) (existing != null ? existing : register(key, new whgHistogram()));
+	}
+
+
+	private static Object register(String key, Object metric) {
+		Object existing = metrics.putIfAbsent(key, metric);
+		return existing != null ? existing : metric;
+	}
+
+
+	private static String key(String name, String... labels) {
+		if (labels.length == 0) {
+			return name;
+		}
+		StringBuilder key = new StringBuilder(name).append('{');
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0) {
+				key.append(',');
+			}
+			key.append(labels[i]).append("=\"").append(labels[i + 1].replace("\"", "\\\"")).append('"');
+		}
+		return key.append('}').toString();
+	}
+
+
+	/**
+	 * Starts the HTTP endpoint if whg.metrics.port is set and it is not
+	 * already running. A port that cannot be bound is logged, not fatal. The
+	 * server's dispatcher thread keeps the JVM running, so this is meant for
+	 * the long-running stage runtimes.
+	 */
+	public static synchronized void startEndpoint() {
+		Integer port = Integer.getInteger("whg.metrics.port");
+		if (port == null || endpoint != null) {
+			return;
+		}
+		String host = System.getProperty("whg.metrics.host", "127.0.0.1");
+		try {
+			endpoint = HttpServer.create(new InetSocketAddress(host, port), 0);
+		} catch (IOException e) {
+			whgLog.get("Metrics").warn("endpointFailed", "host", host, "port", port, "error", e);
+			return;
+		}
+		endpoint.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = text().getBytes(UTF8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		endpoint.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "whg-metrics-endpoint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}));
+		endpoint.start();
+		whgLog.get("Metrics").info("endpoint", "url", "http://" + host + ":" + port + "/metrics");
+	}
+
+
+	/**
+	 * Every metric in the Prometheus text format.
+	 */
+	public static String text() {
+		StringBuilder out = new StringBuilder(4096);
+		String lastName = null;
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			String key = entry.getKey();
+			int brace = key.indexOf('{');
+			String name = brace < 0 ? key : key.substring(0, brace);
+			String labels = brace < 0 ? "" : key.substring(brace + 1, key.length() - 1);
+			boolean histogram = entry.getValue() instanceof whgHistogram;
+			if (!name.equals(lastName)) {
+				out.append("# TYPE ").append(name).append(histogram ? " summary\n" : " counter\n");
+				lastName = name;
+			}
+
+			if (!histogram) {
+				out.append(key).append(' ').append(((whgCounter) entry.getValue()).sum()).append('\n');
+				continue;
+			}
+			whgHistogram h = (whgHistogram) entry.getValue();
+			String separator = labels.isEmpty() ? "" : ",";
+			for (double quantile : QUANTILES) {
+				out.append(name).append('{').append(labels).append(separator)
+						.append("quantile=\"").append(quantile).append("\"} ")
+						.append(seconds(h.valueAt(quantile))).append('\n');
+			}
+			String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+			out.append(name).append("_max").append(suffix).append(' ').append(seconds(h.max())).append('\n');
+			out.append(name).append("_sum").append(suffix).append(' ').append(seconds(h.sum())).append('\n');
+			out.append(name).append("_count").append(suffix).append(' ').append(h.count()).append('\n');
+		}
+		return out.toString();
+	}
+
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+
+
+	/**
+	 * Exposes counters as their totals, and histograms as count, p50, p99,
+	 * p999 and max in seconds, with attribute names built from the metric key.
+	 */
+	private static final class MBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			int dot = attribute.lastIndexOf('.');
+			Object metric = metrics.get(attribute);
+			if (metric instanceof whgCounter) {
+				return ((whgCounter) metric).sum();
+			}
+			metric = dot < 0 ? null : metrics.get(attribute.substring(0, dot));
+			if (!(metric instanceof whgHistogram)) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			whgHistogram h = (whgHistogram) metric;
+			String field = attribute.substring(dot + 1);
+			if (field.equals("count")) {
+				return h.count();
+			} else if (field.equals("p50")) {
+				return seconds(h.valueAt(0.5));
+			} else if (field.equals("p99")) {
+				return seconds(h.valueAt(0.99));
+			} else if (field.equals("p999")) {
+				return seconds(h.valueAt(0.999));
+			} else if (field.equals("max")) {
+				return seconds(h.max());
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					// left out, as the interface allows
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+				String key = entry.getKey();
+				if (entry.getValue() instanceof whgCounter) {
+					attributes.add(new MBeanAttributeInfo(key, "long", "counter", true, false, false));
+				} else {
+					attributes.add(new MBeanAttributeInfo(key + ".count", "long", "recorded values", true, false, false));
+					for (String field : new String[] { "p50", "p99", "p999", "max" }) {
+						attributes.add(new MBeanAttributeInfo(key + "." + field, "double", field + " in seconds",
+								true, false, false));
+					}
+				}
+			}
+			return new MBeanInfo(whgMetrics.class.getName(), "Pipeline metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+	}
+}
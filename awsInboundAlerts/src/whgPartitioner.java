@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+/**
+ * Chooses where an alert's stream record lands. Records with the same
+ * partition key go to the same shard in the order they are put.
+ * <p>
+ * The implementation is picked with the system property
+ * whg.kinesis.partitioner (a class name with a no-argument constructor) and
+ * defaults to {@link whgSourcePartitioner}.
+ */
+public interface whgPartitioner {
+
+	/**
+	 * @param alertSourceId the source the alert came from
+	 * @return the partition key for the alert's record
+	 */
+	String partitionKey(String alertSourceId);
+
+	/**
+	 * @param alertSourceId the source the alert came from
+	 * @return the hash key that pins the record to a shard, or null to let
+	 *         Kinesis hash the partition key
+	 */
+	String explicitHashKey(String alertSourceId);
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of stream record payloads.
+ * <p>
+ * A compressed record starts with a marker byte, a codec byte and, for
+ * dictionary compression, the 4-byte id of the preset dictionary, followed by
+ * the deflated payload. Records without the marker are passed through
+ * untouched, so readers handle compressed and uncompressed records alike, and
+ * a payload that would not get smaller is sent uncompressed.
+ * <p>
+ * With dictionary compression the compressor trains a preset dictionary from
+ * the byte sequences that recur across its first sample of payloads. It then
+ * keeps a sample of recent payloads and watches the compression ratio, one
+ * sample's worth of records at a time: the first window after training sets
+ * the baseline, and the dictionary is retrained from the recent sample only
+ * when a later window compresses worse than the baseline by more than the
+ * allowed drift, so steady traffic keeps one dictionary. Dictionaries are written
+ * to a directory shared with the readers, named by id, before the first
+ * record that uses them is sent; readers load them from there on first sight.
+ * Nothing else carries them between hosts: when producers and consumers run
+ * on different machines, whg.kinesis.dictionaryDir must point at a file
+ * system they all mount (NFS, EFS), or records fail to decompress with
+ * "Unknown record dictionary". Use deflate when no such directory exists.
+ * Files are never deleted, since records still in the stream may name them;
+ * in memory, only the most recently loaded dictionaries are kept.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.kinesis.compression - none (default), deflate or dictionary</li>
+ * <li>whg.kinesis.dictionaryDir - where dictionaries are kept (default "dictionaries")</li>
+ * <li>whg.kinesis.dictionarySamples - payloads per training run and per ratio window (default 1000)</li>
+ * <li>whg.kinesis.dictionaryDrift - how much worse, as a fraction of the baseline
+ * ratio, a window may compress before retraining (default 0.2)</li>
+ * <li>whg.kinesis.dictionaryCache - dictionaries kept in memory (default 16)</li>
+ * </ul>
+ */
+public class whgRecordCompressor {
+
+	public static final byte MARKER = (byte) 0xC5;
+	public static final byte CODEC_DEFLATE = 1;
+	public static final byte CODEC_DEFLATE_DICTIONARY = 2;
+
+	// deflate only looks back 32 KB, so a larger dictionary is wasted
+	private static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+	private static final int SEGMENT_BYTES = 16;
+
+	// maps bytes to chars one to one so segments can be used as map keys
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final whgLog log = whgLog.get("Compressor");
+
+	// loaded or trained dictionaries by id, the oldest evicted first; an
+	// evicted one still named by records is read from its file again
+	private static final int CACHE_SIZE = Math.max(1, Integer.getInteger("whg.kinesis.dictionaryCache", 16));
+	private static final ConcurrentMap<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+	private static final Queue<Integer> cacheOrder = new ArrayDeque<Integer>();
+
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private final byte codec;
+	private final File dictionaryDir;
+	private final int sampleSize;
+	private final double drift;
+
+	// guarded by sampleLock: the recent payloads, oldest overwritten first once
+	// full, and the bytes in and out of the current ratio window
+	private final ReentrantLock sampleLock = new ReentrantLock();
+	private final List<byte[]> samples = new ArrayList<byte[]>();
+	private int nextSample;
+	private long windowRecords;
+	private long windowIn;
+	private long windowOut;
+	private double baseline = Double.NaN;
+	private boolean training;
+
+	private volatile Dictionary current;
+
+	public whgRecordCompressor(String compression, File dictionaryDir, int sampleSize) {
+		this(compression, dictionaryDir, sampleSize,
+				Double.parseDouble(System.getProperty("whg.kinesis.dictionaryDrift", "0.2")));
+	}
+
+
+	public whgRecordCompressor(String compression, File dictionaryDir, int sampleSize, double drift) {
+		if ("deflate".equals(compression)) {
+			this.codec = CODEC_DEFLATE;
+		} else if ("dictionary".equals(compression)) {
+			this.codec = CODEC_DEFLATE_DICTIONARY;
+		} else if ("none".equals(compression)) {
+			this.codec = 0;
+		} else {
+			throw new IllegalArgumentException("Unknown compression " + compression);
+		}
+		this.dictionaryDir = dictionaryDir;
+		this.sampleSize = Math.max(10, sampleSize);
+		this.drift = drift;
+	}
+
+
+	/**
+	 * A compressor configured from system properties.
+	 */
+	public static whgRecordCompressor fromProperties() {
+		return new whgRecordCompressor(System.getProperty("whg.kinesis.compression", "none"),
+				dictionaryDir(), Integer.getInteger("whg.kinesis.dictionarySamples", 1000));
+	}
+
+
+	/**
+	 * Compresses a record payload, or returns it as is if compression is off
+	 * or would not make it smaller.
+	 */
+	public byte[] compress(byte[] payload) throws IOException {
+		if (codec == 0) {
+			return payload;
+		}
+
+		byte[] preset = null;
+		int presetId = 0;
+		if (codec == CODEC_DEFLATE_DICTIONARY) {
+			// read once so the bytes and the id written with them always match
+			Dictionary trained = current;
+			if (trained != null) {
+				preset = trained.bytes;
+				presetId = trained.id;
+			}
+		}
+
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (preset != null) {
+			deflater.setDictionary(preset);
+		}
+		deflater.setInput(payload);
+		deflater.finish();
+
+		int header = preset != null ? 6 : 2;
+		byte[] out = new byte[payload.length];
+		int length = header;
+		while (!deflater.finished() && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		if (codec == CODEC_DEFLATE_DICTIONARY) {
+			// a payload that did not shrink counts at its full size
+			sample(payload, deflater.finished() ? length : payload.length);
+		}
+		if (!deflater.finished()) {
+			return payload;
+		}
+
+		out[0] = MARKER;
+		out[1] = preset != null ? CODEC_DEFLATE_DICTIONARY : CODEC_DEFLATE;
+		if (preset != null) {
+			out[2] = (byte) (presetId >>> 24);
+			out[3] = (byte) (presetId >>> 16);
+			out[4] = (byte) (presetId >>> 8);
+			out[5] = (byte) presetId;
+		}
+		return Arrays.copyOf(out, length);
+	}
+
+
+	public static boolean isCompressed(ByteBuffer data) {
+		return data.remaining() >= 2 && data.get(data.position()) == MARKER;
+	}
+
+
+	/**
+	 * Restores a record payload written by {@link #compress(byte[])};
+	 * uncompressed records are returned unchanged.
+	 *
+	 * @throws IOException if the record is corrupt or its dictionary cannot be found
+	 */
+	public static ByteBuffer decompress(ByteBuffer data) throws IOException {
+		if (!isCompressed(data)) {
+			return data;
+		}
+		ByteBuffer in = data.duplicate();
+		in.get();
+		byte codec = in.get();
+		byte[] preset = null;
+		if (codec == CODEC_DEFLATE_DICTIONARY) {
+			preset = loadDictionary(in.getInt());
+		} else if (codec != CODEC_DEFLATE) {
+			throw new IOException("Unknown record codec " + codec);
+		}
+
+		byte[] compressed = new byte[in.remaining()];
+		in.get(compressed);
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+
+		byte[] out = new byte[Math.max(64, compressed.length * 4)];
+		int length = 0;
+		try {
+			while (!inflater.finished()) {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				int n = inflater.inflate(out, length, out.length - length);
+				if (n == 0 && inflater.needsDictionary()) {
+					if (preset == null) {
+						throw new IOException("Record needs a dictionary it does not name");
+					}
+					inflater.setDictionary(preset);
+				} else if (n == 0 && inflater.needsInput()) {
+					throw new IOException("Truncated compressed record");
+				}
+				length += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed record", e);
+		}
+		return ByteBuffer.wrap(out, 0, length);
+	}
+
+
+	/**
+	 * Adds a payload to the recent sample and its compressed size to the
+	 * ratio window, and trains when there is no dictionary yet or the window
+	 * compressed worse than the baseline by more than the allowed drift.
+	 */
+	private void sample(byte[] payload, int compressedLength) throws IOException {
+		List<byte[]> toTrain = null;
+		double ratio = Double.NaN;
+		sampleLock.lock();
+		try {
+			if (samples.size() < sampleSize) {
+				samples.add(payload);
+			} else {
+				samples.set(nextSample, payload);
+				nextSample = (nextSample + 1) % sampleSize;
+			}
+			windowRecords++;
+			windowIn += payload.length;
+			windowOut += compressedLength;
+			if (windowRecords >= sampleSize && !training) {
+				ratio = (double) windowOut / windowIn;
+				windowRecords = 0;
+				windowIn = 0;
+				windowOut = 0;
+				if (current == null || ratio > baseline * (1 + drift)) {
+					toTrain = new ArrayList<byte[]>(samples);
+					training = true;
+				} else if (Double.isNaN(baseline)) {
+					baseline = ratio;
+				}
+			}
+		} finally {
+			sampleLock.unlock();
+		}
+		if (toTrain == null) {
+			return;
+		}
+
+		try {
+			train(toTrain, ratio);
+		} finally {
+			sampleLock.lock();
+			try {
+				training = false;
+			} finally {
+				sampleLock.unlock();
+			}
+		}
+	}
+
+
+	private void train(List<byte[]> sample, double ratio) throws IOException {
+		byte[] trained = train(sample);
+		if (trained.length == 0) {
+			return;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(trained);
+		int id = (int) crc.getValue();
+		Dictionary previous = current;
+		if (previous == null || id != previous.id) {
+			// readers must be able to find the dictionary before any record uses it
+			saveDictionary(id, trained);
+			cache(id, trained);
+			sampleLock.lock();
+			try {
+				// the next window measures the new dictionary
+				baseline = Double.NaN;
+				windowRecords = 0;
+				windowIn = 0;
+				windowOut = 0;
+				current = new Dictionary(id, trained);
+			} finally {
+				sampleLock.unlock();
+			}
+			log.info("dictionaryTrained", "id", Integer.toHexString(id), "bytes", trained.length,
+					"records", sample.size(), "windowRatio", ratio);
+		} else {
+			// the traffic has changed but the same dictionary is still the best
+			// fit, so take the new ratio as the baseline rather than retrain again
+			sampleLock.lock();
+			try {
+				baseline = ratio;
+			} finally {
+				sampleLock.unlock();
+			}
+		}
+	}
+
+
+	/**
+	 * Builds a dictionary from the fixed-size segments that occur in the most
+	 * samples, most common last so they sit closest to the data.
+	 */
+	static byte[] train(List<byte[]> samples) {
+		Map<String, int[]> counts = new HashMap<String, int[]>();
+		Map<String, Integer> lastSample = new HashMap<String, Integer>();
+		for (int s = 0; s < samples.size(); s++) {
+			byte[] sample = samples.get(s);
+			for (int i = 0; i + SEGMENT_BYTES <= sample.length; i += SEGMENT_BYTES / 2) {
+				String segment = new String(sample, i, SEGMENT_BYTES, LATIN1);
+				Integer seen = lastSample.put(segment, s);
+				if (seen != null && seen == s) {
+					continue;
+				}
+				int[] count = counts.get(segment);
+				if (count == null) {
+					counts.put(segment, new int[] { 1 });
+				} else {
+					count[0]++;
+				}
+			}
+		}
+
+		List<Map.Entry<String, int[]>> ranked = new ArrayList<Map.Entry<String, int[]>>();
+		for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+			// a segment seen in only one record will not help the next one
+			if (entry.getValue()[0] > 1) {
+				ranked.add(entry);
+			}
+		}
+		Collections.sort(ranked, new Comparator<Map.Entry<String, int[]>>() {
+			@Override
+			public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+				return b.getValue()[0] - a.getValue()[0];
+			}
+		});
+
+		int count = Math.min(ranked.size(), MAX_DICTIONARY_BYTES / SEGMENT_BYTES);
+		byte[] trained = new byte[count * SEGMENT_BYTES];
+		for (int i = 0; i < count; i++) {
+			byte[] segment = ranked.get(i).getKey().getBytes(LATIN1);
+			System.arraycopy(segment, 0, trained, (count - 1 - i) * SEGMENT_BYTES, SEGMENT_BYTES);
+		}
+		return trained;
+	}
+
+
+	private void saveDictionary(int id, byte[] trained) throws IOException {
+		if (!dictionaryDir.isDirectory() && !dictionaryDir.mkdirs()) {
+			throw new IOException("Cannot create dictionary directory " + dictionaryDir);
+		}
+		File target = dictionaryFile(dictionaryDir, id);
+		File temp = new File(dictionaryDir, target.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(trained);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(target) && !target.isFile()) {
+			throw new IOException("Cannot write dictionary " + target);
+		}
+	}
+
+
+	private static byte[] loadDictionary(int id) throws IOException {
+		byte[] cached = dictionaries.get(id);
+		if (cached != null) {
+			return cached;
+		}
+		File file = dictionaryFile(dictionaryDir(), id);
+		if (!file.isFile()) {
+			throw new IOException("Unknown record dictionary " + file);
+		}
+		byte[] loaded = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < loaded.length) {
+				int n = in.read(loaded, read, loaded.length - read);
+				if (n < 0) {
+					throw new IOException("Truncated dictionary " + file);
+				}
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		cache(id, loaded);
+		return loaded;
+	}
+
+
+	private static void cache(int id, byte[] dictionary) {
+		synchronized (cacheOrder) {
+			if (dictionaries.put(id, dictionary) == null) {
+				cacheOrder.add(id);
+				while (cacheOrder.size() > CACHE_SIZE) {
+					dictionaries.remove(cacheOrder.remove());
+				}
+			}
+		}
+	}
+
+
+	private static File dictionaryDir() {
+		return new File(System.getProperty("whg.kinesis.dictionaryDir", "dictionaries"));
+	}
+
+
+	private static File dictionaryFile(File dir, int id) {
+		return new File(dir, String.format("%08x.dict", id));
+	}
+
+
+	/**
+	 * A trained dictionary and its id, published together.
+	 */
+	private static final class Dictionary {
+		final int id;
+		final byte[] bytes;
+
+		Dictionary(int id, byte[] bytes) {
+			this.id = id;
+			this.bytes = bytes;
+		}
+	}
+}
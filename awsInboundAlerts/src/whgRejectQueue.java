@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * Sets aside SQS messages a stage can never process, such as a body that
+ * does not parse, so they are not received and failed again forever.
+ * <p>
+ * The raw body is sent unchanged to alertErrorHandling (set with
+ * whg.rejectQueue); the stage, original message id and reason travel as
+ * message attributes. The caller deletes the message from its own queue
+ * once {@link #reject} returns. If the send fails the exception is thrown
+ * and the message is left where it is, to be tried again.
+ */
+public class whgRejectQueue {
+
+	private final AmazonSQS sqs;
+	private final String queue;
+	private final String stage;
+	private final whgLog log;
+	private final whgCounter rejected;
+
+	public whgRejectQueue(AmazonSQS sqs, String stage) {
+		this.sqs = sqs;
+		this.queue = System.getProperty("whg.rejectQueue", "alertErrorHandling");
+		this.stage = stage;
+		this.log = whgLog.get(stage);
+		this.rejected = whgMetrics.counter("whg_stage_rejected_total", "queue", stage);
+	}
+
+
+	/**
+	 * @param message the message to set aside
+	 * @param reason why it can never be processed
+	 */
+	public void reject(Message message, Exception reason) {
+		Map<String, MessageAttributeValue> attributes = new HashMap<String, MessageAttributeValue>();
+		attributes.put("stage", attribute(stage));
+		attributes.put("messageId", attribute(message.getMessageId()));
+		attributes.put("reason", attribute(String.valueOf(reason.getMessage())));
+		sqs.sendMessage(new SendMessageRequest(queue, message.getBody()).withMessageAttributes(attributes));
+
+		rejected.increment();
+		log.warn("rejected", "messageId", message.getMessageId(), "queue", queue, "error", reason);
+	}
+
+
+	/**
+	 * Sets a message of a batch aside and queues its delete with the
+	 * forwarder. If it cannot be sent aside it is left on the queue.
+	 */
+	public void reject(Message message, Exception reason, whgBatchForwarder forwarder) {
+		try {
+			reject(message, reason);
+		} catch (AmazonClientException e) {
+			log.warn("rejectFailed", "messageId", message.getMessageId(), "queue", queue, "error", e);
+			return;
+		}
+		forwarder.add(message, null);
+	}
+
+
+	private static MessageAttributeValue attribute(String value) {
+		// SQS rejects empty attribute values
+		return new MessageAttributeValue().withDataType("String")
+				.withStringValue(value == null || value.isEmpty() ? "-" : value);
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue connecting the stages of the fused pipeline.
+ * <p>
+ * Any number of threads may offer and poll concurrently. Each slot carries a
+ * sequence number that tells producers and consumers whether it is free or
+ * full for their lap around the ring, so a claim is a single CAS on the head
+ * or tail counter and no thread ever blocks another.
+ */
+public class whgRingBuffer<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicLongArray sequences;
+
+	// next position to fill and next position to take
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	public whgRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+
+	/**
+	 * Adds an element if there is room.
+	 *
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E element) {
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.lazySet(index, element);
+					sequences.set(index, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false;
+			}
+		}
+	}
+
+
+	/**
+	 * Removes the oldest element.
+	 *
+	 * @return the element, or null if the ring is empty
+	 */
+	public E poll() {
+		while (true) {
+			long position = head.get();
+			int index = (int) position & mask;
+			long difference = sequences.get(index) - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					E element = slots.get(index);
+					slots.lazySet(index, null);
+					sequences.set(index, position + mask + 1);
+					return element;
+				}
+			} else if (difference < 0) {
+				return null;
+			}
+		}
+	}
+
+
+	/**
+	 * Adds an element, waiting for room while the ring is full.
+	 */
+	public void put(E element) {
+		for (int idle = 0; !offer(element); idle++) {
+			idle(idle);
+		}
+	}
+
+
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+
+	/**
+	 * Backs off progressively while a ring stays empty or full: spin first,
+	 * then yield, then park briefly.
+	 */
+	public static void idle(int idleCount) {
+		if (idleCount < 100) {
+			return;
+		} else if (idleCount < 200) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(1000000L, 1000L << Math.min(idleCount - 200, 10)));
+		}
+	}
+}
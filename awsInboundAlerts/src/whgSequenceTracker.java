@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.ArrayDeque;
+
+/**
+ * Tracks records of one shard that complete out of order, and tells which
+ * sequence number is safe to checkpoint: the highest one for which every
+ * earlier record is complete too.
+ * <p>
+ * Records are added in shard order, and each is completed through the entry
+ * returned when it was added, so completing a record needs no lookup.
+ */
+public class whgSequenceTracker {
+
+	/**
+	 * One record awaiting completion.
+	 */
+	public static final class Entry {
+
+		private final String sequenceNumber;
+		private boolean done;
+
+		private Entry(String sequenceNumber) {
+			this.sequenceNumber = sequenceNumber;
+		}
+
+		public String getSequenceNumber() {
+			return sequenceNumber;
+		}
+	}
+
+
+	private final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+	private String completedThrough;
+	private long completedCount;
+
+	/**
+	 * Starts tracking the next record of the shard.
+	 */
+	public synchronized Entry add(String sequenceNumber) {
+		Entry entry = new Entry(sequenceNumber);
+		pending.addLast(entry);
+		return entry;
+	}
+
+
+	public synchronized void complete(Entry entry) {
+		entry.done = true;
+		while (!pending.isEmpty() && pending.peekFirst().done) {
+			completedThrough = pending.pollFirst().sequenceNumber;
+			completedCount++;
+		}
+		notifyAll();
+	}
+
+
+	/**
+	 * The highest sequence number up to which every record is complete, or
+	 * null if none is yet.
+	 */
+	public synchronized String getCompletedThrough() {
+		return completedThrough;
+	}
+
+
+	/** Records, from the first added, that are now safe to checkpoint past. */
+	public synchronized long getCompletedCount() {
+		return completedCount;
+	}
+
+
+	/** Records added but not yet safe to checkpoint past. */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+
+	/**
+	 * Blocks until no more than the given number of records are pending.
+	 */
+	public synchronized void awaitPendingAtMost(int limit) throws InterruptedException {
+		while (pending.size() > limit) {
+			wait();
+		}
+	}
+}
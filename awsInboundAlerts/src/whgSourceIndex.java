@@ -0,0 +1,175 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.Arrays;
+
+/**
+ * Gives each alert source a small dense id, so per-source state can live in
+ * flat primitive arrays indexed by id instead of in maps of boxed values.
+ * <p>
+ * Sources are kept in an open-addressing table with linear probing that
+ * doubles when half full. Ids are handed out from 0, and a source that is
+ * {@link #release(int) released} gives its id back to be handed out again
+ * before any new one, so ids stay below the most sources known at once
+ * rather than every source ever seen. Once maxSources sources are known at
+ * once, new ones get no id until some are released. Not thread safe.
+ */
+public class whgSourceIndex {
+
+	private final int maxSources;
+
+	// table of ids + 1, so that 0 marks an empty slot
+	private int[] table;
+	// by id; null for an id that is free
+	private String[] sources;
+	private int size;
+	private int limit;
+	// released ids, handed out again last in, first out
+	private int[] free = new int[16];
+	private int freeCount;
+
+	public whgSourceIndex(int initialCapacity, int maxSources) {
+		this.maxSources = maxSources;
+		int capacity = Integer.highestOneBit(Math.max(16, Math.min(initialCapacity, maxSources)) - 1) << 1;
+		this.table = new int[capacity * 2];
+		this.sources = new String[capacity];
+	}
+
+
+	/**
+	 * The id of the source, giving it a free id if it is new.
+	 *
+	 * @return the id, or -1 if the source is new and the index is full
+	 */
+	public int idOf(String source) {
+		int mask = table.length - 1;
+		for (int i = hash(source) & mask;; i = (i + 1) & mask) {
+			int id = table[i] - 1;
+			if (id < 0) {
+				if (size == maxSources) {
+					return -1;
+				}
+				id = freeCount > 0 ? free[--freeCount] : limit++;
+				if (id == sources.length) {
+					sources = Arrays.copyOf(sources, sources.length * 2);
+				}
+				sources[id] = source;
+				table[i] = id + 1;
+				size++;
+				if (size * 2 > table.length) {
+					rehash(table.length * 2);
+				}
+				return id;
+			}
+			if (sources[id].equals(source)) {
+				return id;
+			}
+		}
+	}
+
+
+	/**
+	 * The id of the source, or -1 if it has none.
+	 */
+	public int find(String source) {
+		int mask = table.length - 1;
+		for (int i = hash(source) & mask;; i = (i + 1) & mask) {
+			int id = table[i] - 1;
+			if (id < 0 || sources[id].equals(source)) {
+				return id;
+			}
+		}
+	}
+
+
+	/**
+	 * Forgets the source with the given id, so the id can be handed out
+	 * again. The caller clears whatever it keeps under the id first.
+	 */
+	public void release(int id) {
+		String source = sources[id];
+		if (source == null) {
+			return;
+		}
+		int mask = table.length - 1;
+		int i = hash(source) & mask;
+		while (table[i] != id + 1) {
+			i = (i + 1) & mask;
+		}
+		// close the gap by moving back any later entry whose probe passed through it
+		table[i] = 0;
+		for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+			int home = hash(sources[table[j] - 1]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				table[i] = table[j];
+				table[j] = 0;
+				i = j;
+			}
+		}
+		sources[id] = null;
+		size--;
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+		free[freeCount++] = id;
+	}
+
+
+	/** The source with the given id, or null if the id is free. */
+	public String sourceOf(int id) {
+		return sources[id];
+	}
+
+
+	/** Sources known now. */
+	public int size() {
+		return size;
+	}
+
+
+	/** One more than the highest id handed out; every id in use is below it. */
+	public int limit() {
+		return limit;
+	}
+
+
+	/** Ids the per-source arrays need room for before the index grows again. */
+	public int capacity() {
+		return sources.length;
+	}
+
+
+	private void rehash(int tableSize) {
+		int[] rehashed = new int[tableSize];
+		int mask = tableSize - 1;
+		for (int id = 0; id < limit; id++) {
+			if (sources[id] == null) {
+				continue;
+			}
+			int i = hash(sources[id]) & mask;
+			while (rehashed[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			rehashed[i] = id + 1;
+		}
+		table = rehashed;
+	}
+
+
+	private static int hash(String source) {
+		// spread the bits so that similar ids do not cluster in the table
+		int h = source.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Partitions stream records by alert source, so each source's alerts stay in
+ * order on one shard.
+ * <p>
+ * Most sources are spread by Kinesis hashing the source id. Sources listed in
+ * the system property whg.kinesis.heavySources (comma separated) are instead
+ * pinned round robin to the shards of an evenly split stream of
+ * whg.kinesis.shards shards (default 1), so the busiest sources never share a
+ * shard by chance.
+ */
+public class whgSourcePartitioner implements whgPartitioner {
+
+	private static final int MAX_PARTITION_KEY_LENGTH = 256;
+	private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+	private final Map<String, String> heavySourceHashKeys = new HashMap<String, String>();
+
+	public whgSourcePartitioner() {
+		this(System.getProperty("whg.kinesis.heavySources", ""), Integer.getInteger("whg.kinesis.shards", 1));
+	}
+
+	public whgSourcePartitioner(String heavySources, int shardCount) {
+		BigInteger shards = BigInteger.valueOf(Math.max(1, shardCount));
+		BigInteger shardWidth = HASH_KEY_SPACE.divide(shards);
+
+		int next = 0;
+		for (String source : heavySources.split(",")) {
+			source = source.trim();
+			if (source.isEmpty() || heavySourceHashKeys.containsKey(source)) {
+				continue;
+			}
+			// the middle of the shard's range, clear of either edge
+			BigInteger shard = BigInteger.valueOf(next++ % Math.max(1, shardCount));
+			BigInteger hashKey = shardWidth.multiply(shard).add(shardWidth.shiftRight(1));
+			heavySourceHashKeys.put(source, hashKey.toString());
+		}
+	}
+
+
+	@Override
+	public String partitionKey(String alertSourceId) {
+		if (alertSourceId == null || alertSourceId.isEmpty()) {
+			return "unknown";
+		}
+		return alertSourceId.length() <= MAX_PARTITION_KEY_LENGTH ? alertSourceId
+				: alertSourceId.substring(0, MAX_PARTITION_KEY_LENGTH);
+	}
+
+
+	@Override
+	public String explicitHashKey(String alertSourceId) {
+		return alertSourceId == null ? null : heavySourceHashKeys.get(alertSourceId);
+	}
+}
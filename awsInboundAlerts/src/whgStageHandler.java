@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * The per-message work of one alert stage. Implementations are called from
+ * several processor threads at once and must be thread safe.
+ */
+public interface whgStageHandler {
+
+	/**
+	 * Processes one message received from this stage's queue.
+	 *
+	 * @param message the received message
+	 * @return the body to send to the next queue, or null to delete the
+	 *         message without forwarding it
+	 * @throws Exception if the message could not be processed; it is left on
+	 *         the queue and will be received again
+	 */
+	String process(Message message) throws Exception;
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * Runs one alert stage with several receiver threads feeding a pool of
+ * processor threads, all sharing the stage's AWS clients.
+ * <p>
+ * Each received batch is processed message by message on the pool, or in one
+ * call for a {@link whgBatchStageHandler}, and is forwarded and deleted with
+ * one {@link whgBatchForwarder} flush once its last message finishes. The number of received but unacknowledged messages is
+ * capped, so receivers stop polling while processors are behind.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li>whg.receivers - receiver threads polling the queue (default 1)</li>
+ * <li>whg.processors - processor threads (default one per core)</li>
+ * <li>whg.maxInFlight - messages received but not yet acknowledged (default 100)</li>
+ * <li>whg.mode - "pool" to process on the processor pool (default), or
+ * "virtual" to give every message its own virtual thread</li>
+ * </ul>
+ * In virtual mode the number of messages in flight is the only bound on
+ * concurrency, so it is usually raised into the thousands, with
+ * {@link whgDownstreamLimiter} keeping each downstream service within its own
+ * limit. Virtual threads need a Java 21 runtime; on older runtimes the mode
+ * falls back to one platform thread per message. Carrier threads pinned by
+ * blocking inside synchronized code are reported by the JVM on stdout.
+ * On JVM shutdown receivers stop polling and everything already received is
+ * processed and acknowledged before the process exits.
+ */
+public class whgStageRuntime {
+
+	private static final long DRAIN_TIMEOUT_MILLIS = 60000L;
+
+	private static final whgLog log = whgLog.get("Runtime");
+
+	private final AmazonSQS sqs;
+	private final String thisQueue;
+	private final String nextQueue;
+	private final whgStageHandler handler;
+
+	private final int receiverCount;
+	private final int processorCount;
+	private final int maxInFlight;
+	private final boolean virtual;
+
+	private final Semaphore inFlight;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private volatile boolean running = true;
+
+	private ExecutorService processors;
+	private final List<Thread> receivers = new ArrayList<Thread>();
+
+	private final whgHistogram processLatency;
+	private final whgHistogram batchLatency;
+	private final whgCounter processErrors;
+
+	public whgStageRuntime(AmazonSQS sqs, String thisQueue, String nextQueue, whgStageHandler handler) {
+		this.sqs = sqs;
+		this.thisQueue = thisQueue;
+		this.nextQueue = nextQueue;
+		this.handler = handler;
+
+		this.receiverCount = Math.max(1, Integer.getInteger("whg.receivers", 1));
+		this.processorCount = Math.max(1, Integer.getInteger("whg.processors",
+				Runtime.getRuntime().availableProcessors()));
+		// a receiver reserves a full receive before polling
+		this.maxInFlight = Math.max(whgHelper.MAX_MESSAGES_PER_RECEIVE, Integer.getInteger("whg.maxInFlight", 100));
+		this.inFlight = new Semaphore(maxInFlight);
+		this.virtual = "virtual".equals(System.getProperty("whg.mode", "pool"));
+
+		this.processLatency = whgMetrics.histogram("whg_stage_process_seconds", "queue", thisQueue);
+		this.batchLatency = whgMetrics.histogram("whg_stage_batch_seconds", "queue", thisQueue);
+		this.processErrors = whgMetrics.counter("whg_stage_errors_total", "queue", thisQueue);
+	}
+
+
+	/**
+	 * Starts the receivers and processors and blocks until the stage has been
+	 * shut down and drained.
+	 */
+	public void run() throws InterruptedException {
+
+		whgMetrics.startEndpoint();
+
+		if (virtual) {
+			processors = newVirtualThreadExecutor();
+			log.info("start", "queue", thisQueue, "next", nextQueue, "receivers", receiverCount,
+					"processors", "virtual", "maxInFlight", maxInFlight);
+		} else {
+			processors = Executors.newFixedThreadPool(processorCount, threadFactory(thisQueue + "-processor-"));
+			log.info("start", "queue", thisQueue, "next", nextQueue, "receivers", receiverCount,
+					"processors", processorCount, "maxInFlight", maxInFlight);
+		}
+		for (int i = 0; i < receiverCount; i++) {
+			Thread receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					receive();
+				}
+			}, thisQueue + "-receiver-" + i);
+			receivers.add(receiver);
+			receiver.start();
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		}, thisQueue + "-shutdown"));
+
+		terminated.await();
+	}
+
+
+	/**
+	 * Stops receiving, waits for every received message to be processed and
+	 * acknowledged, and releases the processor threads.
+	 */
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		log.info("draining", "queue", thisQueue);
+
+		try {
+			// receivers finish their current long poll and hand off what it returned
+			for (Thread receiver : receivers) {
+				receiver.join(DRAIN_TIMEOUT_MILLIS);
+			}
+			processors.shutdown();
+			if (!processors.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				log.warn("drainTimeout", "queue", thisQueue, "detail", "unacknowledged messages will be redelivered");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			whgDownstreamLimiter.report();
+			log.info("stopped", "queue", thisQueue);
+			whgLog.flush();
+			terminated.countDown();
+		}
+	}
+
+
+	private void receive() {
+
+		int emptyReceives = 0;
+		while (running) {
+			try {
+				// reserve room for a full receive, then give back what was not used
+				inFlight.acquire(whgHelper.MAX_MESSAGES_PER_RECEIVE);
+				List<Message> messages = Collections.emptyList();
+				try {
+					messages = whgHelper.getMessagesFromQueue(thisQueue, sqs);
+				} finally {
+					inFlight.release(whgHelper.MAX_MESSAGES_PER_RECEIVE - messages.size());
+				}
+				log.debug("received", "queue", thisQueue, "count", messages.size());
+
+				if (!messages.isEmpty() && handler instanceof whgBatchStageHandler) {
+					Batch batch = new Batch(messages.size(), 1);
+					processors.execute(new BatchTask(batch, messages));
+				} else if (!messages.isEmpty()) {
+					Batch batch = new Batch(messages.size(), messages.size());
+					for (Message message : messages) {
+						processors.execute(new Task(batch, message));
+					}
+				}
+				emptyReceives = whgHelper.backoffIfEmpty(messages, emptyReceives);
+
+			} catch (AmazonServiceException ase) {
+				whgHelper.errorMessagesAse(ase);
+			} catch (AmazonClientException ace) {
+				whgHelper.errorMessagesAce(ace);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * One received batch; acknowledged by whichever task finishes last.
+	 */
+	private final class Batch {
+
+		private final whgBatchForwarder forwarder;
+		private final AtomicInteger remaining;
+		private final int size;
+
+		Batch(int size, int tasks) {
+			this.forwarder = new whgBatchForwarder(sqs, thisQueue, nextQueue);
+			this.remaining = new AtomicInteger(tasks);
+			this.size = size;
+		}
+
+		void completed() {
+			if (remaining.decrementAndGet() > 0) {
+				return;
+			}
+			try {
+				forwarder.flush();
+			} catch (AmazonServiceException ase) {
+				whgHelper.errorMessagesAse(ase);
+			} catch (AmazonClientException ace) {
+				whgHelper.errorMessagesAce(ace);
+			} finally {
+				inFlight.release(size);
+			}
+		}
+	}
+
+
+	private final class Task implements Runnable {
+
+		private final Batch batch;
+		private final Message message;
+
+		Task(Batch batch, Message message) {
+			this.batch = batch;
+			this.message = message;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				String forwardBody = handler.process(message);
+				processLatency.recordSince(start);
+				batch.forwarder.add(message, forwardBody);
+			} catch (AmazonServiceException ase) {
+				processErrors.increment();
+				whgHelper.errorMessagesAse(ase);
+			} catch (AmazonClientException ace) {
+				processErrors.increment();
+				whgHelper.errorMessagesAce(ace);
+			} catch (Exception e) {
+				processErrors.increment();
+				// left on the queue; SQS redelivers it after the visibility timeout
+				log.warn("processFailed", "queue", thisQueue, "messageId", message.getMessageId(), "error", e);
+			} finally {
+				batch.completed();
+			}
+		}
+	}
+
+
+	private ExecutorService newVirtualThreadExecutor() {
+
+		// have the JVM print a stack trace whenever a virtual thread blocks
+		// while pinned to its carrier; read once, before the first virtual thread
+		if (System.getProperty("jdk.tracePinnedThreads") == null) {
+			System.setProperty("jdk.tracePinnedThreads", "short");
+		}
+		try {
+			// looked up reflectively so the stages still build and run on Java 7
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			log.warn("noVirtualThreads", "detail", "virtual threads need Java 21; using a platform thread per message");
+			return Executors.newCachedThreadPool(threadFactory(thisQueue + "-message-"));
+		}
+	}
+
+
+	private final class BatchTask implements Runnable {
+
+		private final Batch batch;
+		private final List<Message> messages;
+
+		BatchTask(Batch batch, List<Message> messages) {
+			this.batch = batch;
+			this.messages = messages;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+			try {
+				((whgBatchStageHandler) handler).processBatch(messages, batch.forwarder);
+				batchLatency.recordSince(start);
+			} catch (AmazonServiceException ase) {
+				processErrors.increment();
+				whgHelper.errorMessagesAse(ase);
+			} catch (AmazonClientException ace) {
+				processErrors.increment();
+				whgHelper.errorMessagesAce(ace);
+			} catch (Exception e) {
+				processErrors.increment();
+				// whatever was not added to the forwarder is redelivered
+				log.warn("batchFailed", "queue", thisQueue, "count", messages.size(), "error", e);
+			} finally {
+				batch.completed();
+			}
+		}
+	}
+
+
+	private static ThreadFactory threadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, prefix + count.getAndIncrement());
+			}
+		};
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Where an alert has been and when: a trace id, the time the alert entered
+ * the pipeline, and the time each stage handed it on.
+ * <p>
+ * Between queues the trace travels as the whgTrace message attribute,
+ * <pre>
+ * &lt;trace id&gt;;&lt;ingest millis&gt;;&lt;stage&gt;+&lt;millis after ingest&gt;;...
+ * </pre>
+ * and in stream records as fields of the alert encoding. The time between
+ * two hops covers the wait in the queue and the processing in the stage.
+ * Stamps come from each stage's own clock, so hops between hosts are only as
+ * accurate as their clocks agree. Traces are immutable; adding a hop makes a
+ * new one.
+ * <p>
+ * A trace id only has to tell traces apart, so it is not an alert id: a
+ * trace started for a message is named after its SQS message id, and any
+ * other is given a random one. Starting a trace never needs whg.workerId.
+ */
+public final class whgTrace {
+
+	public static final String ATTRIBUTE = "whgTrace";
+
+	private final String traceId;
+	private final long ingestMillis;
+	private final String[] stages;
+	private final long[] hopMillis;
+	// formatted on first use; racing threads compute the same text
+	private String text;
+
+	public whgTrace(String traceId, long ingestMillis, String[] stages, long[] hopMillis) {
+		if (stages.length != hopMillis.length) {
+			throw new IllegalArgumentException("Every hop needs a stage and a time");
+		}
+		this.traceId = traceId;
+		this.ingestMillis = ingestMillis;
+		this.stages = stages;
+		this.hopMillis = hopMillis;
+	}
+
+
+	/**
+	 * A new trace, with no hops yet, for an alert that entered the pipeline
+	 * at the given time.
+	 */
+	public static whgTrace start(long ingestMillis) {
+		return start(Long.toHexString(ThreadLocalRandom.current().nextLong()), ingestMillis);
+	}
+
+
+	private static whgTrace start(String traceId, long ingestMillis) {
+		return new whgTrace(traceId, ingestMillis, new String[0], new long[0]);
+	}
+
+
+	/**
+	 * The trace a message carries. A message without one, or with one that
+	 * cannot be read, starts a new trace from the time SQS accepted it if that
+	 * was requested on receive, or from now.
+	 */
+	public static whgTrace from(Message message) {
+		Map<String, MessageAttributeValue> attributes = message.getMessageAttributes();
+		MessageAttributeValue value = attributes == null ? null : attributes.get(ATTRIBUTE);
+		if (value != null && value.getStringValue() != null) {
+			try {
+				return parse(value.getStringValue());
+			} catch (IllegalArgumentException e) {
+				whgLog.get("Trace").debug("unreadable", "messageId", message.getMessageId(), "error", e);
+			}
+		}
+
+		long ingest = System.currentTimeMillis();
+		String sent = message.getAttributes() == null ? null : message.getAttributes().get("SentTimestamp");
+		if (sent != null) {
+			try {
+				ingest = Long.parseLong(sent);
+			} catch (NumberFormatException e) {
+				// keep now
+			}
+		}
+		// the message id stays the same when the message is redelivered
+		String messageId = message.getMessageId();
+		return messageId == null ? start(ingest) : start(messageId, ingest);
+	}
+
+
+	/**
+	 * This trace with one more hop, stamped now.
+	 */
+	public whgTrace hop(String stage) {
+		return hop(stage, System.currentTimeMillis());
+	}
+
+
+	public whgTrace hop(String stage, long atMillis) {
+		String[] moreStages = Arrays.copyOf(stages, stages.length + 1);
+		long[] moreHops = Arrays.copyOf(hopMillis, hopMillis.length + 1);
+		moreStages[stages.length] = stage;
+		moreHops[hopMillis.length] = atMillis;
+		return new whgTrace(traceId, ingestMillis, moreStages, moreHops);
+	}
+
+
+	public String getTraceId() {
+		return traceId;
+	}
+
+
+	/** Milliseconds since the epoch when the alert entered the pipeline. */
+	public long getIngestMillis() {
+		return ingestMillis;
+	}
+
+
+	public int getHopCount() {
+		return stages.length;
+	}
+
+
+	public String getStage(int hop) {
+		return stages[hop];
+	}
+
+
+	/** Milliseconds since the epoch when the stage handed the alert on. */
+	public long getHopMillis(int hop) {
+		return hopMillis[hop];
+	}
+
+
+	/**
+	 * Milliseconds the alert spent reaching and passing through a hop's
+	 * stage, measured from the previous hop or from ingest.
+	 */
+	public long getHopDuration(int hop) {
+		return hopMillis[hop] - (hop == 0 ? ingestMillis : hopMillis[hop - 1]);
+	}
+
+
+	/**
+	 * The message attributes that carry this trace to the next queue.
+	 */
+	public Map<String, MessageAttributeValue> toAttributes() {
+		return Collections.singletonMap(ATTRIBUTE,
+				new MessageAttributeValue().withDataType("String").withStringValue(toString()));
+	}
+
+
+	@Override
+	public String toString() {
+		if (text == null) {
+			StringBuilder out = new StringBuilder(32 + stages.length * 20);
+			out.append(traceId).append(';').append(ingestMillis);
+			for (int i = 0; i < stages.length; i++) {
+				out.append(';').append(stages[i]).append('+').append(hopMillis[i] - ingestMillis);
+			}
+			text = out.toString();
+		}
+		return text;
+	}
+
+
+	/**
+	 * Reads a trace written by {@link #toString()}.
+	 *
+	 * @throws IllegalArgumentException if the text is not a trace
+	 */
+	public static whgTrace parse(String text) {
+		String[] parts = text.split(";");
+		if (parts.length < 2 || parts[0].isEmpty()) {
+			throw new IllegalArgumentException("Malformed trace: " + text);
+		}
+		try {
+			long ingest = Long.parseLong(parts[1]);
+			String[] stages = new String[parts.length - 2];
+			long[] hops = new long[parts.length - 2];
+			for (int i = 2; i < parts.length; i++) {
+				int plus = parts[i].lastIndexOf('+');
+				if (plus <= 0) {
+					throw new IllegalArgumentException("Malformed trace hop: " + parts[i]);
+				}
+				stages[i - 2] = parts[i].substring(0, plus);
+				hops[i - 2] = ingest + Long.parseLong(parts[i].substring(plus + 1));
+			}
+			return new whgTrace(parts[0], ingest, stages, hops);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed trace: " + text, e);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts alerts per source over tumbling and sliding windows and hands the
+ * count, rate and severity mix of every source that raised alerts in a
+ * window to a {@link whgWindowSink} when the window ends.
+ * <p>
+ * A window is written as its span, or its span and slide: "1s" is a one
+ * second tumbling window, "1m/10s" a one minute window reported every ten
+ * seconds. Windows are aligned to the clock and measured in processing
+ * time, by when an alert reaches the aggregator.
+ * <p>
+ * Each source gets a dense id from a {@link whgSourceIndex}. For each window
+ * it has one bucket per slide holding a count per severity, plus running
+ * totals over its buckets, all in preallocated int arrays indexed by id, so
+ * counting an alert allocates nothing and reporting a window does not sum
+ * its buckets. Results are gathered under the aggregator's lock and handed
+ * to the sink by the aggregator's own thread. Once a source has no alerts
+ * left in any window its id is released for the next new source, so
+ * maxSources bounds the sources active at once, and the per-slide scan
+ * covers them rather than every source ever seen.
+ * <p>
+ * Settings are read from system properties by {@link #fromProperties()}:
+ * <ul>
+ * <li>whg.analysis.windows - comma separated windows (default "1s,1m/10s,5m/1m")</li>
+ * <li>whg.analysis.maxSources - sources tracked at once; alerts from any more are dropped (default 100000)</li>
+ * <li>whg.analysis.tickMillis - how often ended windows are reported (default 250)</li>
+ * </ul>
+ */
+public class whgWindowAggregator {
+
+	private static final int SEVERITIES = whgWindowResult.SEVERITIES;
+	private static final int INITIAL_SOURCES = 1024;
+
+	private static final whgLog log = whgLog.get("Windows");
+
+	/**
+	 * One window size and the per-source buckets behind it.
+	 */
+	private static final class Window {
+
+		final String name;
+		final long spanMillis;
+		final long slideMillis;
+		final int buckets;
+		final whgCounter results;
+
+		// counts[(id * buckets + bucket) * SEVERITIES + severity], sums[id * SEVERITIES + severity]
+		int[] counts;
+		int[] sums;
+		// the slide the newest bucket holds, as time / slideMillis; 0 until the first alert
+		long epoch;
+		// alerts in every source's buckets
+		long total;
+
+		Window(String name, long spanMillis, long slideMillis) {
+			if (slideMillis <= 0 || spanMillis < slideMillis || spanMillis % slideMillis != 0) {
+				throw new IllegalArgumentException("window " + name + " must span a whole number of slides");
+			}
+			this.name = name;
+			this.spanMillis = spanMillis;
+			this.slideMillis = slideMillis;
+			this.buckets = (int) (spanMillis / slideMillis);
+			this.results = whgMetrics.counter("whg_analysis_window_results_total", "window", name);
+			grow(INITIAL_SOURCES);
+		}
+
+		void grow(int sources) {
+			counts = counts == null ? new int[sources * buckets * SEVERITIES]
+					: Arrays.copyOf(counts, sources * buckets * SEVERITIES);
+			sums = sums == null ? new int[sources * SEVERITIES] : Arrays.copyOf(sums, sources * SEVERITIES);
+		}
+	}
+
+	/**
+	 * Window results waiting for the sink.
+	 */
+	private static final class Pending {
+
+		int size;
+		Window[] windows = new Window[256];
+		String[] sources = new String[256];
+		long[] ends = new long[256];
+		int[] counts = new int[256 * SEVERITIES];
+
+		void add(Window window, String source, long end, int[] sums, int offset) {
+			if (size == ends.length) {
+				windows = Arrays.copyOf(windows, size * 2);
+				sources = Arrays.copyOf(sources, size * 2);
+				ends = Arrays.copyOf(ends, size * 2);
+				counts = Arrays.copyOf(counts, size * 2 * SEVERITIES);
+			}
+			windows[size] = window;
+			sources[size] = source;
+			ends[size] = end;
+			System.arraycopy(sums, offset, counts, size * SEVERITIES, SEVERITIES);
+			size++;
+		}
+	}
+
+	private final Window[] windows;
+	private final whgSourceIndex sources;
+	private final whgWindowSink sink;
+	private final long tickMillis;
+	private ScheduledExecutorService ticker;
+
+	// gathered under the lock, then swapped with draining and reported by the ticker
+	private Pending pending = new Pending();
+	private Pending draining = new Pending();
+	private final whgWindowResult result = new whgWindowResult();
+
+	private final whgCounter alerts = whgMetrics.counter("whg_analysis_alerts_total");
+	private final whgCounter dropped = whgMetrics.counter("whg_analysis_sources_dropped_total");
+	private final whgCounter sinkErrors = whgMetrics.counter("whg_analysis_sink_errors_total");
+	private final whgHistogram reportLatency = whgMetrics.histogram("whg_analysis_report_seconds");
+
+	/**
+	 * @param sink where results go, or null to only count them
+	 */
+	public whgWindowAggregator(String windowSpecs, int maxSources, long tickMillis, whgWindowSink sink) {
+		List<Window> parsed = new ArrayList<Window>();
+		for (String spec : windowSpecs.split(",")) {
+			spec = spec.trim();
+			int slash = spec.indexOf('/');
+			long span = parseMillis(slash < 0 ? spec : spec.substring(0, slash));
+			long slide = slash < 0 ? span : parseMillis(spec.substring(slash + 1));
+			parsed.add(new Window(slash < 0 ? spec : spec.substring(0, slash), span, slide));
+		}
+		this.windows = parsed.toArray(new Window[parsed.size()]);
+		this.sources = new whgSourceIndex(INITIAL_SOURCES, maxSources);
+		this.tickMillis = tickMillis;
+		this.sink = sink;
+	}
+
+
+	public static whgWindowAggregator fromProperties() {
+		return new whgWindowAggregator(System.getProperty("whg.analysis.windows", "1s,1m/10s,5m/1m"),
+				Integer.getInteger("whg.analysis.maxSources", 100000),
+				Long.getLong("whg.analysis.tickMillis", 250L), whgHelper.getWindowSink());
+	}
+
+
+	/**
+	 * Starts the thread that reports ended windows.
+	 */
+	public synchronized void start() {
+		if (ticker != null) {
+			return;
+		}
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "analysis-windows");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		ticker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tick(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					// a scheduled task that throws is never run again
+					log.error("reportFailed", "error", e);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Counts one alert.
+	 *
+	 * @param sourceId the alert's source
+	 * @param severity one of the whgAlert SEVERITY_ constants
+	 * @param nowMillis the current time
+	 */
+	public synchronized void add(String sourceId, int severity, long nowMillis) {
+		alerts.increment();
+		// first, as moving on may release ids, this source's among them
+		for (Window window : windows) {
+			advance(window, nowMillis);
+		}
+		int id = sources.idOf(sourceId);
+		if (id < 0) {
+			dropped.increment();
+			return;
+		}
+		if (id * SEVERITIES >= windows[0].sums.length) {
+			for (Window window : windows) {
+				window.grow(sources.capacity());
+			}
+		}
+		int severityIndex = severity - whgAlert.SEVERITY_UNKNOWN;
+		if (severityIndex < 0 || severityIndex >= SEVERITIES) {
+			severityIndex = 0;
+		}
+
+		for (Window window : windows) {
+			int bucket = (int) (window.epoch % window.buckets);
+			window.counts[(id * window.buckets + bucket) * SEVERITIES + severityIndex]++;
+			window.sums[id * SEVERITIES + severityIndex]++;
+			window.total++;
+		}
+	}
+
+
+	/**
+	 * Closes every window that has ended by the given time and hands the
+	 * results to the sink. Called by the aggregator's thread.
+	 */
+	void tick(long nowMillis) {
+		Pending report;
+		synchronized (this) {
+			for (Window window : windows) {
+				advance(window, nowMillis);
+			}
+			report = pending;
+			pending = draining;
+			draining = report;
+		}
+		if (sink == null) {
+			Arrays.fill(report.sources, 0, report.size, null);
+			report.size = 0;
+		}
+		if (report.size == 0) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < report.size; i++) {
+				Window window = report.windows[i];
+				result.window = window.name;
+				result.sourceId = report.sources[i];
+				result.endMillis = report.ends[i];
+				result.startMillis = result.endMillis - window.spanMillis;
+				System.arraycopy(report.counts, i * SEVERITIES, result.severityCounts, 0, SEVERITIES);
+				long count = 0;
+				for (int s = 0; s < SEVERITIES; s++) {
+					count += result.severityCounts[s];
+				}
+				result.count = count;
+				sink.emit(result);
+			}
+			sink.flush();
+		} catch (IOException e) {
+			sinkErrors.increment();
+			log.warn("sinkFailed", "results", report.size, "error", e);
+		} finally {
+			reportLatency.recordSince(start);
+			Arrays.fill(report.sources, 0, report.size, null);
+			report.size = 0;
+		}
+	}
+
+
+	/**
+	 * Moves a window on to the slide holding the given time, reporting each
+	 * slide that ends on the way and emptying the bucket it reuses.
+	 */
+	private void advance(Window window, long nowMillis) {
+		long target = nowMillis / window.slideMillis;
+		while (window.epoch < target) {
+			if (window.total == 0) {
+				// nothing to report or empty; skip straight there
+				window.epoch = target;
+				return;
+			}
+			long end = (window.epoch + 1) * window.slideMillis;
+			int limit = sources.limit();
+			for (int id = 0; id < limit; id++) {
+				int offset = id * SEVERITIES;
+				int count = 0;
+				for (int s = 0; s < SEVERITIES; s++) {
+					count += window.sums[offset + s];
+				}
+				if (count > 0) {
+					pending.add(window, sources.sourceOf(id), end, window.sums, offset);
+					window.results.increment();
+				}
+			}
+
+			window.epoch++;
+			int bucket = (int) (window.epoch % window.buckets);
+			for (int id = 0; id < limit; id++) {
+				int offset = (id * window.buckets + bucket) * SEVERITIES;
+				boolean emptied = false;
+				for (int s = 0; s < SEVERITIES; s++) {
+					int count = window.counts[offset + s];
+					if (count != 0) {
+						window.sums[id * SEVERITIES + s] -= count;
+						window.total -= count;
+						window.counts[offset + s] = 0;
+						emptied = true;
+					}
+				}
+				if (emptied && isIdle(id)) {
+					sources.release(id);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Whether the source has no alerts left in any window's buckets.
+	 */
+	private boolean isIdle(int id) {
+		int offset = id * SEVERITIES;
+		for (Window window : windows) {
+			for (int s = 0; s < SEVERITIES; s++) {
+				if (window.sums[offset + s] != 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Parses a duration such as "500ms", "10s", "1m" or "1h".
+	 */
+	static long parseMillis(String duration) {
+		duration = duration.trim();
+		if (duration.endsWith("ms")) {
+			return Long.parseLong(duration.substring(0, duration.length() - 2));
+		}
+		long value = Long.parseLong(duration.substring(0, duration.length() - 1));
+		switch (duration.charAt(duration.length() - 1)) {
+		case 's': return TimeUnit.SECONDS.toMillis(value);
+		case 'm': return TimeUnit.MINUTES.toMillis(value);
+		case 'h': return TimeUnit.HOURS.toMillis(value);
+		default: throw new IllegalArgumentException("unknown unit in duration " + duration);
+		}
+	}
+}
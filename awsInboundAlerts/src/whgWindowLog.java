@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+/**
+ * Logs each window result as a "window" event of the Windows logger, subject
+ * to its level, sampling and rate limit.
+ */
+public class whgWindowLog implements whgWindowSink {
+
+	private static final whgLog log = whgLog.get("Windows");
+
+	@Override
+	public void emit(whgWindowResult result) {
+		if (!log.isEnabled(whgLog.Level.INFO)) {
+			return;
+		}
+		log.info("window", "window", result.getWindow(), "source", result.getSourceId(),
+				"end", result.getEndMillis(), "count", result.getCount(), "perSecond", result.getPerSecond(),
+				"warning", result.getSeverityCount(whgAlert.SEVERITY_WARNING),
+				"error", result.getSeverityCount(whgAlert.SEVERITY_ERROR),
+				"critical", result.getSeverityCount(whgAlert.SEVERITY_CRITICAL));
+	}
+
+
+	@Override
+	public void flush() {
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Sends window results to an SQS queue, by default alertWindows (set with
+ * whg.analysis.queue), as JSON messages in batches of up to ten.
+ * <p>
+ * A body looks like
+ * {"window":"1m","alertSourceId":"db-7","start":1444000020000,"end":1444000080000,
+ * "count":42,"perSecond":0.7,"severity":{"unknown":0,"debug":0,"info":30,"warning":9,"error":3,"critical":0}}.
+ * Results that cannot be sent are logged and counted, not retried; the next
+ * window carries the same information.
+ */
+public class whgWindowQueue implements whgWindowSink {
+
+	private static final String[] SEVERITY_NAMES = { "unknown", "debug", "info", "warning", "error", "critical" };
+
+	private static final whgLog log = whgLog.get("Windows");
+
+	private final AmazonSQS sqs;
+	private final String queue;
+	private final List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+	private final whgCounter sendErrors = whgMetrics.counter("whg_analysis_sink_errors_total");
+
+	public whgWindowQueue(AmazonSQS sqs, String queue) {
+		this.sqs = sqs;
+		this.queue = queue;
+	}
+
+
+	@Override
+	public void emit(whgWindowResult result) {
+		entries.add(new SendMessageBatchRequestEntry(String.valueOf(entries.size()), toJSON(result)));
+		if (entries.size() == whgBatchForwarder.MAX_BATCH_ENTRIES) {
+			flush();
+		}
+	}
+
+
+	@Override
+	public void flush() {
+		if (entries.isEmpty()) {
+			return;
+		}
+		try {
+			SendMessageBatchResult result = sqs.sendMessageBatch(
+					new SendMessageBatchRequest(queue, new ArrayList<SendMessageBatchRequestEntry>(entries)));
+			for (BatchResultErrorEntry error : result.getFailed()) {
+				sendErrors.increment();
+				log.warn("windowSendFailed", "queue", queue, "code", error.getCode(), "error", error.getMessage());
+			}
+		} catch (AmazonClientException e) {
+			sendErrors.add(entries.size());
+			log.warn("windowSendFailed", "queue", queue, "results", entries.size(), "error", e);
+		} finally {
+			entries.clear();
+		}
+	}
+
+
+	static String toJSON(whgWindowResult result) {
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"window\":\"").append(result.getWindow()).append("\",\"alertSourceId\":\"");
+		appendEscaped(json, result.getSourceId());
+		json.append("\",\"start\":").append(result.getStartMillis())
+				.append(",\"end\":").append(result.getEndMillis())
+				.append(",\"count\":").append(result.getCount())
+				.append(",\"perSecond\":").append(result.getPerSecond())
+				.append(",\"severity\":{");
+		for (int i = 0; i < SEVERITY_NAMES.length; i++) {
+			json.append(i == 0 ? "\"" : ",\"").append(SEVERITY_NAMES[i]).append("\":")
+					.append(result.getSeverityCount(whgAlert.SEVERITY_UNKNOWN + i));
+		}
+		return json.append("}}").toString();
+	}
+
+
+	static void appendEscaped(StringBuilder json, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+	}
+}
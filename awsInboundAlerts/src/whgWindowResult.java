@@ -0,0 +1,77 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+/**
+ * The alerts one source raised in one window: how many, how fast and how
+ * severe.
+ * <p>
+ * The aggregator fills a single instance for every result it hands to a
+ * {@link whgWindowSink}, so a sink must copy out what it keeps before
+ * returning.
+ */
+public final class whgWindowResult {
+
+	/** Severity classes counted, from {@link whgAlert#SEVERITY_UNKNOWN} to {@link whgAlert#SEVERITY_CRITICAL}. */
+	public static final int SEVERITIES = whgAlert.SEVERITY_CRITICAL - whgAlert.SEVERITY_UNKNOWN + 1;
+
+	String window;
+	String sourceId;
+	long startMillis;
+	long endMillis;
+	long count;
+	final int[] severityCounts = new int[SEVERITIES];
+
+	/** The window's name, such as "1m". */
+	public String getWindow() {
+		return window;
+	}
+
+
+	public String getSourceId() {
+		return sourceId;
+	}
+
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+
+	/** When the window ended, exclusive. */
+	public long getEndMillis() {
+		return endMillis;
+	}
+
+
+	public long getCount() {
+		return count;
+	}
+
+
+	/** Alerts per second over the window. */
+	public double getPerSecond() {
+		return count * 1000.0 / (endMillis - startMillis);
+	}
+
+
+	/**
+	 * Alerts of one severity.
+	 *
+	 * @param severity one of the whgAlert SEVERITY_ constants
+	 */
+	public int getSeverityCount(int severity) {
+		return severityCounts[severity - whgAlert.SEVERITY_UNKNOWN];
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+import java.io.IOException;
+
+/**
+ * Where the per-source window results of {@link whgWindowAggregator} go.
+ * <p>
+ * The sink is picked with the system property whg.analysis.sink: "log" for
+ * {@link whgWindowLog} (the default), "sqs" for {@link whgWindowQueue} or
+ * "none" to only keep the aggregator's metrics.
+ */
+public interface whgWindowSink {
+
+	/**
+	 * Takes one result. The result is reused once this returns.
+	 *
+	 * @throws IOException if the result could not be taken
+	 */
+	void emit(whgWindowResult result) throws IOException;
+
+	/**
+	 * Called after each round of results, for sinks that batch them.
+	 *
+	 * @throws IOException if buffered results could not be sent
+	 */
+	void flush() throws IOException;
+}